@@ -0,0 +1,48 @@
+package dev.sergivos.messaging.benchmarks;
+
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import java.util.UUID;
+
+/**
+ * A packet with the usual shape of a network message: a player, a server and a short text
+ */
+public class BenchmarkPacket implements Packet {
+
+  private UUID player;
+  private String server;
+  private String message;
+  private int sequence;
+
+  public BenchmarkPacket() {
+  }
+
+  public BenchmarkPacket(UUID player, String server, String message, int sequence) {
+    this.player = player;
+    this.server = server;
+    this.message = message;
+    this.sequence = sequence;
+  }
+
+  public int sequence() {
+    return this.sequence;
+  }
+
+  @Override
+  public void read(ByteBuf buf) {
+    this.player = PacketUtils.readUuid(buf);
+    this.server = PacketUtils.readString(buf);
+    this.message = PacketUtils.readString(buf);
+    this.sequence = PacketUtils.readVarInt(buf);
+  }
+
+  @Override
+  public void write(ByteBuf buf) {
+    PacketUtils.writeUuid(buf, this.player);
+    PacketUtils.writeString(buf, this.server);
+    PacketUtils.writeString(buf, this.message);
+    PacketUtils.writeVarInt(buf, this.sequence);
+  }
+
+}
@@ -0,0 +1,164 @@
+package dev.sergivos.messaging.benchmarks;
+
+import dev.sergivos.messaging.MessagingService;
+import dev.sergivos.messaging.brokers.LocalBroker;
+import dev.sergivos.messaging.compression.MessagingCompression;
+import dev.sergivos.messaging.compression.NoCompression;
+import dev.sergivos.messaging.compression.ZStdCompression;
+import dev.sergivos.messaging.compression.ZStdDictionaryCompression;
+import dev.sergivos.messaging.packets.PacketManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compression and decompression of serialized {@link BenchmarkPacket}s with every codec, both
+ * through the {@link ByteBuf} methods and the {@code byte[]} adapters
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompressionBenchmark {
+
+  private static final String PACKET_TYPE = "benchmark";
+  private static final int FRAMES = 256;
+  private static final String[] WORDS = {"player", "joined", "left", "the", "lobby", "server",
+      "survival", "creative", "teleported", "to", "kicked", "for", "spamming", "party", "friend",
+      "request", "accepted", "denied", "queue", "position"};
+
+  @Param({"none", "zstd", "zstd-dictionary"})
+  public String codec;
+
+  @Param({"64", "512", "4096"})
+  public int size;
+
+  private MessagingCompression compression;
+  private MessagingService service;
+  private final ByteBuf[] frames = new ByteBuf[FRAMES];
+  private final ByteBuf[] encoded = new ByteBuf[FRAMES];
+  private final byte[][] compressed = new byte[FRAMES][];
+  private int next;
+
+  @Setup
+  public void setup() throws InterruptedException {
+    final Random random = new Random(42);
+    for (int i = 0; i < FRAMES; i++) {
+      final StringBuilder message = new StringBuilder(size);
+      while (message.length() < size - 40) {
+        message.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+      }
+      final BenchmarkPacket packet = new BenchmarkPacket(
+          new UUID(random.nextLong(), random.nextLong()), "lobby-" + random.nextInt(16),
+          message.toString(), i);
+      frames[i] = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+      packet.write(frames[i]);
+    }
+
+    switch (codec) {
+      case "none":
+        compression = new NoCompression();
+        break;
+      case "zstd":
+        compression = new ZStdCompression();
+        break;
+      case "zstd-dictionary":
+        compression = trainedDictionary();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown codec " + codec);
+    }
+
+    for (int i = 0; i < FRAMES; i++) {
+      encoded[i] = compression.encode(frames[i], PACKET_TYPE);
+      compressed[i] = ByteBufUtil.getBytes(encoded[i]);
+    }
+  }
+
+  /**
+   * Feeds the frames to a dictionary codec until it's using a trained dictionary
+   */
+  private MessagingCompression trainedDictionary() throws InterruptedException {
+    final ZStdDictionaryCompression dictionary = new ZStdDictionaryCompression(
+        ZStdCompression.DEFAULT_LEVEL, 1, FRAMES, 16 * 1024, 0);
+    service = MessagingService.builder("compression-benchmark", new PacketManager(),
+        new LocalBroker(new LocalBroker.Network(), false, 1024)).compression(dictionary).build();
+
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (System.nanoTime() < deadline) {
+      for (final ByteBuf frame : frames) {
+        dictionary.encode(frame, PACKET_TYPE).release();
+      }
+
+      final ByteBuf probe = dictionary.encode(frames[0], PACKET_TYPE);
+      try {
+        // 0x02 is the header of the messages compressed with a dictionary
+        if (probe.getByte(probe.readerIndex()) == 0x02) {
+          return dictionary;
+        }
+      } finally {
+        probe.release();
+      }
+      Thread.sleep(10);
+    }
+    throw new IllegalStateException("The zstd dictionary wasn't trained in time");
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (int i = 0; i < FRAMES; i++) {
+      frames[i].release();
+      encoded[i].release();
+    }
+    if (service != null) {
+      service.close();
+    }
+  }
+
+  @Benchmark
+  public int encode() {
+    final ByteBuf data = compression.encode(frames[next++ & (FRAMES - 1)], PACKET_TYPE);
+    try {
+      return data.readableBytes();
+    } finally {
+      data.release();
+    }
+  }
+
+  @Benchmark
+  public int decode() {
+    final ByteBuf data = compression.decode(encoded[next++ & (FRAMES - 1)]);
+    try {
+      return data.readableBytes();
+    } finally {
+      data.release();
+    }
+  }
+
+  @Benchmark
+  public byte[] compress() {
+    return compression.compress(frames[next++ & (FRAMES - 1)], PACKET_TYPE);
+  }
+
+  @Benchmark
+  public int decompress() {
+    final ByteBuf data = compression.decompress(compressed[next++ & (FRAMES - 1)]);
+    try {
+      return data.readableBytes();
+    } finally {
+      data.release();
+    }
+  }
+
+}
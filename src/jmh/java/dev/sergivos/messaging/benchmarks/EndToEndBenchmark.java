@@ -0,0 +1,127 @@
+package dev.sergivos.messaging.benchmarks;
+
+import dev.sergivos.messaging.MessagingService;
+import dev.sergivos.messaging.brokers.LocalBroker;
+import dev.sergivos.messaging.compression.MessagingCompression;
+import dev.sergivos.messaging.compression.NoCompression;
+import dev.sergivos.messaging.compression.ZStdCompression;
+import dev.sergivos.messaging.listeners.PacketHandler;
+import dev.sergivos.messaging.packets.PacketManager;
+import dev.sergivos.messaging.packets.PacketManager.IdFormat;
+import dev.sergivos.messaging.pipeline.OverflowPolicy;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The whole path of a packet, from {@link MessagingService#sendPacket} on a service to the
+ * listeners of another one, connected through a {@link LocalBroker}
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EndToEndBenchmark {
+
+  private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+  @Param({"false", "true"})
+  public boolean passPackets;
+
+  @Param({"none", "zstd"})
+  public String codec;
+
+  private MessagingService sender;
+  private MessagingService receiver;
+  private final Counter counter = new Counter();
+  private BenchmarkPacket packet;
+  private long sent;
+
+  @Setup
+  public void setup() {
+    final LocalBroker.Network network = new LocalBroker.Network();
+    sender = service(network);
+    receiver = service(network);
+    receiver.registerListener(counter);
+    packet = new BenchmarkPacket(UUID.randomUUID(), "lobby-1",
+        "Steve joined the lobby, say hi!", 0);
+
+    // the first packet also announces the packet table
+    sender.sendPacket(packet);
+    awaitDelivery(++sent);
+  }
+
+  private MessagingService service(final LocalBroker.Network network) {
+    final PacketManager packetManager = new PacketManager(IdFormat.NUMERIC);
+    packetManager.register(BenchmarkPacket.class, BenchmarkPacket::new);
+    final MessagingCompression compression =
+        codec.equals("zstd") ? new ZStdCompression(ZStdCompression.DEFAULT_LEVEL, 0)
+            : new NoCompression();
+    // senders wait for room instead of dropping, so the throughput is bounded by the delivery
+    return MessagingService.builder("end-to-end-benchmark", packetManager,
+        new LocalBroker(network, passPackets, 1024)).compression(compression)
+        .sendQueue(8192, 1, OverflowPolicy.BLOCK).build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    sender.close();
+    receiver.close();
+  }
+
+  /**
+   * Sends a packet and waits for it to be handled
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void latency() {
+    sender.sendPacket(packet);
+    awaitDelivery(++sent);
+  }
+
+  /**
+   * Sends packets as fast as the receiver handles them
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public void throughput() {
+    sender.sendPacket(packet);
+    sent++;
+  }
+
+  @TearDown(Level.Iteration)
+  public void drain() {
+    awaitDelivery(sent);
+  }
+
+  private void awaitDelivery(long count) {
+    final long deadline = System.nanoTime() + DELIVERY_TIMEOUT;
+    while (counter.received.get() < count) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException(
+            "Only " + counter.received.get() + " of " + count + " packets were delivered");
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  public static final class Counter {
+
+    private final AtomicLong received = new AtomicLong();
+
+    @PacketHandler
+    public void onPacket(BenchmarkPacket packet) {
+      received.incrementAndGet();
+    }
+
+  }
+
+}
@@ -0,0 +1,64 @@
+package dev.sergivos.messaging.benchmarks;
+
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketManager;
+import dev.sergivos.messaging.packets.PacketManager.IdFormat;
+import dev.sergivos.messaging.packets.PacketType;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups done by {@link PacketManager} for every sent and received packet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketManagerBenchmark {
+
+  @Param({"STRING", "NUMERIC"})
+  public IdFormat idFormat;
+
+  private PacketManager packetManager;
+  private Packet packet;
+  private String id;
+  private int numericId;
+
+  @Setup
+  public void setup() {
+    packetManager = new PacketManager(idFormat);
+    packetManager.register(BenchmarkPacket.class, BenchmarkPacket::new);
+    packet = new BenchmarkPacket(UUID.randomUUID(), "lobby-1", "hello", 0);
+    id = packetManager.id(packet);
+    final PacketType<?> type = packetManager.type(id);
+    numericId = type.numericId();
+  }
+
+  @Benchmark
+  public String id() {
+    return packetManager.id(packet);
+  }
+
+  @Benchmark
+  public PacketType<?> typeOfPacket() {
+    return packetManager.type(packet);
+  }
+
+  @Benchmark
+  public Packet newInstanceById() {
+    return packetManager.newInstance(id);
+  }
+
+  @Benchmark
+  public Packet newInstanceByNumericId() {
+    return packetManager.newInstance(numericId);
+  }
+
+}
@@ -0,0 +1,151 @@
+package dev.sergivos.messaging.benchmarks;
+
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.TextDecoration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Encoding and decoding of the field types in {@link PacketUtils}. The {@code unique} component
+ * benchmarks use a different component every time, so they never hit the component caches
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketUtilsBenchmark {
+
+  @Param({"1", "300", "2097151", "-1"})
+  public int varInt;
+
+  @Param({"16", "256"})
+  public int stringLength;
+
+  private final UUID uuid = UUID.randomUUID();
+  private final Component component = Component.text("Player ", NamedTextColor.GRAY)
+      .append(Component.text("Steve", NamedTextColor.GOLD, TextDecoration.BOLD))
+      .append(Component.text(" joined the lobby", NamedTextColor.GRAY));
+  private String string;
+  private int counter;
+
+  private ByteBuf buf;
+  private ByteBuf varIntData;
+  private ByteBuf stringData;
+  private ByteBuf uuidData;
+  private ByteBuf componentData;
+  private ByteBuf uniqueComponentData;
+
+  @Setup
+  public void setup() {
+    final StringBuilder builder = new StringBuilder(stringLength);
+    for (int i = 0; i < stringLength; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    string = builder.toString();
+
+    buf = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+    varIntData = PooledByteBufAllocator.DEFAULT.directBuffer(8);
+    PacketUtils.writeVarInt(varIntData, varInt);
+    stringData = PooledByteBufAllocator.DEFAULT.directBuffer(stringLength + 8);
+    PacketUtils.writeString(stringData, string);
+    uuidData = PooledByteBufAllocator.DEFAULT.directBuffer(16);
+    PacketUtils.writeUuid(uuidData, uuid);
+    componentData = PooledByteBufAllocator.DEFAULT.directBuffer(256);
+    PacketUtils.writeComponent(componentData, component);
+    // more components than the cache can hold, read in order
+    uniqueComponentData = PooledByteBufAllocator.DEFAULT.directBuffer(128 * 1024);
+    for (int i = 0; i < 2048; i++) {
+      PacketUtils.writeComponent(uniqueComponentData, component.append(Component.text(Integer.toString(i))));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    buf.release();
+    varIntData.release();
+    stringData.release();
+    uuidData.release();
+    componentData.release();
+    uniqueComponentData.release();
+  }
+
+  @Benchmark
+  public int writeVarInt() {
+    buf.clear();
+    PacketUtils.writeVarInt(buf, varInt);
+    return buf.writerIndex();
+  }
+
+  @Benchmark
+  public int readVarInt() {
+    varIntData.readerIndex(0);
+    return PacketUtils.readVarInt(varIntData);
+  }
+
+  @Benchmark
+  public int writeString() {
+    buf.clear();
+    PacketUtils.writeString(buf, string);
+    return buf.writerIndex();
+  }
+
+  @Benchmark
+  public String readString() {
+    stringData.readerIndex(0);
+    return PacketUtils.readString(stringData);
+  }
+
+  @Benchmark
+  public int writeUuid() {
+    buf.clear();
+    PacketUtils.writeUuid(buf, uuid);
+    return buf.writerIndex();
+  }
+
+  @Benchmark
+  public UUID readUuid() {
+    uuidData.readerIndex(0);
+    return PacketUtils.readUuid(uuidData);
+  }
+
+  @Benchmark
+  public int writeComponent() {
+    buf.clear();
+    PacketUtils.writeComponent(buf, component);
+    return buf.writerIndex();
+  }
+
+  @Benchmark
+  public Component readComponent() {
+    componentData.readerIndex(0);
+    return PacketUtils.readComponent(componentData);
+  }
+
+  @Benchmark
+  public int writeUniqueComponent() {
+    buf.clear();
+    PacketUtils.writeComponent(buf, component.append(Component.text(Integer.toString(counter++))));
+    return buf.writerIndex();
+  }
+
+  @Benchmark
+  public Component readUniqueComponent() {
+    if (!uniqueComponentData.isReadable()) {
+      uniqueComponentData.readerIndex(0);
+    }
+    return PacketUtils.readComponent(uniqueComponentData);
+  }
+
+}
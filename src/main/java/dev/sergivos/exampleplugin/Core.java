@@ -2,6 +2,7 @@ package dev.sergivos.exampleplugin;
 
 import dev.sergivos.exampleplugin.listeners.PlayerListener;
 import dev.sergivos.exampleplugin.network.PacketListener;
+import dev.sergivos.exampleplugin.network.PacketCodecs;
 import dev.sergivos.exampleplugin.network.SimplePacket;
 import dev.sergivos.messaging.MessagingService;
 import dev.sergivos.messaging.brokers.NatsBroker;
@@ -28,7 +29,7 @@ public final class Core extends JavaPlugin {
 
     PacketManager packetManager = new PacketManager();
     try {
-      packetManager.register(SimplePacket.class, SimplePacket::new);
+      PacketCodecs.registerAll(packetManager);
 
       final NatsBroker broker = new NatsBroker(
           "nats://127.0.0.1:4222,nats://127.0.0.1:5222,nats://127.0.0.1:6222");
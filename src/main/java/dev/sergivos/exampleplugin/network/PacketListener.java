@@ -1,13 +1,13 @@
 package dev.sergivos.exampleplugin.network;
 
-import com.google.common.eventbus.Subscribe;
+import dev.sergivos.messaging.listeners.PacketHandler;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.format.NamedTextColor;
 import org.bukkit.Bukkit;
 
 public class PacketListener {
 
-  @Subscribe
+  @PacketHandler
   public void onPacket(SimplePacket packet) {
     Bukkit.broadcast(Component.text("[SimplePacket] ", NamedTextColor.AQUA)
         .append(packet.message()));
@@ -1,16 +1,23 @@
 package dev.sergivos.exampleplugin.network;
 
 import dev.sergivos.messaging.packets.Packet;
-import dev.sergivos.messaging.packets.PacketUtils;
+import dev.sergivos.messaging.packets.codec.AutoCodec;
+import dev.sergivos.messaging.packets.codec.CodecField;
 import io.netty.buffer.ByteBuf;
 import net.kyori.adventure.text.Component;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
+/**
+ * Encoded by the generated {@link SimplePacketCodec}
+ */
+@AutoCodec
 public class SimplePacket implements Packet {
 
-  private @MonotonicNonNull String sender;
-  private @MonotonicNonNull Component message;
+  @CodecField
+  @MonotonicNonNull String sender;
+  @CodecField
+  @MonotonicNonNull Component message;
 
   public SimplePacket() {
   }
@@ -20,24 +27,22 @@ public class SimplePacket implements Packet {
     this.message = message;
   }
 
-  public @MonotonicNonNull String sender() {
-    return this.sender;
-  }
-
-  public @MonotonicNonNull Component message() {
-    return this.message;
-  }
-
   @Override
   public void read(final @NonNull ByteBuf buf) {
-    this.sender = PacketUtils.readString(buf);
-    this.message = PacketUtils.readComponent(buf);
+    SimplePacketCodec.INSTANCE.read(this, buf);
   }
 
   @Override
   public void write(final @NonNull ByteBuf buf) {
-    PacketUtils.writeString(buf, this.sender);
-    PacketUtils.writeComponent(buf, this.message);
+    SimplePacketCodec.INSTANCE.write(this, buf);
+  }
+
+  public @MonotonicNonNull String sender() {
+    return this.sender;
+  }
+
+  public @MonotonicNonNull Component message() {
+    return this.message;
   }
 
   @Override
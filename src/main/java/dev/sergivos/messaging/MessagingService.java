@@ -1,28 +1,59 @@
 package dev.sergivos.messaging;
 
-import static dev.sergivos.messaging.utils.MathUtil.percentile;
-
-import com.google.common.eventbus.EventBus;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
 import dev.sergivos.messaging.brokers.MessagingBroker;
+import dev.sergivos.messaging.compression.DictionaryPendingException;
 import dev.sergivos.messaging.compression.MessagingCompression;
 import dev.sergivos.messaging.compression.NoCompression;
+import dev.sergivos.messaging.compression.ZStdDictionaryPacket;
+import dev.sergivos.messaging.compression.ZStdDictionaryRequestPacket;
+import dev.sergivos.messaging.listeners.ListenerRegistry;
+import dev.sergivos.messaging.listeners.PacketHandler;
+import dev.sergivos.messaging.metrics.MessagingMetrics;
+import dev.sergivos.messaging.metrics.MetricsExporter;
+import dev.sergivos.messaging.metrics.PacketTypeMetrics;
+import dev.sergivos.messaging.nodes.Node;
+import dev.sergivos.messaging.nodes.NodeTable;
+import dev.sergivos.messaging.nodes.SequenceWindow;
 import dev.sergivos.messaging.packets.Packet;
 import dev.sergivos.messaging.packets.PacketManager;
+import dev.sergivos.messaging.packets.PacketManager.IdFormat;
+import dev.sergivos.messaging.packets.PacketType;
 import dev.sergivos.messaging.packets.PacketUtils;
+import dev.sergivos.messaging.packets.PooledPacket;
+import dev.sergivos.messaging.packets.internal.NodeAliasPacket;
+import dev.sergivos.messaging.packets.internal.PacketTablePacket;
+import dev.sergivos.messaging.pipeline.Outbox;
+import dev.sergivos.messaging.pipeline.OverflowPolicy;
+import dev.sergivos.messaging.pipeline.ReceiveOrdering;
+import dev.sergivos.messaging.pipeline.ReceivePipeline;
+import dev.sergivos.messaging.pipeline.SendQueue;
+import dev.sergivos.messaging.rpc.PendingRequests;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,32 +68,99 @@ import org.slf4j.LoggerFactory;
  * <p>
  * In order to send packets, you must register the Packet classes to a proper {@link PacketManager}. This will translate the
  * different {@link Packet}s objects into proper IDs that we can send across the systems.
+ * </p>
+ * <p>
+ * Received {@link PooledPacket}s are reused once every listener handled them. See {@link
+ * PooledPacket#retain()} to keep them.
  * </p><br>
  *
  * <strong>Packet format</strong>
  * <pre>
- *      +--------------------+---------------+-------------+
- *      | Server ID (String) | Type (String) | Packet Data |
- *      +--------------------+---------------+-------------+
+ *      +------------------+---------------+-------------+
+ *      | Server ID (UUID) | Type (String) | Packet Data |
+ *      +------------------+---------------+-------------+
  * </pre>
+ * When the {@link PacketManager} uses {@link IdFormat#NUMERIC} IDs, the type is sent as a VarInt
+ * containing the numeric ID plus one. A {@code 0} is followed by the {@link String} ID instead,
+ * which is used by control packets like the {@link PacketTablePacket} and {@link NodeAliasPacket}.
+ * Numeric IDs are dropped until their sender announces its table.
+ * <p>
+ * When {@link Builder#nodeAliases(boolean) node aliases} are enabled, the server ID is replaced by
+ * a VarInt alias. See {@link NodeTable}.
+ * <p>
+ * When {@link Builder#sendTimestamps(boolean) send timestamps} are enabled, the server ID is
+ * followed by the time the packet was sent, as a long containing microseconds since the epoch.
+ * Batches contain the time their first packet was sent.
+ * <p>
+ * When {@link Builder#deduplication(int) deduplication} is enabled, the header ends with the
+ * sequence number of the frame, as a VarLong. Receivers drop the frames whose sequence number they
+ * have already seen from the same sender. See {@link SequenceWindow}.
+ * <p>
+ * When {@link Builder#batching(long, TimeUnit, int) batching} is enabled, a single message can
+ * contain multiple packets. See {@link PacketBatcher}.
+ * <p>
+ * Batches, requests and responses start with a frame marker: an empty {@link String} packet type
+ * followed by the kind of frame. Requests then contain their VarInt correlation ID, and responses
+ * their correlation ID and the server ID (or alias) of the requester, before the packet type.
+ * Unicast packets contain the server ID of their target.
+ * <p>
+ * When {@link Builder#packetSubjects(boolean) packet subjects} are enabled, every packet type is
+ * published to its own subject, and nodes only subscribe to the types they listen to.
+ * <p>
+ * When the {@link Builder#outbox(Path, long) outbox} is enabled, messages that the broker can't
+ * take are spooled to disk and sent once it's available again. See {@link Outbox}.
  */
 public final class MessagingService {
 
   private static final boolean DEBUG = System.getProperty("MESSAGING_DEVELOPMENT") != null;
+  private static final long ALIAS_REQUEST_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+  private static final long TABLE_REQUEST_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+  // the nodes we don't hear from in this time are forgotten, and asked to announce themselves
+  // again when they come back
+  private static final long NODE_TIMEOUT = TimeUnit.MINUTES.toNanos(10);
+  private static final long NODE_EVICTION_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+  private static final int MAX_PENDING_REQUESTS = 4096;
+  // sender, timestamp, sequence number, frame marker, correlation ID, target and numeric type ID
+  private static final int MAX_HEADER_SIZE = 64;
+  static final int FRAME_BATCH = 1;
+  static final int FRAME_REQUEST = 2;
+  static final int FRAME_RESPONSE = 3;
+  static final int FRAME_UNICAST = 4;
+  // correlation IDs are never negative
+  private static final int NO_REQUEST = -1;
   private final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
-  private final int[] capacities = new int[150];
-  private final AtomicInteger currentCapacity = new AtomicInteger(0);
-  private final ReadWriteLock capacityLock = new ReentrantReadWriteLock();
-  private final @NonNull MessagingCompression compression = new NoCompression();
+  private final @NonNull MessagingCompression compression;
   private final @NonNull PacketManager packetManager;
   private final @NonNull UUID serverId;
   private final @NonNull String serviceName;
   private final @NonNull MessagingBroker broker;
-  private final @NonNull ExecutorService executorService;
+  private final @NonNull SendQueue sendQueue;
+  private final @NonNull MessagingMetrics metrics;
   private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
-  private final @NonNull EventBus eventBus;
+  private final @NonNull ListenerRegistry listeners;
+  private final @NonNull PendingRequests pendingRequests;
+  private final Map<Class<? extends Packet>, Function<Packet, @Nullable Packet>> responders =
+      Maps.newConcurrentMap();
   private final @NonNull Logger logger;
-  private volatile int capacity = 1024; // Start at 2kb
+  private final @NonNull NodeTable nodes = new NodeTable();
+  private final boolean nodeAliases;
+  private final @Nullable PacketBatcher batcher;
+  private final @Nullable ReceivePipeline receivePipeline;
+  private final @Nullable Outbox outbox;
+  private final boolean packetSubjects;
+  private final boolean sendTimestamps;
+  private final int deduplicationWindow;
+  private final AtomicLong sequence = new AtomicLong();
+  private final Set<String> subscribedTypes = new HashSet<>();
+  private volatile int announcedVersion = -1;
+  private volatile int alias;
+  private volatile long lastAliasRequest;
+  private volatile long lastTableRequest;
+  private volatile long lastDictionaryWarning;
+  private volatile long lastNodeEviction = System.nanoTime();
+  private volatile int subscribedVersion = -1;
+  private volatile boolean brokerReady;
 
   /**
    * Creates a new manager with the established data. The {@code serviceName} will be normalized
@@ -73,21 +171,97 @@ public final class MessagingService {
    */
   public MessagingService(final @NonNull String serviceName,
       final @NonNull PacketManager packetManager, final @NonNull MessagingBroker broker) {
-    this.packetManager = packetManager;
+    this(serviceName, packetManager, broker, new NoCompression());
+  }
+
+  /**
+   * Creates a new manager with the established data. The {@code serviceName} will be normalized
+   *
+   * @param serviceName   The service's name. Will be used as a channel name on the broker, you will need a matching {@code
+   *                      serviceName} {@link MessagingService} on another instance.
+   * @param packetManager The manager that will handle packet translation IDs and classes
+   * @param compression   The codec used to compress messages. Every instance of the service must use the same codec
+   */
+  public MessagingService(final @NonNull String serviceName,
+      final @NonNull PacketManager packetManager, final @NonNull MessagingBroker broker,
+      final @NonNull MessagingCompression compression) {
+    this(builder(serviceName, packetManager, broker).compression(compression));
+  }
+
+  private MessagingService(final @NonNull Builder builder) {
+    this.packetManager = builder.packetManager;
+    this.compression = builder.compression;
+    this.nodeAliases = builder.nodeAliases;
+    this.packetSubjects = builder.packetSubjects;
+    this.sendTimestamps = builder.sendTimestamps;
+    this.deduplicationWindow = builder.deduplicationWindow;
+    this.batcher = builder.batchMaxBytes == 0 ? null
+        : new PacketBatcher(this, builder.batchMaxDelay, TimeUnit.NANOSECONDS,
+            builder.batchMaxBytes, packetSubjects);
     this.serverId = UUID.randomUUID();
-    this.serviceName = serviceName.trim().replace(" ", "_");
-    this.eventBus = new EventBus(serviceName);
+    this.serviceName = builder.serviceName.trim().replace(" ", "_");
     this.logger = LoggerFactory.getLogger(this.serviceName + "_MS");
+    this.listeners = new ListenerRegistry(this.packetManager, this.logger);
+    this.pendingRequests = new PendingRequests(MAX_PENDING_REQUESTS);
 
-    this.executorService = Executors.newCachedThreadPool(
-        new ThreadFactoryBuilder().setNameFormat("MessagingService-%d").build());
+    this.sendQueue = new SendQueue(builder.sendQueueCapacity, builder.sendThreads,
+        builder.overflowPolicy, this.logger);
+    this.metrics = new MessagingMetrics(sendQueue::size, sendQueue::dropped, sendQueue::rejected,
+        this.logger);
+    if (builder.metricsExporter != null) {
+      metrics.export(builder.metricsExporter, builder.metricsPeriod, TimeUnit.NANOSECONDS);
+    }
+    this.receivePipeline = builder.receiveShards == 0 ? null
+        : new ReceivePipeline(builder.receiveShards, builder.receiveCapacity,
+            builder.receiveOrdering, this.logger);
+
+    if (!packetManager.isRegistered(PacketTablePacket.class)) {
+      packetManager.register(PacketTablePacket.class, PacketTablePacket::new);
+    }
+    if (!packetManager.isRegistered(NodeAliasPacket.class)) {
+      packetManager.register(NodeAliasPacket.class, NodeAliasPacket::new);
+    }
+    this.listeners.register(new InternalListener(), null);
+    this.compression.setMessagingService(this);
 
     // TODO: move to constructor, but we'll need to refactor as the MessageBroker depends on a MessagingService for the channel-name
-    this.broker = broker;
+    this.broker = builder.broker;
+    if (packetSubjects && !broker.supportsPacketSubjects()) {
+      throw new IllegalArgumentException(
+          broker.getClass().getSimpleName() + " doesn't support packet subjects");
+    }
     this.broker.setMessagingService(this);
+    this.outbox = builder.outboxDirectory == null ? null
+        : new Outbox(builder.outboxDirectory, builder.outboxMaxBytes, this::send,
+            broker::isAvailable, this.logger);
+    this.brokerReady = true;
+    updateSubscriptions();
+
+    if (nodeAliases) {
+      this.alias = nodes.randomAlias();
+      announceAlias(true);
+    }
+    if (packetManager.idFormat() == IdFormat.NUMERIC) {
+      announcePacketTable(true);
+    }
+
+    logger.info("MessagingService {} created: using broker {}, compression {} and id {}",
+        serviceName, this.broker.getClass().getSimpleName(),
+        this.compression.getClass().getSimpleName(), this.serverId);
+  }
 
-    logger.info("MessagingService {} created: using broker {} and id {}", serviceName,
-        this.broker.getClass().getSimpleName(), this.serverId);
+  /**
+   * Creates a {@link Builder} for a new {@link MessagingService}. The {@code serviceName} will be normalized
+   *
+   * @param serviceName   The service's name. Will be used as a channel name on the broker, you will need a matching {@code
+   *                      serviceName} {@link MessagingService} on another instance.
+   * @param packetManager The manager that will handle packet translation IDs and classes
+   * @param broker        The broker used to send and receive messages
+   * @return a new {@link Builder}
+   */
+  public static @NonNull Builder builder(final @NonNull String serviceName,
+      final @NonNull PacketManager packetManager, final @NonNull MessagingBroker broker) {
+    return new Builder(serviceName, packetManager, broker);
   }
 
   /**
@@ -98,9 +272,18 @@ public final class MessagingService {
     logger.info("Shutting down MessagingService");
 
     try {
-      executorService.shutdown();
-      if (!executorService.awaitTermination(3, TimeUnit.SECONDS)) {
-        executorService.shutdownNow();
+      if (!sendQueue.close(3, TimeUnit.SECONDS)) {
+        logger.warn("Timed out sending the queued packets, {} packets lost", sendQueue.size());
+      }
+
+      // after the send queue, which adds its packets to the current batch
+      if (batcher != null) {
+        batcher.close();
+      }
+
+      if (outbox != null && !outbox.close(3, TimeUnit.SECONDS)) {
+        logger.warn("Timed out replaying the outbox, {} bytes kept for the next start",
+            outbox.pendingBytes());
       }
 
       try {
@@ -108,8 +291,14 @@ public final class MessagingService {
       } catch (Exception ex) {
         logger.error("error shutting down broker", ex);
       }
+
+      if (receivePipeline != null && !receivePipeline.close(3, TimeUnit.SECONDS)) {
+        logger.warn("Timed out handling the received packets");
+      }
+      pendingRequests.close(new IllegalStateException("The MessagingService was closed"));
+      metrics.close();
     } catch (InterruptedException ex) {
-      logger.error("error shutting down executor from MessagingService", ex);
+      logger.error("error shutting down the send queue from MessagingService", ex);
     } finally {
       shutdownLock.writeLock().unlock();
       logger.info("MessagingService shutdown.");
@@ -117,28 +306,47 @@ public final class MessagingService {
   }
 
   /**
-   * Registers a listener for {@link Packet}s
+   * Registers a listener for {@link Packet}s. Its handlers are called in the thread receiving the
+   * packets. See {@link PacketHandler}
    *
    * @param object The instance of the {@link Packet} listener.
+   * @throws IllegalArgumentException if a handler of the listener is not valid
    */
   public void registerListener(final @NonNull Object object) {
-    eventBus.register(object);
+    listeners.register(object, null);
+    updateSubscriptions();
+  }
+
+  /**
+   * Registers a listener for {@link Packet}s. See {@link PacketHandler}
+   *
+   * @param object   The instance of the {@link Packet} listener.
+   * @param executor The executor used to call the handlers of the listener
+   * @throws IllegalArgumentException if a handler of the listener is not valid
+   */
+  public void registerListener(final @NonNull Object object, final @NonNull Executor executor) {
+    listeners.register(object, executor);
+    updateSubscriptions();
   }
 
   /**
    * Un-registers a listener for {@link Packet}s
    *
    * @param object The instance of the {@link Packet} listener.
+   * @throws IllegalArgumentException if the listener is not registered
    */
   public void unregisterListener(final @NonNull Object object) {
-    eventBus.unregister(object);
+    listeners.unregister(object);
+    updateSubscriptions();
   }
 
   /**
    * Sends a packet <strong>asynchronously</strong>. See also {@link MessagingService#sendPacket(Packet, boolean)}
    *
    * @param packet The {@link Packet} to be sent
-   * @throws NullPointerException if the packet is not registered in the {@link PacketManager}
+   * @throws NullPointerException       if the packet is not registered in the {@link PacketManager}
+   * @throws RejectedExecutionException if the send queue is full and its policy is {@link
+   *                                    OverflowPolicy#FAIL}
    */
   public void sendPacket(final @NonNull Packet packet) throws NullPointerException {
     sendPacket(packet, true);
@@ -146,39 +354,83 @@ public final class MessagingService {
 
   /**
    * Sends a packet <strong>synchronously/asynchronously</strong> depending on the {@code async} param If there's an
-   * exception during sending, it won't be able to handled it properly
+   * exception during sending, it won't be able to handled it properly. Only asynchronous packets are batched,
+   * except the service's own control packets
+   * <p>
+   * Asynchronous packets go through a bounded send queue. When it's full, the {@link OverflowPolicy}
+   * set in {@link Builder#sendQueue(int, int, OverflowPolicy)} decides what happens to the packet
    *
    * @param packet The {@link Packet} to be sent
    * @param async  Whether the {@link Packet} should be sent asynchronously or not
-   * @throws NullPointerException if the packet is not registered in the {@link PacketManager}
+   * @throws NullPointerException       if the packet is not registered in the {@link PacketManager}
+   * @throws RejectedExecutionException if the send queue is full and its policy is {@link
+   *                                    OverflowPolicy#FAIL}
    */
   public void sendPacket(final @NonNull Packet packet, boolean async) throws NullPointerException {
     shutdownLock.readLock().lock();
-    final Executor executor = async ? executorService : MoreExecutors.directExecutor();
     try {
-      final String packetType = packetManager.id(packet);
-      if (packetType == null) {
-        throw new IllegalStateException(
-            "Packet " + packet.getClass().getSimpleName() + " is not registered!");
-      }
+      final PacketType<?> packetType = sendableType(packet);
+      final long queuedAt = System.nanoTime();
+      final Runnable task = () -> {
+        if (sendLocally(packet, packetType, null)) {
+          return;
+        }
+
+        if (async && batcher != null && !isControlPacket(packet)) {
+          try {
+            batcher.add(packet, packetType, queuedAt);
+          } catch (Exception ex) {
+            logger.error("error batching packet " + packet, ex);
+          }
+          return;
+        }
 
-      executor.execute(() -> {
-        final ByteBuf buf = ALLOCATOR.buffer(getInitialCapacity());
         try {
-          // write serverId and packetId
-          PacketUtils.writeUuid(buf, this.serverId);
+          publishPacket(packet, packetType, null, null, queuedAt);
+        } catch (Exception ex) {
+          logger.error("error sending packet " + packet + " to broker", ex);
+        }
+      };
+
+      if (async) {
+        submitRetained(packet, task);
+      } else {
+        task.run();
+      }
+    } finally {
+      shutdownLock.readLock().unlock();
+    }
+  }
 
-          // write packetType and the actual packet
-          PacketUtils.writeString(buf, packetType);
-          packet.write(buf);
+  /**
+   * Sends a packet <strong>asynchronously</strong> to a single node. Brokers with per-node channels
+   * only deliver it to the target, see {@link MessagingBroker#sendMessage(byte[], UUID)}. Unicast
+   * packets are never batched
+   *
+   * @param packet The {@link Packet} to be sent
+   * @param target The server ID of the node receiving the packet
+   * @throws IllegalStateException      if the packet is not registered in the {@link PacketManager}
+   * @throws RejectedExecutionException if the send queue is full and its policy is {@link
+   *                                    OverflowPolicy#FAIL}
+   */
+  public void sendPacket(final @NonNull Packet packet, final @NonNull UUID target)
+      throws IllegalStateException {
+    shutdownLock.readLock().lock();
+    try {
+      final PacketType<?> packetType = sendableType(packet);
+      final long queuedAt = System.nanoTime();
+      submitRetained(packet, () -> {
+        if (sendLocally(packet, packetType, target)) {
+          return;
+        }
 
-          final byte[] data = compression.compress(buf);
-          broker.sendMessage(data);
+        try {
+          publishPacket(packet, packetType, buf -> {
+            writeFrameMarker(buf, FRAME_UNICAST);
+            PacketUtils.writeUuid(buf, target);
+          }, target, queuedAt);
         } catch (Exception ex) {
-          logger.error("error sending packet " + packet + " to broker", ex);
-        } finally {
-          addCapacity(buf.writerIndex());
-          buf.release();
+          logger.error("error sending packet " + packet + " to " + target, ex);
         }
       });
     } finally {
@@ -187,36 +439,872 @@ public final class MessagingService {
   }
 
   /**
-   * Decodes and handles the {@link Packet}
+   * Sends a request <strong>asynchronously</strong> and waits for its response. The request is
+   * received by every node, and the future is completed with the first response. Requests are never
+   * batched
+   *
+   * @param <R>          class that extends {@link Packet}
+   * @param packet       The request
+   * @param responseType The class of the expected response
+   * @param timeout      The time to wait for the response
+   * @param unit         The unit of {@code timeout}
+   * @return a future completed with the response, or with a {@link java.util.concurrent.TimeoutException}
+   * if there's no response in time
+   * @throws IllegalStateException if the request or response packets are not registered in the
+   *                               {@link PacketManager}
+   */
+  public <R extends Packet> @NonNull CompletableFuture<R> request(final @NonNull Packet packet,
+      final @NonNull Class<R> responseType, long timeout, final @NonNull TimeUnit unit)
+      throws IllegalStateException {
+    shutdownLock.readLock().lock();
+    try {
+      final PacketType<?> packetType = sendableType(packet);
+      if (!packetManager.isRegistered(responseType)) {
+        throw new IllegalStateException(
+            "Packet " + responseType.getSimpleName() + " is not registered!");
+      }
+
+      final PendingRequests.Request<R> request;
+      try {
+        request = pendingRequests.add(responseType, timeout, unit);
+      } catch (RejectedExecutionException ex) {
+        return CompletableFuture.failedFuture(ex);
+      }
+
+      final long queuedAt = System.nanoTime();
+      try {
+        submitRetained(packet, () -> {
+          try {
+            publishPacket(packet, packetType, buf -> {
+              writeFrameMarker(buf, FRAME_REQUEST);
+              PacketUtils.writeVarInt(buf, request.id());
+            }, null, queuedAt);
+          } catch (Exception ex) {
+            pendingRequests.fail(request, ex);
+          }
+        });
+      } catch (RejectedExecutionException ex) {
+        pendingRequests.fail(request, ex);
+      }
+      return request;
+    } finally {
+      shutdownLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Registers the responder of a request type. It's called in the thread handling the request,
+   * after the listeners, and the response it returns is sent only to the requester
+   *
+   * @param <Q>         class that extends {@link Packet}
+   * @param requestType The class of the requests
+   * @param responder   A function returning the response to a request, or {@code null} to not
+   *                    respond
+   * @throws IllegalArgumentException if the request type already has a responder
+   */
+  public <Q extends Packet> void registerResponder(final @NonNull Class<Q> requestType,
+      final @NonNull Function<? super Q, ? extends @Nullable Packet> responder)
+      throws IllegalArgumentException {
+    if (responders.putIfAbsent(requestType,
+        request -> responder.apply(requestType.cast(request))) != null) {
+      throw new IllegalArgumentException(
+          "Request " + requestType.getSimpleName() + " already has a responder.");
+    }
+    updateSubscriptions();
+  }
+
+  /**
+   * Un-registers the responder of a request type
+   *
+   * @param requestType The class of the requests
+   */
+  public void unregisterResponder(final @NonNull Class<? extends Packet> requestType) {
+    responders.remove(requestType);
+    updateSubscriptions();
+  }
+
+  /**
+   * Subscribes to the subjects of the packet types with a listener or a responder, and unsubscribes
+   * from the rest. Only used with {@link Builder#packetSubjects(boolean) packet subjects}
+   */
+  private synchronized void updateSubscriptions() {
+    if (!packetSubjects || !brokerReady) {
+      return;
+    }
+
+    subscribedVersion = packetManager.version();
+    final Set<String> packetTypes = listeners.packetTypes();
+    for (final Class<? extends Packet> requestType : responders.keySet()) {
+      final PacketType<?> packetType = packetManager.type(requestType);
+      if (packetType != null) {
+        packetTypes.add(packetType.id());
+      }
+    }
+
+    subscribedTypes.removeIf(packetType -> {
+      if (packetTypes.contains(packetType)) {
+        return false;
+      }
+      broker.unsubscribe(packetType);
+      return true;
+    });
+    for (final String packetType : packetTypes) {
+      if (subscribedTypes.add(packetType)) {
+        broker.subscribe(packetType);
+      }
+    }
+  }
+
+  /**
+   * Queues a send task of a packet. A {@link PooledPacket}, e.g. a received packet forwarded by a
+   * listener or returned by a responder, is retained until the task serialized it, so it isn't
+   * reused before. If the queue drops the task, the packet is simply never returned to its pool
+   */
+  private void submitRetained(final @NonNull Packet packet, final @NonNull Runnable task) {
+    if (!(packet instanceof PooledPacket)) {
+      sendQueue.submit(task);
+      return;
+    }
+
+    final PooledPacket pooled = (PooledPacket) packet;
+    pooled.retain();
+    try {
+      sendQueue.submit(() -> {
+        try {
+          task.run();
+        } finally {
+          pooled.release();
+        }
+      });
+    } catch (RuntimeException ex) {
+      pooled.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns the type of a packet that is about to be sent, announcing our packet table if it
+   * changed
+   */
+  private @NonNull PacketType<?> sendableType(final @NonNull Packet packet) {
+    final PacketType<?> packetType = packetManager.type(packet);
+    if (packetType == null) {
+      throw new IllegalStateException(
+          "Packet " + packet.getClass().getSimpleName() + " is not registered!");
+    }
+
+    if (packetManager.idFormat() == IdFormat.NUMERIC
+        && announcedVersion != packetManager.version()) {
+      announcePacketTable(false);
+    }
+    if (packetSubjects && subscribedVersion != packetManager.version()) {
+      // packets registered after their listeners
+      updateSubscriptions();
+    }
+    return packetType;
+  }
+
+  /**
+   * Hands a packet to the broker without serializing it, if the broker supports it. See {@link
+   * MessagingBroker#sendPacket(Packet, String, UUID)}
+   */
+  private boolean sendLocally(final @NonNull Packet packet, final @NonNull PacketType<?> packetType,
+      final @Nullable UUID target) {
+    try {
+      if (!broker.sendPacket(packet, packetType.id(), target)) {
+        return false;
+      }
+      metrics.packetType(packetType.id()).recordSentLocally();
+      return true;
+    } catch (Exception ex) {
+      logger.error("error sending packet " + packet + " to broker", ex);
+      return true;
+    }
+  }
+
+  /**
+   * Encodes and publishes a single packet
+   *
+   * @param marker   Writes the frame marker, if any, between the header and the packet type
+   * @param target   The server ID of the node receiving the packet, or {@code null} to send it to
+   *                 every node
+   * @param queuedAt The {@link System#nanoTime()} at which the packet was sent
+   */
+  private void publishPacket(final @NonNull Packet packet, final @NonNull PacketType<?> packetType,
+      final @Nullable Consumer<ByteBuf> marker, final @Nullable UUID target, long queuedAt) {
+    // packets with a codec know their size, the rest use the usual size of their frames
+    final int size = packetType.size(packet);
+    final ByteBuf buf = ALLOCATOR.buffer(size < 0 ? packetType.sizeEstimator().estimate()
+        : MAX_HEADER_SIZE + packetType.id().length() + size);
+    try {
+      // write serverId and packetId
+      writeHeader(buf, queuedAt);
+      if (marker != null) {
+        marker.accept(buf);
+      }
+
+      // write packetType and the actual packet
+      final int start = buf.writerIndex();
+      final long encodeStart = System.nanoTime();
+      writePacketType(buf, packet, packetType);
+      packetType.write(packet, buf);
+      final PacketTypeMetrics typeMetrics = metrics.packetType(packetType.id());
+      typeMetrics.recordEncoded(buf.writerIndex() - start, System.nanoTime() - encodeStart);
+      typeMetrics.recordSendQueue(encodeStart - queuedAt);
+
+      publish(buf, packetType.id(), target);
+    } finally {
+      packetType.sizeEstimator().record(buf.writerIndex());
+      buf.release();
+    }
+  }
+
+  /**
+   * Decodes and handles the {@link Packet}. The {@code message} is wrapped, not copied
    *
    * @param message The raw bytes of a {@link Packet} newInstance from a {@link MessagingBroker}
    */
   public void handleMessage(byte[] message) {
-    final ByteBuf buf = compression.decompress(message);
+    handleMessage(Unpooled.wrappedBuffer(message));
+  }
+
+  /**
+   * Decodes and handles a batch of messages, returning once their packets have been dispatched to
+   * the listeners, including the ones handled by the {@link Builder#receivePipeline(int, int,
+   * ReceiveOrdering) receive pipeline}. Brokers that acknowledge the messages they receive must
+   * hand them over with this method, and acknowledge them only as it returns
+   *
+   * @param messages The raw bytes of the messages, in the order they were received
+   * @return the indexes of the messages that can't be decoded yet (see {@link
+   * DictionaryPendingException}), which must be left unacknowledged to be redelivered later. {@code
+   * null} if the service was closed or the thread interrupted before every packet was dispatched,
+   * so no message must be acknowledged
+   */
+  public @Nullable BitSet handleMessages(final @NonNull List<byte @NonNull []> messages) {
+    final BitSet deferred = new BitSet();
+    for (int i = 0; i < messages.size(); i++) {
+      if (!handleMessage0(Unpooled.wrappedBuffer(messages.get(i)))) {
+        deferred.set(i);
+      }
+    }
+    if (receivePipeline == null) {
+      return deferred;
+    }
+
     try {
-      final UUID sender = PacketUtils.readUuid(buf);
-      if (sender.equals(serverId) && !DEBUG) {
-        // we've sent this packet, no need to handle it
-        return;
+      return receivePipeline.drain() ? deferred : null;
+    } catch (RejectedExecutionException ex) {
+      return null;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Decodes and handles the {@link Packet}. The caller keeps the ownership of {@code message}, but
+   * it must not modify it, since it may be handled by the receive pipeline after this method returns
+   *
+   * @param message The readable bytes of a {@link Packet} newInstance from a {@link MessagingBroker}
+   */
+  public void handleMessage(final @NonNull ByteBuf message) {
+    handleMessage0(message);
+  }
+
+  /**
+   * @return {@code false} if the message needs a compression dictionary we haven't received yet
+   */
+  private boolean handleMessage0(final @NonNull ByteBuf message) {
+    final int frameBytes = message.readableBytes();
+    final long decodeStart = System.nanoTime();
+    final ByteBuf buf;
+    try {
+      buf = compression.decode(message);
+    } catch (DictionaryPendingException ex) {
+      warnDictionaryPending(ex);
+      return false;
+    } catch (Exception ex) {
+      metrics.recordInvalidMessage();
+      logger.error("error decompressing packet", ex);
+      return true;
+    }
+    metrics.recordDecompress(System.nanoTime() - decodeStart);
+
+    boolean queued = false;
+    try {
+      final Object sender;
+      final @Nullable Node node;
+      // the alias of the sender in alias mode, so we can respond to its requests
+      final int senderKey;
+      if (nodeAliases) {
+        final int senderAlias = PacketUtils.readVarInt(buf);
+        if (senderAlias == this.alias && !DEBUG) {
+          // we've sent this packet, no need to handle it
+          return true;
+        }
+
+        node = nodes.node(senderAlias);
+        if (node == null) {
+          requestAliases();
+        }
+        sender = node == null ? "#" + senderAlias : node;
+        senderKey = senderAlias;
+      } else {
+        final UUID senderId = PacketUtils.readUuid(buf);
+        if (senderId.equals(serverId) && !DEBUG) {
+          // we've sent this packet, no need to handle it
+          return true;
+        }
+
+        node = nodes.node(senderId);
+        sender = node;
+        senderKey = senderId.hashCode();
       }
 
-      final String packetType = PacketUtils.readString(buf);
-      final Packet packet = packetManager.newInstance(packetType);
-      if (packet == null) {
-        logger.warn("Received an unknown packet from {} (PacketType={})", sender, packetType);
-        return;
+      if (node != null) {
+        node.seen(decodeStart);
       }
-      packet.read(buf);
+      removeInactiveNodes(decodeStart);
 
-      eventBus.post(packet);
-      if (DEBUG) {
-        logger.info("received packet {}", packet);
+      final long sentAt = sendTimestamps ? buf.readLong() : 0;
+      if (deduplicationWindow != 0) {
+        final long sequence = PacketUtils.readVarLong(buf);
+        // frames of unknown aliases can't be checked until the sender announces itself
+        if (node != null && !node.sequences(deduplicationWindow).accept(sequence)) {
+          metrics.recordDuplicateMessage();
+          return true;
+        }
+      }
+
+      final Frame frame = new Frame(node, sender, senderKey, frameBytes, sentAt, decodeStart);
+      if (receivePipeline == null || receivePipeline.ordering() != ReceiveOrdering.SENDER) {
+        handleFrame(buf, frame);
+        return true;
       }
+
+      receivePipeline.submit(senderKey, () -> {
+        try {
+          handleFrame(buf, frame);
+        } catch (Exception ex) {
+          metrics.recordInvalidMessage();
+          logger.error("error handling packet", ex);
+        } finally {
+          buf.release();
+        }
+      });
+      queued = true;
     } catch (Exception ex) {
+      metrics.recordInvalidMessage();
       logger.error("error handling packet", ex);
     } finally {
-      buf.release();
+      if (!queued) {
+        buf.release();
+      }
     }
+    return true;
+  }
+
+  /**
+   * Handles a {@link Packet} delivered without serialization by a broker in the same JVM. The
+   * packet instance is shared by every receiver, so listeners must not modify it
+   * <p>
+   * The broker must {@link PooledPacket#retain()} a {@link PooledPacket} for every receiver, this
+   * method releases it once its listeners handled it
+   *
+   * @param packet   The packet
+   * @param senderId The server ID of the {@link MessagingService} that sent it
+   */
+  public void handleLocalPacket(final @NonNull Packet packet, final @NonNull UUID senderId) {
+    boolean queued = false;
+    try {
+      queued = handleLocalPacket0(packet, senderId);
+    } finally {
+      if (!queued && packet instanceof PooledPacket) {
+        ((PooledPacket) packet).release();
+      }
+    }
+  }
+
+  /**
+   * @return whether the packet was queued in the receive pipeline, which releases it
+   */
+  private boolean handleLocalPacket0(final @NonNull Packet packet, final @NonNull UUID senderId) {
+    if (senderId.equals(serverId) && !DEBUG) {
+      // we've sent this packet, no need to handle it
+      return false;
+    }
+
+    final PacketType<?> packetType = packetManager.type(packet);
+    if (packetType == null) {
+      metrics.recordUnknownPacket();
+      logger.warn("Received an unknown packet from {} (PacketType={})", senderId,
+          packet.getClass().getSimpleName());
+      return false;
+    }
+    metrics.packetType(packetType.id()).recordReceivedLocally();
+
+    if (receivePipeline == null) {
+      dispatch(packetType, packet, null);
+      return false;
+    }
+
+    final int senderKey = senderId.hashCode();
+    final int key = receivePipeline.ordering() == ReceiveOrdering.PACKET_KEY
+        ? 31 * senderKey + packet.orderingKey() : senderKey;
+    try {
+      receivePipeline.submit(key, () -> {
+        try {
+          dispatch(packetType, packet, null);
+        } finally {
+          if (packet instanceof PooledPacket) {
+            ((PooledPacket) packet).release();
+          }
+        }
+      });
+      return true;
+    } catch (Exception ex) {
+      logger.error("error handling packet", ex);
+      return false;
+    }
+  }
+
+  private void handleFrame(final @NonNull ByteBuf buf, final @NonNull Frame frame) {
+    switch (readFrameMarker(buf)) {
+      case 0:
+        handlePacket(buf, frame, true, NO_REQUEST);
+        break;
+      case FRAME_BATCH: {
+        // the type of the batch, for its compressed size
+        String frameType = null;
+        while (buf.isReadable()) {
+          final ByteBuf slice = buf.readSlice(PacketUtils.readVarInt(buf));
+          try {
+            final PacketType<?> packetType = handlePacket(slice, frame, false, NO_REQUEST);
+            final String id = packetType == null ? null : packetType.id();
+            frameType = id != null && (frameType == null || frameType.equals(id)) ? id
+                : MessagingCompression.MIXED_TYPE;
+          } catch (Exception ex) {
+            metrics.recordInvalidMessage();
+            logger.error("error handling batched packet", ex);
+          }
+        }
+        if (frameType != null) {
+          metrics.packetType(frameType).recordConsumed(frame.size);
+        }
+        break;
+      }
+      case FRAME_REQUEST: {
+        handlePacket(buf, frame, true, PacketUtils.readVarInt(buf));
+        break;
+      }
+      case FRAME_RESPONSE: {
+        final int id = PacketUtils.readVarInt(buf);
+        if (!readTarget(buf)) {
+          // the response is for another node
+          return;
+        }
+
+        final int start = buf.readerIndex();
+        final long decodeStart = System.nanoTime();
+        final PacketType<?> packetType = readPacketType(buf, frame);
+        if (packetType == null) {
+          return;
+        }
+
+        final Packet response = packetType.read(buf);
+        final PacketTypeMetrics typeMetrics = metrics.packetType(packetType.id());
+        typeMetrics.recordDecoded(buf.readerIndex() - start, System.nanoTime() - decodeStart);
+        typeMetrics.recordConsumed(frame.size);
+        if (!pendingRequests.complete(id, response) && DEBUG) {
+          logger.info("received late response {}", response);
+        }
+        break;
+      }
+      case FRAME_UNICAST:
+        if (PacketUtils.readUuid(buf).equals(serverId)) {
+          handlePacket(buf, frame, true, NO_REQUEST);
+        }
+        break;
+      default:
+        metrics.recordInvalidMessage();
+        logger.warn("Received an unknown frame from {}", frame.sender);
+    }
+  }
+
+  /**
+   * @param whole     Whether the packet is the whole frame, i.e. it isn't part of a batch
+   * @param requestId The correlation ID if the packet is a request, or {@link #NO_REQUEST}
+   * @return the type of the packet, or {@code null} if it's unknown
+   */
+  private @Nullable PacketType<?> handlePacket(final @NonNull ByteBuf buf,
+      final @NonNull Frame frame, boolean whole, int requestId) {
+    final int start = buf.readerIndex();
+    final long decodeStart = System.nanoTime();
+    final PacketType<?> packetType = readPacketType(buf, frame);
+    if (packetType == null) {
+      return null;
+    }
+
+    final Packet packet = packetType.read(buf);
+    final PacketTypeMetrics typeMetrics = metrics.packetType(packetType.id());
+    typeMetrics.recordDecoded(buf.readerIndex() - start, System.nanoTime() - decodeStart);
+    if (whole) {
+      typeMetrics.recordConsumed(frame.size);
+    }
+
+    if (receivePipeline != null && receivePipeline.ordering() == ReceiveOrdering.PACKET_KEY) {
+      receivePipeline.submit(31 * frame.senderKey + packet.orderingKey(),
+          () -> handleDecoded(packetType, packet, frame, requestId));
+    } else {
+      handleDecoded(packetType, packet, frame, requestId);
+    }
+    return packetType;
+  }
+
+  /**
+   * Dispatches a decoded packet and responds to it if it's a request. {@link PooledPacket}s are
+   * returned to their pool afterwards, unless a listener retained them
+   */
+  private void handleDecoded(final @NonNull PacketType<?> packetType, final @NonNull Packet packet,
+      final @NonNull Frame frame, int requestId) {
+    try {
+      dispatch(packetType, packet, frame);
+      if (requestId != NO_REQUEST) {
+        respond(packet, requestId, frame);
+      }
+    } finally {
+      if (packet instanceof PooledPacket) {
+        ((PooledPacket) packet).release();
+      }
+    }
+  }
+
+  private void respond(final @NonNull Packet request, int id, final @NonNull Frame frame) {
+    final Function<Packet, @Nullable Packet> responder = responders.get(request.getClass());
+    if (responder == null) {
+      return;
+    }
+
+    final Packet response = responder.apply(request);
+    if (response == null) {
+      return;
+    }
+
+    final PacketType<?> packetType = sendableType(response);
+    final long queuedAt = System.nanoTime();
+    final Node node = frame.node;
+    submitRetained(response, () -> {
+      try {
+        publishPacket(response, packetType, buf -> {
+          writeFrameMarker(buf, FRAME_RESPONSE);
+          PacketUtils.writeVarInt(buf, id);
+          if (nodeAliases) {
+            PacketUtils.writeVarInt(buf, frame.senderKey);
+          } else {
+            PacketUtils.writeUuid(buf, node.serverId());
+          }
+        }, node == null ? null : node.serverId(), queuedAt);
+      } catch (Exception ex) {
+        logger.error("error sending response " + response + " to broker", ex);
+      }
+    });
+  }
+
+  /**
+   * Reads the target of a response
+   *
+   * @return whether the response is for us
+   */
+  private boolean readTarget(final @NonNull ByteBuf buf) {
+    if (nodeAliases) {
+      return PacketUtils.readVarInt(buf) == this.alias;
+    }
+    return PacketUtils.readUuid(buf).equals(serverId);
+  }
+
+  /**
+   * Calls the listeners of a packet
+   *
+   * @param frame The frame containing the packet, or {@code null} if it wasn't serialized
+   */
+  private void dispatch(final @NonNull PacketType<?> packetType, final @NonNull Packet packet,
+      final @Nullable Frame frame) {
+    final PacketTypeMetrics typeMetrics = metrics.packetType(packetType.id());
+    final long start = System.nanoTime();
+    if (frame != null) {
+      typeMetrics.recordReceiveQueue(start - frame.receivedAt);
+      if (frame.sentAt != 0) {
+        metrics.recordDelivery(packetType.id(), frame.node == null ? null : frame.node.serverId(),
+            TimeUnit.MICROSECONDS.toNanos(epochMicros() - frame.sentAt));
+      }
+    }
+
+    listeners.dispatch(packetType, packet);
+    typeMetrics.recordDispatch(System.nanoTime() - start);
+    if (DEBUG) {
+      logger.info("received packet {}", packet);
+    }
+  }
+
+  /**
+   * Compresses and sends a frame through the broker. The caller keeps the ownership of {@code frame}
+   */
+  void publish(final @NonNull ByteBuf frame, final @NonNull String packetType) {
+    publish(frame, packetType, null);
+  }
+
+  /**
+   * Compresses and sends a frame through the broker, to a single node if {@code target} is not
+   * {@code null}. The caller keeps the ownership of {@code frame}
+   * <p>
+   * With the outbox enabled, the frame is spooled instead if the broker isn't available, fails to
+   * send it, or there are older frames waiting in the outbox
+   */
+  private void publish(final @NonNull ByteBuf frame, final @NonNull String packetType,
+      final @Nullable UUID target) {
+    final long compressStart = System.nanoTime();
+    final ByteBuf data = compression.encode(frame, packetType);
+    final long publishStart = System.nanoTime();
+    metrics.recordCompress(publishStart - compressStart);
+    try {
+      metrics.packetType(packetType).recordPublished(data.readableBytes());
+      if (outbox != null && (outbox.spooling() || !broker.isAvailable())) {
+        outbox.append(data, packetType, target);
+        return;
+      }
+
+      try {
+        send(data, packetType, target);
+      } catch (RuntimeException ex) {
+        if (outbox == null) {
+          throw ex;
+        }
+        // the drain thread retries it once the broker is back
+        outbox.append(data, packetType, target);
+        return;
+      }
+      metrics.recordBrokerPublish(System.nanoTime() - publishStart);
+    } finally {
+      data.release();
+    }
+  }
+
+  /**
+   * Sends a compressed frame through the broker, to the subject of its packet type when using
+   * packet subjects. The caller keeps the ownership of {@code data}
+   */
+  private void send(final @NonNull ByteBuf data, final @NonNull String packetType,
+      final @Nullable UUID target) {
+    if (target == null && packetSubjects
+        && !packetType.equals(MessagingCompression.MIXED_TYPE)) {
+      broker.sendMessage(data, packetType);
+    } else if (target == null) {
+      broker.sendMessage(data);
+    } else {
+      broker.sendMessage(data, target);
+    }
+  }
+
+  /**
+   * Writes the sender of a frame and, if enabled, its send timestamp
+   *
+   * @param queuedAt The {@link System#nanoTime()} at which the (first) packet of the frame was sent
+   */
+  void writeHeader(final @NonNull ByteBuf buf, long queuedAt) {
+    if (nodeAliases) {
+      PacketUtils.writeVarInt(buf, this.alias);
+    } else {
+      PacketUtils.writeUuid(buf, this.serverId);
+    }
+
+    if (sendTimestamps) {
+      // the wall-clock time of sendPacket, which unlike nanoTime is comparable between nodes
+      buf.writeLong(epochMicros() - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAt));
+    }
+
+    if (deduplicationWindow != 0) {
+      PacketUtils.writeVarLong(buf, sequence.getAndIncrement());
+    }
+  }
+
+  /**
+   * @return the wall-clock time, in microseconds since the epoch
+   */
+  private static long epochMicros() {
+    final Instant now = Instant.now();
+    return TimeUnit.SECONDS.toMicros(now.getEpochSecond())
+        + TimeUnit.NANOSECONDS.toMicros(now.getNano());
+  }
+
+  /**
+   * Writes an empty {@link String} packet type, which no packet can have, followed by the kind of
+   * frame
+   *
+   * @param kind One of {@link #FRAME_BATCH}, {@link #FRAME_REQUEST}, {@link #FRAME_RESPONSE} or
+   *             {@link #FRAME_UNICAST}
+   */
+  void writeFrameMarker(final @NonNull ByteBuf buf, int kind) {
+    if (packetManager.idFormat() == IdFormat.NUMERIC) {
+      PacketUtils.writeVarInt(buf, 0);
+    }
+    PacketUtils.writeVarInt(buf, 0);
+    buf.writeByte(kind);
+  }
+
+  /**
+   * Reads the frame marker, if any
+   *
+   * @return the kind of frame, or {@code 0} if there's no frame marker
+   */
+  private int readFrameMarker(final @NonNull ByteBuf buf) {
+    final int size = packetManager.idFormat() == IdFormat.NUMERIC ? 2 : 1;
+    final int index = buf.readerIndex();
+    if (!buf.isReadable(size + 1) || buf.getByte(index) != 0
+        || buf.getByte(index + size - 1) != 0) {
+      return 0;
+    }
+
+    buf.skipBytes(size);
+    return buf.readUnsignedByte();
+  }
+
+  /**
+   * Whether the packet is sent by the service itself, and must not wait in a batch nor be
+   * compressed along with the application's packets
+   */
+  private static boolean isControlPacket(final @NonNull Packet packet) {
+    return packet instanceof PacketTablePacket || packet instanceof NodeAliasPacket
+        || packet instanceof ZStdDictionaryPacket || packet instanceof ZStdDictionaryRequestPacket;
+  }
+
+  void writePacketType(final @NonNull ByteBuf buf, final @NonNull Packet packet,
+      final @NonNull PacketType<?> packetType) {
+    if (packetManager.idFormat() == IdFormat.STRING) {
+      PacketUtils.writeString(buf, packetType.id());
+    } else if (isControlPacket(packet)) {
+      // peers can't translate our numeric IDs before receiving the table
+      PacketUtils.writeVarInt(buf, 0);
+      PacketUtils.writeString(buf, packetType.id());
+    } else {
+      PacketUtils.writeVarInt(buf, packetType.numericId() + 1);
+    }
+  }
+
+  private @Nullable PacketType<?> readPacketType(final @NonNull ByteBuf buf,
+      final @NonNull Frame frame) {
+    final Object sender = frame.sender;
+    if (packetManager.idFormat() == IdFormat.STRING) {
+      final String id = PacketUtils.readString(buf);
+      final PacketType<?> packetType = packetManager.type(id);
+      if (packetType == null) {
+        metrics.recordUnknownPacket();
+        logger.warn("Received an unknown packet from {} (PacketType={})", sender, id);
+      }
+      return packetType;
+    }
+
+    final int numericId = PacketUtils.readVarInt(buf) - 1;
+    if (numericId == -1) {
+      final String id = PacketUtils.readString(buf);
+      final PacketType<?> packetType = packetManager.type(id);
+      if (packetType == null) {
+        metrics.recordUnknownPacket();
+        logger.warn("Received an unknown packet from {} (PacketType={})", sender, id);
+      }
+      return packetType;
+    }
+
+    // the sender may have registered other packets, its IDs mean nothing until we get its table
+    final Node node = frame.node;
+    if (node == null || !node.tableReceived()) {
+      metrics.recordUnknownPacket();
+      requestPacketTables(sender);
+      return null;
+    }
+
+    final int[] translation = node.translation();
+    final int localId = translation == null ? numericId
+        : numericId < translation.length ? translation[numericId] : -1;
+    final PacketType<?> packetType = packetManager.type(localId);
+    if (packetType == null) {
+      metrics.recordUnknownPacket();
+      logger.warn("Received an unknown packet from {} (PacketType=#{})", sender, numericId);
+    }
+    return packetType;
+  }
+
+  private void announcePacketTable(boolean reply) {
+    announcedVersion = packetManager.version();
+    sendPacket(new PacketTablePacket(serverId, reply, packetManager.table()));
+  }
+
+  private void announceAlias(boolean reply) {
+    sendPacket(new NodeAliasPacket(serverId, alias, reply));
+  }
+
+  /**
+   * Asks every node to announce its packet table, at most once every {@link
+   * #TABLE_REQUEST_INTERVAL}
+   *
+   * @param sender The node whose packets are dropped until it announces its table
+   */
+  private void requestPacketTables(final @NonNull Object sender) {
+    final long now = System.nanoTime();
+    if (now - lastTableRequest < TABLE_REQUEST_INTERVAL) {
+      return;
+    }
+
+    lastTableRequest = now;
+    logger.warn("Dropping the packets of {} until it announces its packet table", sender);
+    announcePacketTable(true);
+  }
+
+  /**
+   * Logs that messages wait for a compression dictionary, at most once every {@link
+   * #WARN_INTERVAL}
+   */
+  private void warnDictionaryPending(final @NonNull DictionaryPendingException ex) {
+    final long now = System.nanoTime();
+    if (now - lastDictionaryWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastDictionaryWarning = now;
+    logger.warn("Received messages compressed with the unknown dictionary {}, waiting for it",
+        ex.dictionaryId());
+  }
+
+  /**
+   * Forgets the nodes inactive for {@link #NODE_TIMEOUT}, at most once every {@link
+   * #NODE_EVICTION_INTERVAL}
+   */
+  private void removeInactiveNodes(long now) {
+    if (now - lastNodeEviction < NODE_EVICTION_INTERVAL) {
+      return;
+    }
+
+    lastNodeEviction = now;
+    final List<Node> removed = nodes.removeInactive(NODE_TIMEOUT, now);
+    for (final Node node : removed) {
+      metrics.removeSender(node.serverId());
+    }
+    if (!removed.isEmpty()) {
+      logger.info("Forgot {} nodes inactive for {} minutes", removed.size(),
+          TimeUnit.NANOSECONDS.toMinutes(NODE_TIMEOUT));
+    }
+  }
+
+  /**
+   * Asks every node to announce its alias, at most once every {@link #ALIAS_REQUEST_INTERVAL}
+   */
+  private void requestAliases() {
+    final long now = System.nanoTime();
+    if (now - lastAliasRequest < ALIAS_REQUEST_INTERVAL) {
+      return;
+    }
+
+    lastAliasRequest = now;
+    announceAlias(true);
   }
 
   public @NonNull Logger logger() {
@@ -235,28 +1323,355 @@ public final class MessagingService {
     return this.serviceName;
   }
 
-  private int getInitialCapacity() {
-    capacityLock.readLock().lock();
-    try {
-      return capacity;
-    } finally {
-      capacityLock.readLock().unlock();
+  /**
+   * @return whether every packet type is published to its own subject. See {@link
+   * Builder#packetSubjects(boolean)}
+   */
+  public boolean packetSubjects() {
+    return this.packetSubjects;
+  }
+
+  /**
+   * @return the metrics of this service
+   */
+  public @NonNull MessagingMetrics metrics() {
+    return this.metrics;
+  }
+
+  /**
+   * @return the approximate number of asynchronous packets waiting to be sent
+   */
+  public int sendQueueSize() {
+    return sendQueue.size();
+  }
+
+  /**
+   * @return the number of asynchronous packets dropped because the send queue was full
+   */
+  public long droppedPackets() {
+    return sendQueue.dropped();
+  }
+
+  /**
+   * @return the number of asynchronous packets rejected because the send queue was full
+   */
+  public long rejectedPackets() {
+    return sendQueue.rejected();
+  }
+
+  /**
+   * @return the size, in bytes, of the messages waiting in the outbox to be sent, or {@code 0} if
+   * the outbox is disabled
+   */
+  public long outboxBytes() {
+    return outbox == null ? 0 : outbox.pendingBytes();
+  }
+
+  /**
+   * @return the time, in nanoseconds, the last message of each shard of the receive pipeline waited
+   * to be handled. Empty if the pipeline is disabled
+   */
+  public long @NonNull [] receiveLag() {
+    if (receivePipeline == null) {
+      return new long[0];
+    }
+
+    final long[] lag = new long[receivePipeline.shards()];
+    for (int i = 0; i < lag.length; i++) {
+      lag[i] = receivePipeline.lag(i);
     }
+    return lag;
   }
 
-  private void addCapacity(final int newCapacity) {
-    int current = currentCapacity.getAndIncrement();
-    if (current < 150) {
-      capacities[current] = newCapacity;
-    } else {
-      capacityLock.writeLock().lock();
-      try {
-        capacity = percentile(capacities, 80);
-        currentCapacity.set(0);
-      } finally {
-        capacityLock.writeLock().unlock();
+  /**
+   * @return the approximate number of messages queued in each shard of the receive pipeline. Empty
+   * if the pipeline is disabled
+   */
+  public int @NonNull [] receiveQueueSizes() {
+    if (receivePipeline == null) {
+      return new int[0];
+    }
+
+    final int[] sizes = new int[receivePipeline.shards()];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = receivePipeline.size(i);
+    }
+    return sizes;
+  }
+
+  /**
+   * The sender and timing of a received frame, shared by the packets it contains
+   */
+  private static final class Frame {
+
+    private final @Nullable Node node;
+    private final @NonNull Object sender;
+    private final int senderKey;
+    private final int size;
+    // the send timestamp in microseconds since the epoch, or 0 if disabled
+    private final long sentAt;
+    // the nanoTime at which the broker handed us the frame
+    private final long receivedAt;
+
+    private Frame(final @Nullable Node node, final @NonNull Object sender, int senderKey, int size,
+        long sentAt, long receivedAt) {
+      this.node = node;
+      this.sender = sender;
+      this.senderKey = senderKey;
+      this.size = size;
+      this.sentAt = sentAt;
+      this.receivedAt = receivedAt;
+    }
+
+  }
+
+  private final class InternalListener {
+
+    @Subscribe
+    public void onPacketTable(final @NonNull PacketTablePacket packet) {
+      final int[] translation = packetManager.translation(packet.table());
+      nodes.node(packet.serverId()).translation(translation);
+      if (translation != null) {
+        logger.warn("The packet table of {} differs from ours, translating its packet IDs",
+            packet.serverId());
+      }
+
+      if (packet.reply() && packetManager.idFormat() == IdFormat.NUMERIC) {
+        announcePacketTable(false);
       }
     }
+
+    @Subscribe
+    public void onNodeAlias(final @NonNull NodeAliasPacket packet) {
+      if (packet.serverId().equals(serverId)) {
+        return;
+      }
+
+      if (packet.alias() == alias && serverId.compareTo(packet.serverId()) > 0) {
+        alias = nodes.randomAlias();
+        logger.info("Alias #{} is already used by {}, using #{}", packet.alias(),
+            packet.serverId(), alias);
+        announceAlias(false);
+      }
+
+      nodes.alias(nodes.node(packet.serverId()), packet.alias());
+      if (packet.reply() && nodeAliases) {
+        announceAlias(false);
+      }
+    }
+
+  }
+
+  /**
+   * Builds a {@link MessagingService}. See {@link MessagingService#builder(String, PacketManager, MessagingBroker)}
+   */
+  public static final class Builder {
+
+    private final @NonNull String serviceName;
+    private final @NonNull PacketManager packetManager;
+    private final @NonNull MessagingBroker broker;
+    private @NonNull MessagingCompression compression = new NoCompression();
+    private boolean nodeAliases = false;
+    private boolean packetSubjects = false;
+    private boolean sendTimestamps = false;
+    private int deduplicationWindow;
+    private long batchMaxDelay;
+    private int batchMaxBytes;
+    private int sendQueueCapacity = 8192;
+    private int sendThreads = 1;
+    private @NonNull OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private int receiveShards;
+    private int receiveCapacity;
+    private @NonNull ReceiveOrdering receiveOrdering = ReceiveOrdering.SENDER;
+    private @Nullable MetricsExporter metricsExporter;
+    private long metricsPeriod;
+    private @Nullable Path outboxDirectory;
+    private long outboxMaxBytes;
+
+    private Builder(final @NonNull String serviceName, final @NonNull PacketManager packetManager,
+        final @NonNull MessagingBroker broker) {
+      this.serviceName = serviceName;
+      this.packetManager = packetManager;
+      this.broker = broker;
+    }
+
+    /**
+     * Sets the codec used to compress messages. Every instance of the service must use the same codec
+     *
+     * @param compression The compression to use, {@link NoCompression} by default
+     * @return this builder
+     */
+    public @NonNull Builder compression(final @NonNull MessagingCompression compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Sets whether the frames identify their sender with a short alias instead of the 16 byte server
+     * ID. Every instance of the service must use the same setting
+     *
+     * @param nodeAliases Whether to use node aliases, disabled by default
+     * @return this builder
+     */
+    public @NonNull Builder nodeAliases(boolean nodeAliases) {
+      this.nodeAliases = nodeAliases;
+      return this;
+    }
+
+    /**
+     * Sets whether every packet type is published to its own subject, so nodes only receive the
+     * types they have a listener or responder for. Every instance of the service must use the same
+     * setting, and the broker must {@link MessagingBroker#supportsPacketSubjects() support it}
+     * <p>
+     * Packets registered in the {@link PacketManager} after their listeners are subscribed to when
+     * the next packet is sent, so they should be registered first
+     *
+     * @param packetSubjects Whether to use packet subjects, disabled by default
+     * @return this builder
+     */
+    public @NonNull Builder packetSubjects(boolean packetSubjects) {
+      this.packetSubjects = packetSubjects;
+      return this;
+    }
+
+    /**
+     * Sets whether frames carry the wall-clock time at which their packet was sent, so receivers
+     * can record the delivery time of every packet. See {@link PacketTypeMetrics}. Every instance of
+     * the service must use the same setting
+     *
+     * @param sendTimestamps Whether to send timestamps, disabled by default
+     * @return this builder
+     */
+    public @NonNull Builder sendTimestamps(boolean sendTimestamps) {
+      this.sendTimestamps = sendTimestamps;
+      return this;
+    }
+
+    /**
+     * Enables deduplication: every frame carries a sequence number, and receivers drop the frames
+     * they have already received from the same sender, i.e. replayed after a reconnection. Every
+     * instance of the service must use the same setting
+     * <p>
+     * Each sender costs {@code window / 8} bytes. Frames more than {@code window} sequence numbers
+     * behind the newest one received from their sender are dropped too, so the window must cover
+     * the reordering of the broker
+     *
+     * @param window The number of sequence numbers remembered per sender, rounded up to the next
+     *               power of two, or {@code 0} to disable deduplication (the default)
+     * @return this builder
+     */
+    public @NonNull Builder deduplication(int window) {
+      Preconditions.checkArgument(window >= 0 && window <= 1 << 24, "Bad window size (%s)",
+          window);
+      this.deduplicationWindow = window;
+      return this;
+    }
+
+    /**
+     * Enables batching: asynchronous packets are coalesced into a single broker message for up to
+     * {@code maxDelay} or {@code maxBytes}, whichever comes first. Every instance of the service can
+     * receive batches, regardless of this setting. With {@link #packetSubjects(boolean) packet
+     * subjects}, a batch only contains packets of the same type
+     *
+     * @param maxDelay The maximum time a packet waits for the batch to be sent
+     * @param unit     The unit of {@code maxDelay}
+     * @param maxBytes The size, in bytes, at which a batch is sent right away
+     * @return this builder
+     */
+    public @NonNull Builder batching(long maxDelay, final @NonNull TimeUnit unit, int maxBytes) {
+      Preconditions.checkArgument(maxDelay > 0, "Bad batch delay (%s)", maxDelay);
+      Preconditions.checkArgument(maxBytes > 0 && maxBytes < 1 << 21, "Bad batch size (%s)",
+          maxBytes);
+      this.batchMaxDelay = unit.toNanos(maxDelay);
+      this.batchMaxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Configures the queue of asynchronous packets. With more than one thread, packets may be sent
+     * out of order
+     *
+     * @param capacity The maximum number of queued packets, 8192 by default
+     * @param threads  The number of threads sending the packets, 1 by default
+     * @param policy   What to do with new packets when the queue is full, {@link
+     *                 OverflowPolicy#DROP_NEWEST} by default so the caller never blocks
+     * @return this builder
+     */
+    public @NonNull Builder sendQueue(int capacity, int threads,
+        final @NonNull OverflowPolicy policy) {
+      Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Bad queue capacity (%s)",
+          capacity);
+      Preconditions.checkArgument(threads > 0, "Bad thread count (%s)", threads);
+      this.sendQueueCapacity = capacity;
+      this.sendThreads = threads;
+      this.overflowPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Enables the receive pipeline: received messages are handled by {@code shards} threads instead
+     * of the broker thread. Messages are sharded by sender, so the packets of a sender are still
+     * handled in order. When a shard is full, the broker thread waits for it
+     *
+     * @param shards   The number of shards, each one with its own thread
+     * @param capacity The maximum number of messages queued in each shard
+     * @param ordering How the messages are sharded, see {@link ReceiveOrdering}
+     * @return this builder
+     */
+    public @NonNull Builder receivePipeline(int shards, int capacity,
+        final @NonNull ReceiveOrdering ordering) {
+      Preconditions.checkArgument(shards > 0, "Bad shard count (%s)", shards);
+      Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Bad shard capacity (%s)",
+          capacity);
+      this.receiveShards = shards;
+      this.receiveCapacity = capacity;
+      this.receiveOrdering = ordering;
+      return this;
+    }
+
+    /**
+     * Enables the outbox: messages are spooled to memory-mapped files in {@code directory} while
+     * the broker is {@link MessagingBroker#isAvailable() unavailable} or failing, and replayed in
+     * order once it's back. Messages spooled before a restart are replayed on the next start, so
+     * every instance must use its own directory
+     * <p>
+     * Replayed messages keep the server ID or node alias of the instance that spooled them
+     *
+     * @param directory The directory of the segment files
+     * @param maxBytes  The maximum size of the segment files. Messages are dropped when it's full
+     * @return this builder
+     */
+    public @NonNull Builder outbox(final @NonNull Path directory, long maxBytes) {
+      Preconditions.checkArgument(maxBytes >= 1 << 16, "Bad outbox size (%s)", maxBytes);
+      this.outboxDirectory = directory;
+      this.outboxMaxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Exports the metrics of the service periodically, and once more when it's closed. Metrics are
+     * always collected, see {@link MessagingService#metrics()}
+     *
+     * @param exporter The exporter, called in its own thread
+     * @param period   The time between exports
+     * @param unit     The unit of {@code period}
+     * @return this builder
+     */
+    public @NonNull Builder metricsExporter(final @NonNull MetricsExporter exporter, long period,
+        final @NonNull TimeUnit unit) {
+      Preconditions.checkArgument(period > 0, "Bad metrics period (%s)", period);
+      this.metricsExporter = exporter;
+      this.metricsPeriod = unit.toNanos(period);
+      return this;
+    }
+
+    /**
+     * @return a new {@link MessagingService}
+     */
+    public @NonNull MessagingService build() {
+      return new MessagingService(this);
+    }
+
   }
 
 }
@@ -0,0 +1,151 @@
+package dev.sergivos.messaging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.compression.MessagingCompression;
+import dev.sergivos.messaging.metrics.PacketTypeMetrics;
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketType;
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Coalesces the packets sent by a {@link MessagingService} into a single broker message. A batch is
+ * flushed once it reaches {@code maxBytes} or {@code maxDelay} after its first packet was added.
+ *
+ * <strong>Batch format</strong>
+ * <pre>
+ *      +-----------+--------------------+---------------------------------------------------+
+ *      | Header    | Frame marker (0x1) | Packet length (VarInt) | Type | Packet Data | ... |
+ *      +-----------+--------------------+---------------------------------------------------+
+ * </pre>
+ * The header is the server ID or alias of the sender, followed by the send timestamp of the first
+ * packet and the sequence number of the batch if enabled. The frame marker is an empty {@link
+ * String} packet type, which no packet can have, followed by the kind of frame.
+ */
+final class PacketBatcher {
+
+  private static final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+  private static final int LENGTH_SIZE = 3;
+
+  private final @NonNull MessagingService messagingService;
+  private final long maxDelay;
+  private final int maxBytes;
+  private final boolean splitTypes;
+  private final @NonNull ScheduledExecutorService scheduler;
+  private @Nullable ByteBuf batch;
+  private @Nullable String batchType;
+  private @Nullable ScheduledFuture<?> flushTask;
+
+  /**
+   * @param splitTypes Whether every batch must contain a single packet type, i.e. when each type is
+   *                   published to its own subject
+   */
+  PacketBatcher(final @NonNull MessagingService messagingService, long maxDelay,
+      final @NonNull TimeUnit unit, int maxBytes, boolean splitTypes) {
+    this.messagingService = messagingService;
+    this.maxDelay = unit.toNanos(maxDelay);
+    this.maxBytes = maxBytes;
+    this.splitTypes = splitTypes;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("MessagingService-batcher-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Writes a packet into the current batch, flushing it if it's full
+   *
+   * @param packet     The packet to add
+   * @param packetType The type of the {@code packet}
+   * @param queuedAt   The {@link System#nanoTime()} at which the packet was sent
+   */
+  synchronized void add(final @NonNull Packet packet, final @NonNull PacketType<?> packetType,
+      long queuedAt) {
+    if (batch != null && splitTypes && !packetType.id().equals(batchType)) {
+      flush();
+    }
+
+    // packets with a codec know their size, so they start a new batch instead of overflowing it
+    final int size = packetType.size(packet);
+    if (batch != null && size >= 0
+        && batch.writerIndex() + LENGTH_SIZE + packetType.id().length() + size > maxBytes) {
+      flush();
+    }
+
+    if (batch == null) {
+      batch = ALLOCATOR.buffer(maxBytes);
+      messagingService.writeHeader(batch, queuedAt);
+      messagingService.writeFrameMarker(batch, MessagingService.FRAME_BATCH);
+      batchType = packetType.id();
+      try {
+        flushTask = scheduler.schedule(this::flush, maxDelay, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException ex) {
+        // closed, nothing would flush it later
+        flushTask = null;
+      }
+    } else if (!packetType.id().equals(batchType)) {
+      batchType = MessagingCompression.MIXED_TYPE;
+    }
+
+    final ByteBuf buf = batch;
+    final int start = buf.writerIndex();
+    try {
+      buf.writeZero(LENGTH_SIZE);
+      final long encodeStart = System.nanoTime();
+      messagingService.writePacketType(buf, packet, packetType);
+      packetType.write(packet, buf);
+      final int length = buf.writerIndex() - start - LENGTH_SIZE;
+      PacketUtils.set21BitVarInt(buf, start, length);
+      final PacketTypeMetrics typeMetrics = messagingService.metrics().packetType(packetType.id());
+      typeMetrics.recordEncoded(length, System.nanoTime() - encodeStart);
+      typeMetrics.recordSendQueue(encodeStart - queuedAt);
+    } catch (RuntimeException ex) {
+      buf.writerIndex(start);
+      throw ex;
+    }
+
+    if (flushTask == null || buf.writerIndex() >= maxBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Sends the current batch, if any
+   */
+  synchronized void flush() {
+    final ByteBuf buf = batch;
+    if (buf == null) {
+      return;
+    }
+
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+    batch = null;
+    flushTask = null;
+
+    try {
+      messagingService.publish(buf, batchType);
+    } catch (Exception ex) {
+      messagingService.logger().error("error sending batch to broker", ex);
+    } finally {
+      buf.release();
+    }
+  }
+
+  /**
+   * Stops the scheduler and flushes the current batch. Packets added afterwards are sent right away
+   */
+  void close() {
+    scheduler.shutdownNow();
+    flush();
+  }
+
+}
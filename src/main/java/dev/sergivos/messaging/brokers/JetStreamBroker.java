@@ -0,0 +1,412 @@
+package dev.sergivos.messaging.brokers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.MessagingService;
+import io.nats.client.Connection;
+import io.nats.client.JetStream;
+import io.nats.client.JetStreamApiException;
+import io.nats.client.JetStreamManagement;
+import io.nats.client.JetStreamSubscription;
+import io.nats.client.Message;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.PullSubscribeOptions;
+import io.nats.client.api.AckPolicy;
+import io.nats.client.api.ConsumerConfiguration;
+import io.nats.client.api.DeliverPolicy;
+import io.nats.client.api.StorageType;
+import io.nats.client.api.StreamConfiguration;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * A broker using NATS JetStream, so messages are persisted and nodes don't lose the ones sent while
+ * they're disconnected or restarting.
+ * <p>
+ * Every service has a stream, named after the service, with its broadcast, node and packet type
+ * subjects, capped at {@code maxMessages} messages. Messages are published asynchronously, with up
+ * to {@code maxPendingAcks} of them waiting for the acknowledgement of the server: senders wait
+ * while the window is full, which pushes back on them instead of overrunning the server.
+ * <p>
+ * Messages are read through pull consumers, one per subject and each one with its own thread,
+ * fetching batches of up to {@code batchSize} messages. The messages of a batch are acknowledged
+ * after the packets of every one have been dispatched (see {@link
+ * MessagingService#handleMessages(List)}), the acknowledgements are flushed together by the
+ * connection. Messages compressed with a dictionary that hasn't arrived yet are redelivered a
+ * second later, up to 30 times. The consumers are durable and named after the
+ * {@code consumerName} given to the constructor, so after reconnecting or restarting a node
+ * resumes where it left. A new consumer only receives the messages published after it's created,
+ * not the history of the stream. The consumer name must be unique and stable for each node (e.g.
+ * the name of the server): nodes sharing it would split the messages between them.
+ */
+public final class JetStreamBroker extends MessagingBroker {
+
+  private static final Duration FETCH_WAIT = Duration.ofSeconds(1);
+  private static final Duration NODE_CONSUMER_THRESHOLD = Duration.ofMinutes(5);
+  private static final Duration REDELIVERY_DELAY = Duration.ofSeconds(1);
+  // a message still deferred after this many deliveries is dropped by the server
+  private static final int MAX_DELIVERIES = 30;
+  private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final @NonNull String url;
+  private final @NonNull String consumerName;
+  private final long maxMessages;
+  private final int batchSize;
+  private final int maxPendingAcks;
+  private final @NonNull Semaphore pendingAcks;
+  private final LongAdder published = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final Map<String, Consumer> consumers = new ConcurrentHashMap<>();
+  private final ThreadFactory consumerFactory = new ThreadFactoryBuilder()
+      .setNameFormat("MessagingService-jetstream-consumer-%d").setDaemon(true).build();
+  private @MonotonicNonNull String channelName;
+  private @MonotonicNonNull String streamName;
+  private @MonotonicNonNull String nodeSuffix;
+  private @MonotonicNonNull Connection connection;
+  private @MonotonicNonNull JetStream jetStream;
+  private @MonotonicNonNull JetStreamManagement management;
+  private volatile long lastWarning;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a new broker, with a stream of up to 100000 messages, reading batches of up to 256
+   * messages and with up to 1024 messages waiting for their acknowledgement
+   *
+   * @param url          The URL of the NATS server
+   * @param consumerName The name of the consumers of this node
+   */
+  public JetStreamBroker(final @NonNull String url, final @NonNull String consumerName) {
+    this(url, consumerName, 100_000, 256, 1024);
+  }
+
+  /**
+   * Creates a new broker
+   *
+   * @param url            The URL of the NATS server
+   * @param consumerName   The name of the consumers of this node
+   * @param maxMessages    The maximum number of messages of the stream
+   * @param batchSize      The maximum number of messages fetched at once by each consumer
+   * @param maxPendingAcks The maximum number of published messages waiting for their
+   *                       acknowledgement. Senders wait while there are more
+   */
+  public JetStreamBroker(final @NonNull String url, final @NonNull String consumerName,
+      long maxMessages, int batchSize, int maxPendingAcks) {
+    Preconditions.checkArgument(maxMessages > 0, "Bad max messages (%s)", maxMessages);
+    Preconditions.checkArgument(batchSize > 0, "Bad batch size (%s)", batchSize);
+    Preconditions.checkArgument(maxPendingAcks > 0, "Bad max pending acks (%s)", maxPendingAcks);
+    this.url = url;
+    this.consumerName = sanitize(consumerName);
+    this.maxMessages = maxMessages;
+    this.batchSize = batchSize;
+    this.maxPendingAcks = maxPendingAcks;
+    this.pendingAcks = new Semaphore(maxPendingAcks);
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    super.setMessagingService(messagingService);
+    this.channelName = messagingService.serviceName();
+    this.streamName = sanitize(channelName);
+
+    final Options options = new Options.Builder()
+        .server(url)
+        .connectionName("MS-" + this.channelName)
+        .connectionListener((conn, type) -> messagingService.logger().info(type.toString()))
+        .build();
+
+    try {
+      this.connection = Nats.connect(options);
+      this.jetStream = connection.jetStream();
+      this.management = connection.jetStreamManagement();
+      createStream();
+    } catch (IOException | JetStreamApiException ex) {
+      throw new IllegalStateException("error connecting to NATS JetStream " + url, ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while connecting to NATS " + url, ex);
+    }
+
+    // the server ID changes on every start, so a consumer left by a previous run that died without
+    // deleting it never clashes with ours, and expires by itself
+    this.nodeSuffix = "node_" + messagingService.serverId();
+    startConsumer(channelName, "", false);
+    startConsumer(nodeSubject(messagingService.serverId()), nodeSuffix, true);
+  }
+
+  @Override
+  public void close() throws Exception {
+    closed = true;
+    for (final Consumer consumer : consumers.values()) {
+      consumer.running = false;
+    }
+    for (final Consumer consumer : consumers.values()) {
+      // the consumer waits for up to FETCH_WAIT in fetch
+      consumer.thread.join(FETCH_WAIT.toMillis() * 2);
+    }
+
+    if (!pendingAcks.tryAcquire(maxPendingAcks, 3, TimeUnit.SECONDS)) {
+      messagingService.logger().warn("Timed out waiting for the acknowledgements of JetStream");
+    }
+
+    // our server ID changes on every start, nobody will read this consumer again
+    try {
+      management.deleteConsumer(streamName, durableName(nodeSuffix));
+    } catch (IOException | JetStreamApiException ex) {
+      messagingService.logger().warn("error deleting the consumer of this node", ex);
+    }
+    connection.close();
+  }
+
+  @Override
+  public void sendMessage(byte[] message) {
+    publish(channelName, message);
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    publish(nodeSubject(target), message);
+  }
+
+  /**
+   * @return {@code false} while disconnected from NATS or the window of pending acknowledgements is
+   * full
+   */
+  @Override
+  public boolean isAvailable() {
+    return connection != null && connection.getStatus() == Connection.Status.CONNECTED
+        && pendingAcks.availablePermits() > 0;
+  }
+
+  @Override
+  public boolean supportsPacketSubjects() {
+    return true;
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    publish(packetSubject(packetType), message);
+  }
+
+  /**
+   * Starts consuming the messages of a packet type. Its consumer is kept by the server after
+   * unsubscribing, so subscribing again resumes from where this node left
+   *
+   * @param packetType The ID of the packet type
+   */
+  @Override
+  public void subscribe(final @NonNull String packetType) {
+    startConsumer(packetSubject(packetType), "type_" + packetType, false);
+  }
+
+  @Override
+  public void unsubscribe(final @NonNull String packetType) {
+    final Consumer consumer = consumers.remove(packetSubject(packetType));
+    if (consumer != null) {
+      consumer.running = false;
+    }
+  }
+
+  /**
+   * @return the number of messages acknowledged by JetStream
+   */
+  public long publishedMessages() {
+    return published.sum();
+  }
+
+  /**
+   * @return the number of messages that couldn't be published to JetStream
+   */
+  public long failedMessages() {
+    return failed.sum();
+  }
+
+  /**
+   * @return the subject of the messages of {@code packetType}
+   */
+  private @NonNull String packetSubject(final @NonNull String packetType) {
+    return channelName + "." + packetType;
+  }
+
+  /**
+   * @return the subject of the messages sent only to {@code serverId}
+   */
+  private @NonNull String nodeSubject(final @NonNull UUID serverId) {
+    return channelName + "." + serverId;
+  }
+
+  private @NonNull String durableName(final @NonNull String suffix) {
+    return suffix.isEmpty() ? consumerName : consumerName + "_" + sanitize(suffix);
+  }
+
+  private void createStream() throws IOException, JetStreamApiException {
+    final StreamConfiguration config = StreamConfiguration.builder()
+        .name(streamName)
+        .subjects(channelName, channelName + ".>")
+        .storageType(StorageType.File)
+        .maxMessages(maxMessages)
+        .build();
+
+    try {
+      management.addStream(config);
+    } catch (JetStreamApiException ex) {
+      // the stream already exists, maybe with other limits
+      management.updateStream(config);
+    }
+  }
+
+  private void publish(final @NonNull String subject, byte @NonNull [] message) {
+    if (closed) {
+      throw new RejectedExecutionException("The broker is closed");
+    }
+    try {
+      pendingAcks.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for JetStream", ex);
+    }
+
+    try {
+      jetStream.publishAsync(subject, message).whenComplete((ack, ex) -> {
+        pendingAcks.release();
+        if (ex == null) {
+          published.increment();
+        } else {
+          warnFailed(ex);
+        }
+      });
+    } catch (RuntimeException ex) {
+      pendingAcks.release();
+      throw ex;
+    }
+  }
+
+  private void startConsumer(final @NonNull String subject, final @NonNull String suffix,
+      boolean node) {
+    final ConsumerConfiguration.Builder config = ConsumerConfiguration.builder()
+        .durable(durableName(suffix))
+        .filterSubject(subject)
+        // new consumers start at the end of the stream instead of replaying its history, durable
+        // ones keep their position
+        .deliverPolicy(DeliverPolicy.New)
+        // acknowledging a message with AckPolicy.All would acknowledge the deferred ones before it
+        .ackPolicy(AckPolicy.Explicit)
+        .maxDeliver(MAX_DELIVERIES)
+        .maxAckPending(Math.max(batchSize, 1024));
+    if (node) {
+      // in case this node dies without deleting it
+      config.inactiveThreshold(NODE_CONSUMER_THRESHOLD);
+    }
+
+    final JetStreamSubscription subscription;
+    try {
+      subscription = jetStream.subscribe(subject, PullSubscribeOptions.builder()
+          .stream(streamName)
+          .configuration(config.build())
+          .build());
+    } catch (IOException | JetStreamApiException ex) {
+      throw new IllegalStateException("error subscribing to " + subject, ex);
+    }
+
+    final Consumer consumer = new Consumer(subscription);
+    final Consumer previous = consumers.put(subject, consumer);
+    if (previous != null) {
+      previous.running = false;
+    }
+    consumer.thread = consumerFactory.newThread(consumer);
+    consumer.thread.start();
+  }
+
+  private void warnFailed(final @NonNull Throwable ex) {
+    failed.increment();
+    final long now = System.nanoTime();
+    if (now - lastWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastWarning = now;
+    messagingService.logger().error("error publishing to JetStream, " + failed.sum()
+        + " messages lost so far", ex);
+  }
+
+  private static @NonNull String sanitize(final @NonNull String name) {
+    // stream and consumer names can't have dots, wildcards or whitespace
+    return name.replaceAll("[^A-Za-z0-9_-]", "_");
+  }
+
+  private final class Consumer implements Runnable {
+
+    private final @NonNull JetStreamSubscription subscription;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private Consumer(final @NonNull JetStreamSubscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running && !closed) {
+          try {
+            consume();
+          } catch (RuntimeException ex) {
+            if (running && !closed) {
+              messagingService.logger().warn("error fetching from JetStream, retrying", ex);
+              LockSupport.parkNanos(this, RECONNECT_NANOS);
+            }
+          }
+        }
+      } finally {
+        try {
+          subscription.unsubscribe();
+        } catch (RuntimeException ignored) {
+          // the connection may be closed already
+        }
+      }
+    }
+
+    private void consume() {
+      final List<Message> batch = subscription.fetch(batchSize, FETCH_WAIT);
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      final List<byte[]> messages = new ArrayList<>(batch.size());
+      for (final Message message : batch) {
+        messages.add(message.getData());
+      }
+      final BitSet deferred = messagingService.handleMessages(messages);
+      if (deferred == null) {
+        // unacknowledged messages are redelivered once their ack wait expires
+        return;
+      }
+
+      for (int i = 0; i < batch.size(); i++) {
+        if (deferred.get(i)) {
+          // waiting for a compression dictionary, which has been requested meanwhile
+          batch.get(i).nakWithDelay(REDELIVERY_DELAY);
+        } else {
+          batch.get(i).ack();
+        }
+      }
+    }
+
+  }
+
+}
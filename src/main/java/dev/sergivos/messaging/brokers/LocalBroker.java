@@ -0,0 +1,211 @@
+package dev.sergivos.messaging.brokers;
+
+import com.google.common.collect.Maps;
+import dev.sergivos.messaging.MessagingService;
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PooledPacket;
+import dev.sergivos.messaging.pipeline.ReceiveOrdering;
+import dev.sergivos.messaging.pipeline.ReceivePipeline;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A broker delivering messages to the {@link MessagingService}s of the same JVM, without any
+ * network. Every broker has its own queue and delivery thread, so the messages of a sender are
+ * received in order. Messages are never delivered back to their sender.
+ * <p>
+ * Messages are shared with the receivers, not copied. When {@code passPackets} is enabled, packets
+ * sent with {@link MessagingService#sendPacket(Packet)} aren't even serialized: the same instance is
+ * handed to the listeners of every receiver, so they must not modify it. Requests and responses are
+ * always serialized.
+ */
+public final class LocalBroker extends MessagingBroker {
+
+  private static final Network DEFAULT_NETWORK = new Network();
+
+  private final @NonNull Network network;
+  private final boolean passPackets;
+  private final int capacity;
+  private final Set<String> packetTypes = ConcurrentHashMap.newKeySet();
+  private @MonotonicNonNull ReceivePipeline inbox;
+  private @MonotonicNonNull String channelName;
+
+  /**
+   * Creates a broker connected to the brokers of the same JVM
+   */
+  public LocalBroker() {
+    this(DEFAULT_NETWORK, false, 65536);
+  }
+
+  /**
+   * Creates a broker connected to the brokers of the same {@link Network}
+   *
+   * @param network     The network of brokers
+   * @param passPackets Whether to hand the {@link Packet} instances to the receivers, instead of
+   *                    serializing them
+   * @param capacity    The maximum number of messages queued for this broker. Senders wait while
+   *                    it's full
+   */
+  public LocalBroker(final @NonNull Network network, boolean passPackets, int capacity) {
+    this.network = network;
+    this.passPackets = passPackets;
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    super.setMessagingService(messagingService);
+    this.channelName = messagingService.serviceName();
+    this.inbox = new ReceivePipeline(1, capacity, ReceiveOrdering.SENDER,
+        messagingService.logger());
+    network.join(channelName, this);
+  }
+
+  @Override
+  public void close() throws Exception {
+    network.leave(channelName, this);
+    inbox.close(1, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void sendMessage(byte[] message) {
+    sendMessage(Unpooled.wrappedBuffer(message));
+  }
+
+  @Override
+  public void sendMessage(final @NonNull ByteBuf message) {
+    deliver(message, null, null);
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    sendMessage(Unpooled.wrappedBuffer(message), target);
+  }
+
+  @Override
+  public void sendMessage(final @NonNull ByteBuf message, final @NonNull UUID target) {
+    deliver(message, null, target);
+  }
+
+  @Override
+  public boolean supportsPacketSubjects() {
+    return true;
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    sendMessage(Unpooled.wrappedBuffer(message), packetType);
+  }
+
+  @Override
+  public void sendMessage(final @NonNull ByteBuf message, final @NonNull String packetType) {
+    deliver(message, packetType, null);
+  }
+
+  @Override
+  public void subscribe(final @NonNull String packetType) {
+    packetTypes.add(packetType);
+  }
+
+  @Override
+  public void unsubscribe(final @NonNull String packetType) {
+    packetTypes.remove(packetType);
+  }
+
+  @Override
+  public boolean sendPacket(final @NonNull Packet packet, final @NonNull String packetType,
+      final @Nullable UUID target) {
+    if (!passPackets) {
+      return false;
+    }
+
+    final UUID senderId = messagingService.serverId();
+    // like serialized packets, which are only published to their subject with packet subjects
+    final String subject = messagingService.packetSubjects() ? packetType : null;
+    for (final LocalBroker receiver : network.brokers(channelName)) {
+      if (receiver == this || !receiver.accepts(subject, target)) {
+        continue;
+      }
+
+      // every receiver releases its own reference once its listeners handled the packet
+      if (packet instanceof PooledPacket) {
+        ((PooledPacket) packet).retain();
+      }
+      try {
+        receiver.inbox.submit(0,
+            () -> receiver.messagingService.handleLocalPacket(packet, senderId));
+      } catch (RuntimeException ex) {
+        if (packet instanceof PooledPacket) {
+          ((PooledPacket) packet).release();
+        }
+        throw ex;
+      }
+    }
+    return true;
+  }
+
+  private void deliver(final @NonNull ByteBuf message, final @Nullable String packetType,
+      final @Nullable UUID target) {
+    for (final LocalBroker receiver : network.brokers(channelName)) {
+      if (receiver == this || !receiver.accepts(packetType, target)) {
+        continue;
+      }
+
+      final ByteBuf frame = message.retainedDuplicate();
+      try {
+        receiver.inbox.submit(0, () -> {
+          try {
+            receiver.messagingService.handleMessage(frame);
+          } finally {
+            frame.release();
+          }
+        });
+      } catch (RuntimeException ex) {
+        frame.release();
+        throw ex;
+      }
+    }
+  }
+
+  private boolean accepts(final @Nullable String packetType, final @Nullable UUID target) {
+    if (target != null) {
+      return target.equals(messagingService.serverId());
+    }
+    return packetType == null || packetTypes.contains(packetType);
+  }
+
+  /**
+   * A group of {@link LocalBroker}s that can reach each other
+   */
+  public static final class Network {
+
+    private final Map<String, Set<LocalBroker>> channels = Maps.newConcurrentMap();
+
+    private void join(final @NonNull String channel, final @NonNull LocalBroker broker) {
+      channels.computeIfAbsent(channel, key -> new CopyOnWriteArraySet<>()).add(broker);
+    }
+
+    private void leave(final @NonNull String channel, final @NonNull LocalBroker broker) {
+      channels.computeIfPresent(channel, (key, brokers) -> {
+        brokers.remove(broker);
+        return brokers.isEmpty() ? null : brokers;
+      });
+    }
+
+    private @NonNull Set<LocalBroker> brokers(final @NonNull String channel) {
+      return channels.getOrDefault(channel, Collections.emptySet());
+    }
+
+  }
+
+}
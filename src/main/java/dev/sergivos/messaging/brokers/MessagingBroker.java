@@ -1,15 +1,21 @@
 package dev.sergivos.messaging.brokers;
 
 import dev.sergivos.messaging.MessagingService;
+import dev.sergivos.messaging.packets.Packet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import java.util.UUID;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 public abstract class MessagingBroker {
 
   protected @MonotonicNonNull MessagingService messagingService;
 
   /**
-   * Sets the {@link MessagingService} to use
+   * Sets the {@link MessagingService} to use. Brokers that depend on the service (i.e. for the
+   * channel name) should override this method to subscribe
    */
   public void setMessagingService(final @NonNull MessagingService messagingService) {
     this.messagingService = messagingService;
@@ -31,4 +37,135 @@ public abstract class MessagingBroker {
    */
   abstract public void sendMessage(byte[] message);
 
+  /**
+   * Sends the readable bytes of {@code message} though the broker. Used by a {@link
+   * MessagingService}. Brokers whose client can write a {@link ByteBuf} (or {@link
+   * java.nio.ByteBuffer}) should override this method to avoid copying it into a {@code byte[]}.
+   * <p>
+   * The caller keeps the ownership of {@code message}, brokers that need it after returning must
+   * retain it
+   *
+   * @param message The message to be sent
+   */
+  public void sendMessage(final @NonNull ByteBuf message) {
+    sendMessage(toByteArray(message));
+  }
+
+  /**
+   * Sends a message to a single node. Brokers with per-node channels should override this method,
+   * by default the message is sent to every node and discarded by all but the target
+   *
+   * @param message The message to be sent
+   * @param target  The server ID of the node receiving the message
+   */
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    sendMessage(message);
+  }
+
+  /**
+   * Sends the readable bytes of {@code message} to a single node. See {@link #sendMessage(ByteBuf)}
+   * and {@link #sendMessage(byte[], UUID)}
+   *
+   * @param message The message to be sent
+   * @param target  The server ID of the node receiving the message
+   */
+  public void sendMessage(final @NonNull ByteBuf message, final @NonNull UUID target) {
+    sendMessage(toByteArray(message), target);
+  }
+
+  /**
+   * Whether the broker can take messages right now, without losing them or making the sender wait.
+   * When it can't, the {@link dev.sergivos.messaging.pipeline.Outbox}, if enabled, keeps the
+   * messages until it can. Brokers that know when they're disconnected or saturated should
+   * override this method
+   *
+   * @return {@code true} by default
+   */
+  public boolean isAvailable() {
+    return true;
+  }
+
+  /**
+   * Delivers a packet without serializing it, if the broker can. Only possible for brokers whose
+   * receivers live in the same JVM, which get the same instance through {@link
+   * MessagingService#handleLocalPacket(Packet, UUID)}. A {@link
+   * dev.sergivos.messaging.packets.PooledPacket} must be retained once for every receiver
+   *
+   * @param packet     The packet to be sent
+   * @param packetType The ID of the packet type
+   * @param target     The server ID of the node receiving the packet, or {@code null} to send it to
+   *                   every node
+   * @return whether the packet was delivered, {@code false} by default. If not, it's serialized and
+   * sent as a message
+   */
+  public boolean sendPacket(final @NonNull Packet packet, final @NonNull String packetType,
+      final @Nullable UUID target) {
+    return false;
+  }
+
+  /**
+   * Whether the broker can publish every packet type to its own channel, and subscribe only to some
+   * types. Brokers supporting it must override {@link #sendMessage(byte[], String)}, {@link
+   * #subscribe(String)} and {@link #unsubscribe(String)}
+   *
+   * @return {@code false} by default
+   */
+  public boolean supportsPacketSubjects() {
+    return false;
+  }
+
+  /**
+   * Sends a message to the channel of a packet type. By default, the message is sent to the channel
+   * of the service
+   *
+   * @param message    The message to be sent
+   * @param packetType The ID of the packet type
+   */
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    sendMessage(message);
+  }
+
+  /**
+   * Sends the readable bytes of {@code message} to the channel of a packet type. See {@link
+   * #sendMessage(ByteBuf)} and {@link #sendMessage(byte[], String)}
+   *
+   * @param message    The message to be sent
+   * @param packetType The ID of the packet type
+   */
+  public void sendMessage(final @NonNull ByteBuf message, final @NonNull String packetType) {
+    sendMessage(toByteArray(message), packetType);
+  }
+
+  /**
+   * Subscribes to the channel of a packet type. Does nothing by default
+   *
+   * @param packetType The ID of the packet type
+   */
+  public void subscribe(final @NonNull String packetType) {
+  }
+
+  /**
+   * Unsubscribes from the channel of a packet type. Does nothing by default
+   *
+   * @param packetType The ID of the packet type
+   */
+  public void unsubscribe(final @NonNull String packetType) {
+  }
+
+  /**
+   * Returns the readable bytes of {@code buf} as an array, without copying them if {@code buf}
+   * wraps exactly a whole array
+   *
+   * @param buf The buffer to read
+   * @return an array with the readable bytes of {@code buf}
+   */
+  protected static byte[] toByteArray(final @NonNull ByteBuf buf) {
+    if (buf.hasArray() && buf.arrayOffset() == 0 && buf.readerIndex() == 0
+        && buf.readableBytes() == buf.array().length) {
+      return buf.array();
+    }
+
+    return ByteBufUtil.getBytes(buf);
+  }
+
 }
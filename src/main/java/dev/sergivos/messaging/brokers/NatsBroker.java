@@ -1,19 +1,29 @@
 package dev.sergivos.messaging.brokers;
 
+import dev.sergivos.messaging.MessagingService;
 import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
 import io.nats.client.Nats;
 import io.nats.client.Options;
 import java.io.IOException;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 public final class NatsBroker extends MessagingBroker {
 
-  private final @NonNull String channelName;
-  private final @NonNull Connection connection;
-  private final @NonNull Dispatcher dispatcher;
+  private final @NonNull String url;
+  private @MonotonicNonNull String channelName;
+  private @MonotonicNonNull Connection connection;
+  private @MonotonicNonNull Dispatcher dispatcher;
 
-  public NatsBroker(final @NonNull String url) throws IOException, InterruptedException {
+  public NatsBroker(final @NonNull String url) {
+    this.url = url;
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    super.setMessagingService(messagingService);
     this.channelName = messagingService.serviceName();
 
     final Options options = new Options.Builder()
@@ -22,8 +32,16 @@ public final class NatsBroker extends MessagingBroker {
         .connectionListener((conn, type) -> messagingService.logger().info(type.toString()))
         .build();
 
-    this.connection = Nats.connect(options);
-    this.dispatcher = connection.createDispatcher();
+    try {
+      this.connection = Nats.connect(options);
+    } catch (IOException ex) {
+      throw new IllegalStateException("error connecting to NATS " + url, ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while connecting to NATS " + url, ex);
+    }
+    this.dispatcher = connection.createDispatcher(
+        message -> messagingService.handleMessage(message.getData()));
 
     subscribe();
   }
@@ -39,8 +57,57 @@ public final class NatsBroker extends MessagingBroker {
     connection.publish(channelName, message);
   }
 
+  @Override
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    connection.publish(nodeSubject(target), message);
+  }
+
+  /**
+   * @return {@code false} while disconnected from NATS, when the client would buffer the messages
+   * in memory
+   */
+  @Override
+  public boolean isAvailable() {
+    return connection != null && connection.getStatus() == Connection.Status.CONNECTED;
+  }
+
+  @Override
+  public boolean supportsPacketSubjects() {
+    return true;
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    connection.publish(packetSubject(packetType), message);
+  }
+
+  @Override
+  public void subscribe(final @NonNull String packetType) {
+    dispatcher.subscribe(packetSubject(packetType));
+  }
+
+  @Override
+  public void unsubscribe(final @NonNull String packetType) {
+    dispatcher.unsubscribe(packetSubject(packetType));
+  }
+
+  /**
+   * @return the subject of the messages of {@code packetType}
+   */
+  private @NonNull String packetSubject(final @NonNull String packetType) {
+    return channelName + "." + packetType;
+  }
+
+  /**
+   * @return the subject of the messages sent only to {@code serverId}
+   */
+  private @NonNull String nodeSubject(final @NonNull UUID serverId) {
+    return channelName + "." + serverId;
+  }
+
   private void subscribe() {
-    dispatcher.subscribe(channelName, message -> messagingService.handleMessage(message.getData()));
+    dispatcher.subscribe(channelName);
+    dispatcher.subscribe(nodeSubject(messagingService.serverId()));
   }
 
 }
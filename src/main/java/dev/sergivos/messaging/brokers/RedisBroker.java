@@ -1,9 +1,18 @@
 package dev.sergivos.messaging.brokers;
 
+import dev.sergivos.messaging.MessagingService;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
@@ -11,63 +20,219 @@ import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.exceptions.JedisException;
 
+/**
+ * A broker using Redis pub/sub.
+ * <p>
+ * Messages are published by dedicated writer threads, which pipeline the {@code PUBLISH} commands
+ * instead of waiting for the reply of each one. See {@link RedisPublisher}. Messages sent while
+ * Redis is unreachable are rejected with a {@link RejectedExecutionException}.
+ */
 public final class RedisBroker extends MessagingBroker {
 
+  private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   private final @NonNull JedisPool pool;
   private final @NonNull ExecutorService executor;
-  private final byte[] channelName;
   private final @NonNull PubSub pubSub;
+  private final int writers;
+  private final int capacity;
+  private @MonotonicNonNull RedisPublisher publisher;
+  private byte @MonotonicNonNull [] channelName;
+  private byte @MonotonicNonNull [] nodeChannelName;
+  private final Set<ByteBuffer> packetChannels = ConcurrentHashMap.newKeySet();
+  // the pub/sub connection isn't thread-safe, the reader thread and the subscribers write to it
+  private final Object subscriptionLock = new Object();
   private volatile boolean closed = false;
 
   public RedisBroker(final @NonNull String host, int port) {
-    this.channelName = messagingService.serviceName().getBytes(StandardCharsets.UTF_8);
+    this(host, port, 1, 65536);
+  }
+
+  /**
+   * Creates a new broker
+   *
+   * @param host     The host of the Redis server
+   * @param port     The port of the Redis server
+   * @param writers  The number of connections publishing messages. With more than one, messages
+   *                 may be published out of order
+   * @param capacity The maximum number of messages waiting to be published. Senders wait while
+   *                 it's full
+   */
+  public RedisBroker(final @NonNull String host, int port, int writers, int capacity) {
     this.executor = Executors.newSingleThreadExecutor();
+    this.writers = writers;
+    this.capacity = capacity;
 
     final JedisPoolConfig config = new JedisPoolConfig();
+    // the writers and the subscriber keep their connections
+    config.setMaxTotal(Math.max(config.getMaxTotal(), writers + 2));
     this.pool = new JedisPool(config, host, port, 5000);
     this.pubSub = new PubSub();
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    super.setMessagingService(messagingService);
+    this.channelName = messagingService.serviceName().getBytes(StandardCharsets.UTF_8);
+    this.nodeChannelName = nodeChannel(messagingService.serverId());
+    this.publisher = new RedisPublisher(pool,
+        (pipeline, channel, message) -> pipeline.publish(channel, message), writers, capacity,
+        messagingService.logger());
 
     subscribe();
   }
 
   @Override
-  public void close() {
+  public void close() throws InterruptedException {
     closed = true;
     executor.shutdownNow();
+    if (publisher != null && !publisher.close(3, TimeUnit.SECONDS)) {
+      messagingService.logger().warn("Timed out publishing the queued messages to Redis");
+    }
     pool.close();
   }
 
   @Override
   public void sendMessage(byte[] message) {
-    try (final Jedis jedis = this.pool.getResource()) {
-      jedis.publish(channelName, message);
+    publisher.publish(channelName, message);
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    publisher.publish(nodeChannel(target), message);
+  }
+
+  @Override
+  public boolean supportsPacketSubjects() {
+    return true;
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    publisher.publish(packetChannel(packetType), message);
+  }
+
+  /**
+   * @return {@code false} while the writers can't reach Redis or their queue is full
+   */
+  @Override
+  public boolean isAvailable() {
+    return publisher != null && publisher.available();
+  }
+
+  /**
+   * @return the number of messages published to Redis
+   */
+  public long publishedMessages() {
+    return publisher == null ? 0 : publisher.published();
+  }
+
+  /**
+   * @return the number of messages lost because Redis was unreachable when closing, failed writes
+   * are retried otherwise
+   */
+  public long failedMessages() {
+    return publisher == null ? 0 : publisher.failed();
+  }
+
+  @Override
+  public void subscribe(final @NonNull String packetType) {
+    final byte[] channel = packetChannel(packetType);
+    // channels added while (re)connecting are subscribed to once the connection is confirmed, see
+    // PubSub#onSubscribe
+    synchronized (subscriptionLock) {
+      if (packetChannels.add(ByteBuffer.wrap(channel)) && pubSub.isSubscribed()) {
+        pubSub.subscribe(channel);
+      }
+    }
+  }
+
+  @Override
+  public void unsubscribe(final @NonNull String packetType) {
+    final byte[] channel = packetChannel(packetType);
+    synchronized (subscriptionLock) {
+      if (packetChannels.remove(ByteBuffer.wrap(channel)) && pubSub.isSubscribed()) {
+        pubSub.unsubscribe(channel);
+      }
     }
   }
 
+  /**
+   * @return the channel of the messages of {@code packetType}
+   */
+  private byte @NonNull [] packetChannel(final @NonNull String packetType) {
+    return (messagingService.serviceName() + "." + packetType).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the channel of the messages sent only to {@code serverId}
+   */
+  private byte @NonNull [] nodeChannel(final @NonNull UUID serverId) {
+    return (messagingService.serviceName() + ":" + serverId).getBytes(StandardCharsets.UTF_8);
+  }
+
   private void subscribe() {
     executor.execute(() -> {
       while (!closed) {
         try (final Jedis redis = this.pool.getResource()) {
-          redis.subscribe(this.pubSub, channelName);
+          redis.subscribe(this.pubSub, channels());
         } catch (JedisException ex) {
           if (!closed) {
-            System.err.println("Redis pub/sub disconnected. Reconnecting...");
+            messagingService.logger().warn("Redis pub/sub disconnected, reconnecting", ex);
+            LockSupport.parkNanos(this, RECONNECT_NANOS);
           }
         }
       }
     });
   }
 
+  private byte @NonNull [] @NonNull [] channels() {
+    final byte[][] channels = new byte[packetChannels.size() + 2][];
+    channels[0] = channelName;
+    channels[1] = nodeChannelName;
+    int i = 2;
+    for (final ByteBuffer channel : packetChannels) {
+      if (i == channels.length) {
+        break;
+      }
+      channels[i++] = channel.array();
+    }
+    return i == channels.length ? channels : Arrays.copyOf(channels, i);
+  }
+
   private class PubSub extends BinaryJedisPubSub {
 
     @Override
     public void onMessage(byte[] channel, byte[] message) {
-      if (!Arrays.equals(channel, channelName)) {
+      if (!Arrays.equals(channel, channelName) && !Arrays.equals(channel, nodeChannelName)
+          && !packetChannels.contains(ByteBuffer.wrap(channel))) {
         return;
       }
 
       messagingService.handleMessage(message);
     }
+
+    /**
+     * Until the first channel of a connection is confirmed, {@link #isSubscribed()} is
+     * {@code false} and (un)subscriptions aren't sent, so the packet channels are synced again
+     */
+    @Override
+    public void onSubscribe(byte[] channel, int subscribedChannels) {
+      synchronized (subscriptionLock) {
+        if (Arrays.equals(channel, channelName)) {
+          final byte[][] channels = packetChannels.stream().map(ByteBuffer::array)
+              .toArray(byte[][]::new);
+          if (channels.length > 0) {
+            // subscribing twice to a channel has no effect
+            subscribe(channels);
+          }
+        } else if (!Arrays.equals(channel, nodeChannelName)
+            && !packetChannels.contains(ByteBuffer.wrap(channel))) {
+          // unsubscribed before the connection was confirmed
+          unsubscribe(channel);
+        }
+      }
+    }
   }
 
 }
@@ -0,0 +1,343 @@
+package dev.sergivos.messaging.brokers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.utils.MpmcArrayQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Publishes messages to Redis through dedicated connections. Every writer thread drains the queue
+ * into a pipeline and only waits for the replies once per batch, so the publish rate isn't capped
+ * by the round trip to Redis. The {@link Command} decides how a message is written, i.e. {@code
+ * PUBLISH} or {@code XADD}.
+ * <p>
+ * Messages are queued, so publish failures are reported asynchronously: they're logged, and the
+ * writer keeps the failed batch and writes it again once it reconnects. Meanwhile the queued
+ * messages wait, and new ones are rejected until Redis is reachable again, so the service spools
+ * them to its outbox if enabled or reports the failure to the sender. A batch that failed halfway
+ * may be published twice. Messages are only lost, and counted in {@link #failed()}, when the
+ * publisher is closed while Redis is unreachable. Messages are published in order when using a
+ * single writer.
+ */
+final class RedisPublisher {
+
+  private static final int MAX_BATCH = 1024;
+  private static final int SPINS = 128;
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final @NonNull JedisPool pool;
+  private final @NonNull Command command;
+  private final @NonNull Logger logger;
+  private final @NonNull MpmcArrayQueue<Message> queue;
+  private final @NonNull Writer @NonNull [] writers;
+  private final LongAdder published = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private volatile boolean running = true;
+  private volatile boolean connected = true;
+  private volatile long lastWarning;
+
+  /**
+   * Creates a new publisher and starts its threads
+   *
+   * @param pool     The pool the writers take their connection from
+   * @param command  Writes each message into the pipeline
+   * @param writers  The number of writer threads, each one with its own connection
+   * @param capacity The capacity of the queue, rounded up to the next power of two
+   * @param logger   The logger to report failures to
+   */
+  RedisPublisher(final @NonNull JedisPool pool, final @NonNull Command command, int writers,
+      int capacity, final @NonNull Logger logger) {
+    Preconditions.checkArgument(writers > 0, "Bad writer count (%s)", writers);
+    this.pool = pool;
+    this.command = command;
+    this.logger = logger;
+    this.queue = new MpmcArrayQueue<>(capacity);
+
+    final ThreadFactory factory = new ThreadFactoryBuilder()
+        .setNameFormat("MessagingService-redis-writer-%d").setDaemon(true).build();
+    this.writers = new Writer[writers];
+    for (int i = 0; i < writers; i++) {
+      this.writers[i] = new Writer();
+      this.writers[i].thread = factory.newThread(this.writers[i]);
+      this.writers[i].thread.start();
+    }
+  }
+
+  /**
+   * Queues a message, waiting for room if the queue is full. Messages are rejected while the last
+   * write failed, so the caller sees the failure instead of queueing behind a broken connection
+   *
+   * @param key     The channel or stream to publish the message to
+   * @param message The message, which must not be modified afterwards
+   * @throws RejectedExecutionException if the publisher is closed, Redis is unreachable or the
+   *                                    thread is interrupted
+   */
+  void publish(byte @NonNull [] key, byte @NonNull [] message)
+      throws RejectedExecutionException {
+    if (!running) {
+      throw new RejectedExecutionException("The Redis publisher is closed");
+    }
+    if (!connected) {
+      throw new RejectedExecutionException("Redis is unreachable");
+    }
+
+    final Message queued = new Message(key, message);
+    while (!queue.offer(queued)) {
+      if (!running || Thread.currentThread().isInterrupted()) {
+        throw new RejectedExecutionException("The Redis publisher is closed");
+      }
+      LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+    }
+
+    for (final Writer writer : writers) {
+      if (writer.parked) {
+        LockSupport.unpark(writer.thread);
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return whether the last write succeeded and the queue has room, so a new message would be
+   * published without waiting
+   */
+  boolean available() {
+    return connected && running && queue.size() < queue.capacity();
+  }
+
+  /**
+   * @return the number of messages published
+   */
+  long published() {
+    return published.sum();
+  }
+
+  /**
+   * @return the number of messages dropped because Redis was unreachable when closing
+   */
+  long failed() {
+    return failed.sum();
+  }
+
+  /**
+   * Stops accepting messages and waits for the queued ones to be published
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The unit of {@code timeout}
+   * @return {@code true} if every writer finished before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean close(long timeout, final @NonNull TimeUnit unit) throws InterruptedException {
+    running = false;
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (final Writer writer : writers) {
+      LockSupport.unpark(writer.thread);
+    }
+
+    boolean terminated = true;
+    for (final Writer writer : writers) {
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining > 0) {
+        writer.thread.join(remaining);
+      }
+      if (writer.thread.isAlive()) {
+        writer.thread.interrupt();
+        terminated = false;
+      }
+    }
+    return terminated;
+  }
+
+  private void warnFailed(final @NonNull JedisException ex, int messages) {
+    final long now = System.nanoTime();
+    if (now - lastWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastWarning = now;
+    logger.error("error publishing " + messages + " messages to Redis, retrying them once it's "
+        + "reachable", ex);
+  }
+
+  /**
+   * Writes a message into a pipeline
+   */
+  @FunctionalInterface
+  interface Command {
+
+    void write(final @NonNull Pipeline pipeline, byte @NonNull [] key, byte @NonNull [] message);
+
+  }
+
+  private static final class Message {
+
+    private final byte @NonNull [] key;
+    private final byte @NonNull [] data;
+
+    private Message(byte @NonNull [] key, byte @NonNull [] data) {
+      this.key = key;
+      this.data = data;
+    }
+
+  }
+
+  private final class Writer implements Runnable {
+
+    // the batch being written, kept until Redis acknowledges it
+    private final @Nullable Message @NonNull [] batch = new Message[MAX_BATCH];
+    private int batchSize;
+    private volatile boolean parked;
+    private Thread thread;
+    private @Nullable Jedis jedis;
+    private long lastFailure;
+
+    @Override
+    public void run() {
+      int idle = 0;
+      try {
+        while (true) {
+          if (batchSize != 0 || fill()) {
+            idle = 0;
+            if (!write()) {
+              if (!running) {
+                drop();
+                return;
+              }
+              // the queued messages wait behind the failed batch, which is retried
+              LockSupport.parkNanos(this, RECONNECT_NANOS);
+            }
+            continue;
+          }
+
+          if (!running) {
+            return;
+          }
+
+          if (!connected) {
+            // nothing is published while disconnected, so check when Redis is back
+            reconnect();
+          }
+
+          if (idle++ < SPINS) {
+            Thread.onSpinWait();
+            continue;
+          }
+
+          parked = true;
+          if (queue.isEmpty() && running) {
+            LockSupport.parkNanos(this, PARK_NANOS);
+          }
+          parked = false;
+        }
+      } finally {
+        if (jedis != null) {
+          jedis.close();
+        }
+      }
+    }
+
+    /**
+     * Takes up to {@link #MAX_BATCH} queued messages into the batch
+     *
+     * @return whether any message was taken
+     */
+    private boolean fill() {
+      Message message;
+      while (batchSize < MAX_BATCH && (message = queue.poll()) != null) {
+        batch[batchSize++] = message;
+      }
+      return batchSize != 0;
+    }
+
+    /**
+     * Pipelines the messages of the batch and waits for their replies
+     *
+     * @return {@code true} if Redis acknowledged them, otherwise the batch is kept to be retried
+     */
+    private boolean write() {
+      try {
+        if (jedis == null) {
+          jedis = pool.getResource();
+        }
+
+        final Pipeline pipeline = jedis.pipelined();
+        for (int i = 0; i < batchSize; i++) {
+          final Message message = batch[i];
+          command.write(pipeline, message.key, message.data);
+        }
+        pipeline.sync();
+        published.add(batchSize);
+        clear();
+        connected = true;
+        return true;
+      } catch (JedisException ex) {
+        lastFailure = System.nanoTime();
+        connected = false;
+        warnFailed(ex, batchSize);
+        if (jedis != null) {
+          // a broken connection is destroyed by the pool instead of reused
+          jedis.close();
+          jedis = null;
+        }
+        return false;
+      }
+    }
+
+    /**
+     * Gives up on the batch and the queued messages, once closed while Redis is unreachable
+     */
+    private void drop() {
+      int dropped = batchSize;
+      clear();
+      while (queue.poll() != null) {
+        dropped++;
+      }
+      failed.add(dropped);
+      logger.error("Closed while Redis is unreachable, {} messages lost", dropped);
+    }
+
+    private void clear() {
+      for (int i = 0; i < batchSize; i++) {
+        batch[i] = null;
+      }
+      batchSize = 0;
+    }
+
+    private void reconnect() {
+      final long wait = lastFailure + RECONNECT_NANOS - System.nanoTime();
+      if (wait > 0) {
+        return;
+      }
+
+      try {
+        if (jedis == null) {
+          jedis = pool.getResource();
+        }
+        jedis.ping();
+        connected = true;
+      } catch (JedisException ex) {
+        lastFailure = System.nanoTime();
+        if (jedis != null) {
+          jedis.close();
+          jedis = null;
+        }
+      }
+    }
+
+  }
+
+}
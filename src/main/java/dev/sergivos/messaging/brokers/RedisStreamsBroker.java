@@ -0,0 +1,390 @@
+package dev.sergivos.messaging.brokers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.MessagingService;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.params.XAddParams;
+import redis.clients.jedis.params.XReadGroupParams;
+
+/**
+ * A broker using Redis streams, so nodes don't lose the messages sent while they're disconnected or
+ * restarting.
+ * <p>
+ * Messages are appended with {@code XADD} to streams capped at about {@code maxLength} entries, by
+ * pipelining writers like the ones of {@link RedisBroker}. Every node reads them through its own
+ * consumer group, named after the {@code consumerGroup} given to the constructor, with blocking
+ * {@code XREADGROUP}s of up to {@code batchSize} entries, which are acknowledged in bulk once their
+ * packets are dispatched (see {@link MessagingService#handleMessages(List)}). The group keeps the
+ * position of the node in Redis, so after reconnecting or restarting it first replays the entries
+ * it had read but not acknowledged and then resumes where it left. Entries compressed with a
+ * dictionary that hasn't arrived yet are left pending and read again a second later, up to 30
+ * times.
+ * <p>
+ * The consumer group must be unique and stable for each node (e.g. the name of the server): nodes
+ * sharing a group would split the messages between them instead of receiving every one.
+ */
+public final class RedisStreamsBroker extends MessagingBroker {
+
+  private static final byte[] FIELD = "d".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] NEW_ENTRIES = ">".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] PENDING_ENTRIES = "0".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] LAST_ENTRY = "$".getBytes(StandardCharsets.UTF_8);
+  private static final int BLOCK_MILLIS = 1000;
+  private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // an entry still deferred after this many reads is acknowledged and lost
+  private static final int MAX_DEFERRALS = 30;
+
+  private final @NonNull JedisPool pool;
+  private final byte @NonNull [] group;
+  private final @NonNull XAddParams addParams;
+  private final @NonNull XReadGroupParams readParams;
+  private final int writers;
+  private final int capacity;
+  private final Set<ByteBuffer> streams = ConcurrentHashMap.newKeySet();
+  private final Set<ByteBuffer> groups = ConcurrentHashMap.newKeySet();
+  // used by the reader: where each stream is in the replay of pending entries, and how many times
+  // the deferred entries were read
+  private final Map<ByteBuffer, byte[]> pendingCursors = new HashMap<>();
+  private final Map<String, Integer> deferrals = new HashMap<>();
+  private long retryAt;
+  private byte @MonotonicNonNull [] streamName;
+  private byte @MonotonicNonNull [] nodeStreamName;
+  private @MonotonicNonNull RedisPublisher publisher;
+  private @MonotonicNonNull Thread reader;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a new broker, with streams of up to 100000 entries and reading batches of up to 256
+   * entries
+   *
+   * @param host          The host of the Redis server
+   * @param port          The port of the Redis server
+   * @param consumerGroup The name of the consumer group of this node
+   */
+  public RedisStreamsBroker(final @NonNull String host, int port,
+      final @NonNull String consumerGroup) {
+    this(host, port, consumerGroup, 100_000, 256, 1, 65536);
+  }
+
+  /**
+   * Creates a new broker
+   *
+   * @param host          The host of the Redis server
+   * @param port          The port of the Redis server
+   * @param consumerGroup The name of the consumer group of this node
+   * @param maxLength     The approximate maximum number of entries of each stream
+   * @param batchSize     The maximum number of entries read at once from each stream
+   * @param writers       The number of connections appending messages. With more than one,
+   *                      messages may be appended out of order
+   * @param capacity      The maximum number of messages waiting to be appended. Senders wait
+   *                      while it's full
+   */
+  public RedisStreamsBroker(final @NonNull String host, int port,
+      final @NonNull String consumerGroup, long maxLength, int batchSize, int writers,
+      int capacity) {
+    Preconditions.checkArgument(maxLength > 0, "Bad max length (%s)", maxLength);
+    Preconditions.checkArgument(batchSize > 0, "Bad batch size (%s)", batchSize);
+    this.group = consumerGroup.getBytes(StandardCharsets.UTF_8);
+    this.addParams = XAddParams.xAddParams().maxLen(maxLength).approximateTrimming();
+    this.readParams = XReadGroupParams.xReadGroupParams().count(batchSize).block(BLOCK_MILLIS);
+    this.writers = writers;
+    this.capacity = capacity;
+
+    final JedisPoolConfig config = new JedisPoolConfig();
+    // the writers and the reader keep their connections
+    config.setMaxTotal(Math.max(config.getMaxTotal(), writers + 2));
+    this.pool = new JedisPool(config, host, port, 5000);
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    super.setMessagingService(messagingService);
+    this.streamName = messagingService.serviceName().getBytes(StandardCharsets.UTF_8);
+    this.nodeStreamName = nodeStream(messagingService.serverId());
+    this.streams.add(ByteBuffer.wrap(streamName));
+    this.streams.add(ByteBuffer.wrap(nodeStreamName));
+    this.publisher = new RedisPublisher(pool,
+        (pipeline, stream, message) -> pipeline.xadd(stream, addParams, Map.of(FIELD, message)),
+        writers, capacity, messagingService.logger());
+
+    this.reader = new ThreadFactoryBuilder().setNameFormat("MessagingService-redis-reader-%d")
+        .setDaemon(true).build().newThread(this::read);
+    this.reader.start();
+  }
+
+  @Override
+  public void close() throws InterruptedException {
+    closed = true;
+    if (publisher != null && !publisher.close(3, TimeUnit.SECONDS)) {
+      messagingService.logger().warn("Timed out appending the queued messages to Redis");
+    }
+    if (reader != null) {
+      // the reader blocks for up to BLOCK_MILLIS in XREADGROUP
+      reader.join(BLOCK_MILLIS * 2);
+    }
+
+    // our server ID changes on every start, nobody will read this stream again
+    try (final Jedis jedis = pool.getResource()) {
+      jedis.del(nodeStreamName);
+    } catch (JedisException ex) {
+      messagingService.logger().warn("error deleting the stream of this node", ex);
+    }
+    pool.close();
+  }
+
+  @Override
+  public void sendMessage(byte[] message) {
+    publisher.publish(streamName, message);
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull UUID target) {
+    publisher.publish(nodeStream(target), message);
+  }
+
+  @Override
+  public boolean supportsPacketSubjects() {
+    return true;
+  }
+
+  @Override
+  public void sendMessage(byte[] message, final @NonNull String packetType) {
+    publisher.publish(packetStream(packetType), message);
+  }
+
+  /**
+   * Starts reading the stream of a packet type. Its consumer group is kept in Redis after
+   * unsubscribing, so subscribing again resumes from where this node left
+   *
+   * @param packetType The ID of the packet type
+   */
+  @Override
+  public void subscribe(final @NonNull String packetType) {
+    // picked up by the reader on its next read
+    streams.add(ByteBuffer.wrap(packetStream(packetType)));
+  }
+
+  @Override
+  public void unsubscribe(final @NonNull String packetType) {
+    streams.remove(ByteBuffer.wrap(packetStream(packetType)));
+  }
+
+  /**
+   * @return {@code false} while the writers can't reach Redis or their queue is full
+   */
+  @Override
+  public boolean isAvailable() {
+    return publisher != null && publisher.available();
+  }
+
+  /**
+   * @return the number of messages appended to Redis
+   */
+  public long publishedMessages() {
+    return publisher == null ? 0 : publisher.published();
+  }
+
+  /**
+   * @return the number of messages lost because Redis was unreachable when closing, failed writes
+   * are retried otherwise
+   */
+  public long failedMessages() {
+    return publisher == null ? 0 : publisher.failed();
+  }
+
+  /**
+   * @return the stream of the messages of {@code packetType}
+   */
+  private byte @NonNull [] packetStream(final @NonNull String packetType) {
+    return (messagingService.serviceName() + "." + packetType).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the stream of the messages sent only to {@code serverId}
+   */
+  private byte @NonNull [] nodeStream(final @NonNull UUID serverId) {
+    return (messagingService.serviceName() + ":" + serverId).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void read() {
+    while (!closed) {
+      try (final Jedis jedis = pool.getResource()) {
+        // replay the entries read but not acknowledged before disconnecting or restarting
+        boolean pending = true;
+        pendingCursors.clear();
+        while (!closed) {
+          final int entries = readBatch(jedis, pending);
+          if (pending && entries == 0) {
+            pending = false;
+            pendingCursors.clear();
+          } else if (!pending && retryAt != 0 && System.nanoTime() - retryAt >= 0) {
+            // the deferred entries are still pending, replay them
+            retryAt = 0;
+            pending = true;
+          }
+        }
+      } catch (JedisException ex) {
+        // Redis may have lost the groups, i.e. if it was restarted without persistence
+        groups.clear();
+        if (!closed) {
+          messagingService.logger().warn("Redis stream disconnected, reconnecting", ex);
+          LockSupport.parkNanos(this, RECONNECT_NANOS);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads, handles and acknowledges a batch of entries of every stream
+   *
+   * @param pending Whether to replay the entries read but not acknowledged, instead of reading new
+   *                ones
+   * @return the number of entries read
+   */
+  @SuppressWarnings("unchecked")
+  private int readBatch(final @NonNull Jedis jedis, boolean pending) {
+    final ByteBuffer[] keys = streams.toArray(new ByteBuffer[0]);
+    final Map.Entry<byte[], byte[]>[] offsets = new Map.Entry[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      final byte[] key = keys[i].array();
+      if (!groups.contains(keys[i])) {
+        createGroup(jedis, key);
+        groups.add(keys[i]);
+      }
+      offsets[i] = Map.entry(key,
+          pending ? pendingCursors.getOrDefault(keys[i], PENDING_ENTRIES) : NEW_ENTRIES);
+    }
+
+    // the reply is a list of [stream, [[id, [field, value, ...]], ...]]
+    final List<?> reply = jedis.xreadGroup(group, group, readParams, offsets);
+    if (reply == null) {
+      return 0;
+    }
+
+    int read = 0;
+    for (final Object streamReply : reply) {
+      final List<?> stream = (List<?>) streamReply;
+      final byte[] key = (byte[]) stream.get(0);
+      final List<?> entries = (List<?>) stream.get(1);
+      if (entries.isEmpty()) {
+        continue;
+      }
+
+      final byte[][] ids = new byte[entries.size()][];
+      final List<byte[]> messages = new ArrayList<>(ids.length);
+      // the index in ids of each message
+      final int[] positions = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        final List<?> entry = (List<?>) entries.get(i);
+        ids[i] = (byte[]) entry.get(0);
+        final byte[] message = message((List<?>) entry.get(1));
+        // pending entries trimmed from the stream have no fields
+        if (message != null) {
+          positions[messages.size()] = i;
+          messages.add(message);
+        }
+      }
+      if (pending) {
+        pendingCursors.put(ByteBuffer.wrap(key), ids[ids.length - 1]);
+      }
+
+      // unacknowledged entries stay pending, and are read again after reconnecting
+      final BitSet deferred = messagingService.handleMessages(messages);
+      if (deferred == null) {
+        return read;
+      }
+      read += ids.length;
+
+      final byte[][] acked = deferred.isEmpty() && deferrals.isEmpty() ? ids
+          : acknowledged(key, ids, positions, deferred);
+      if (acked.length != 0) {
+        jedis.xack(key, group, acked);
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Leaves the deferred entries of a batch pending, unless they've been deferred too many times
+   *
+   * @return the IDs of the entries to acknowledge
+   */
+  private byte @NonNull [] @NonNull [] acknowledged(byte @NonNull [] key,
+      byte @NonNull [] @NonNull [] ids, int @NonNull [] positions, final @NonNull BitSet deferred) {
+    final String stream = new String(key, StandardCharsets.UTF_8) + ' ';
+    final BitSet kept = new BitSet(ids.length);
+    for (int i = deferred.nextSetBit(0); i >= 0; i = deferred.nextSetBit(i + 1)) {
+      final String entry = stream + new String(ids[positions[i]], StandardCharsets.US_ASCII);
+      final int times = deferrals.merge(entry, 1, Integer::sum);
+      if (times <= MAX_DEFERRALS) {
+        kept.set(positions[i]);
+      } else {
+        deferrals.remove(entry);
+        messagingService.logger().warn("Dropping the entry {}, its dictionary never arrived",
+            entry);
+      }
+    }
+
+    final byte[][] acked = new byte[ids.length - kept.cardinality()][];
+    for (int i = 0, j = 0; i < ids.length; i++) {
+      if (kept.get(i)) {
+        continue;
+      }
+      acked[j++] = ids[i];
+      if (!deferrals.isEmpty()) {
+        deferrals.remove(stream + new String(ids[i], StandardCharsets.US_ASCII));
+      }
+    }
+    if (!kept.isEmpty() && retryAt == 0) {
+      retryAt = System.nanoTime() + RETRY_NANOS;
+    }
+    return acked;
+  }
+
+  private void createGroup(final @NonNull Jedis jedis, byte @NonNull [] stream) {
+    try {
+      jedis.xgroupCreate(stream, group, LAST_ENTRY, true);
+    } catch (JedisDataException ex) {
+      // the group already exists, so we resume from its last entry
+      if (ex.getMessage() == null || !ex.getMessage().startsWith("BUSYGROUP")) {
+        throw ex;
+      }
+    }
+  }
+
+  private static byte @Nullable [] message(final @Nullable List<?> fields) {
+    if (fields == null) {
+      return null;
+    }
+
+    for (int i = 0; i + 1 < fields.size(); i += 2) {
+      if (Arrays.equals((byte[]) fields.get(i), FIELD)) {
+        return (byte[]) fields.get(i + 1);
+      }
+    }
+    return null;
+  }
+
+}
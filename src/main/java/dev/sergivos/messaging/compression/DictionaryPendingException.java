@@ -0,0 +1,29 @@
+package dev.sergivos.messaging.compression;
+
+/**
+ * Thrown when decompressing a message that needs a dictionary this node hasn't received yet. It's
+ * expected while a new dictionary is distributed, so the message should be handled again once the
+ * dictionary arrives instead of being dropped. It has no stack trace.
+ */
+public final class DictionaryPendingException extends IllegalStateException {
+
+  private final int dictionaryId;
+
+  public DictionaryPendingException(int dictionaryId) {
+    super("Unknown zstd dictionary " + dictionaryId);
+    this.dictionaryId = dictionaryId;
+  }
+
+  /**
+   * @return the ID of the missing dictionary
+   */
+  public int dictionaryId() {
+    return this.dictionaryId;
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+
+}
@@ -1,17 +1,101 @@
 package dev.sergivos.messaging.compression;
 
+import dev.sergivos.messaging.MessagingService;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
+/**
+ * Compresses and decompresses the messages sent through a {@link MessagingService}.
+ * <p>
+ * Implementations work on {@link ByteBuf}s end to end, so they can avoid copies: e.g. returning a
+ * retained slice of the frame or wrapping inbound arrays. The {@code byte[]} methods are adapters
+ * kept for compatibility.
+ */
 public interface MessagingCompression {
 
+  /**
+   * The packet type given to {@link #encode(ByteBuf, String)} for batches containing different
+   * packet types
+   */
+  String MIXED_TYPE = "*";
+
+  /**
+   * Called once by the {@link MessagingService} using this compression, before any message is
+   * compressed or decompressed
+   *
+   * @param messagingService The service using this compression
+   */
+  default void setMessagingService(final @NonNull MessagingService messagingService) {
+  }
+
+  /**
+   * Compresses the readable bytes of {@code frame}. The {@code frame} is not released nor are its
+   * indexes modified
+   *
+   * @param frame The buffer containing the data to compress
+   * @return a buffer containing the compressed {@code frame}, it may share memory with {@code
+   * frame}. The caller must release it
+   */
+  @NonNull ByteBuf encode(final @NonNull ByteBuf frame);
+
+  /**
+   * Compresses the readable bytes of {@code frame}, which contains a packet of type {@code
+   * packetType}. By default, the type is ignored
+   *
+   * @param frame      The buffer containing the data to compress
+   * @param packetType The ID of the packet inside {@code frame}, or {@link #MIXED_TYPE}
+   * @return a buffer containing the compressed {@code frame}, it may share memory with {@code
+   * frame}. The caller must release it
+   */
+  default @NonNull ByteBuf encode(final @NonNull ByteBuf frame, final @NonNull String packetType) {
+    return encode(frame);
+  }
+
+  /**
+   * Decompresses the readable bytes of {@code data}. The {@code data} is not released nor are its
+   * indexes modified
+   *
+   * @param data The buffer containing the data to decompress
+   * @return a buffer containing the decompressed data, it may share memory with {@code data}. The
+   * caller must release it
+   * @throws DictionaryPendingException if the data needs a dictionary that hasn't been received yet
+   */
+  @NonNull ByteBuf decode(final @NonNull ByteBuf data);
+
   /**
    * Compresses a {@link ByteBuf} into a byte array
    *
    * @param buffer The buffer containing the data to compress
    * @return a byte array containing the compressed {@code buffer}
    */
-  byte[] compress(final @NonNull ByteBuf buffer);
+  default byte[] compress(final @NonNull ByteBuf buffer) {
+    buffer.readerIndex(0);
+    final ByteBuf data = encode(buffer);
+    try {
+      return ByteBufUtil.getBytes(data);
+    } finally {
+      data.release();
+    }
+  }
+
+  /**
+   * Compresses a {@link ByteBuf} containing a packet of type {@code packetType} into a byte array
+   *
+   * @param buffer     The buffer containing the data to compress
+   * @param packetType The ID of the packet inside {@code buffer}
+   * @return a byte array containing the compressed {@code buffer}
+   */
+  default byte[] compress(final @NonNull ByteBuf buffer, final @NonNull String packetType) {
+    buffer.readerIndex(0);
+    final ByteBuf data = encode(buffer, packetType);
+    try {
+      return ByteBufUtil.getBytes(data);
+    } finally {
+      data.release();
+    }
+  }
 
   /**
    * Decompresses the given data into a {@link ByteBuf}
@@ -19,6 +103,8 @@ public interface MessagingCompression {
    * @param data The byte array containing the data to decompress
    * @return a {@link ByteBuf} containing the decompressed data
    */
-  @NonNull ByteBuf decompress(byte[] data);
+  default @NonNull ByteBuf decompress(byte[] data) {
+    return decode(Unpooled.wrappedBuffer(data));
+  }
 
 }
@@ -1,97 +1,235 @@
 package dev.sergivos.messaging.compression;
 
-public class ZStdCompression /* implements Compression */ {
-//    private static final ByteBufAllocator bufferPool = PooledByteBufAllocator.DEFAULT;
-//    private static final double TOLERANCE = 1.1;
-//
-//    // TODO: migrate
-//    public static byte[] compressData(@NonNull ByteBuf data) throws IOException {
-//        if(data.capacity() == 0) {
-//            return new byte[0];
-//        }
-//
-//        data.readerIndex(0);
-//
-//        int uncompressedBytes = data.writerIndex();
-//        int upperBound = (int) Zstd.compressBound(uncompressedBytes) + 5;
-//
-//        ByteBuf nd = bufferPool.directBuffer(uncompressedBytes, uncompressedBytes);
-//        ByteBuf ndd = bufferPool.directBuffer(upperBound, upperBound);
-//
-//        try {
-//            data.readBytes(nd);
-//            ByteBuffer d = nd.nioBuffer(0, uncompressedBytes);
-//
-//            ByteBuffer dest = ndd.nioBuffer(0, upperBound);
-//            long compressedBytes = Zstd.compressDirectByteBuffer(dest, 5, upperBound - 5, d, 0, uncompressedBytes, 9);
-//            if(Zstd.isError(compressedBytes)) {
-//                throw new IOException(new ZstdException(compressedBytes));
-//            }
-//
-//            if((double) uncompressedBytes / (double) (compressedBytes + 4L) < TOLERANCE) {
-//                byte[] out = new byte[uncompressedBytes + 1];
-//                out[0] = 0x00;
-//                nd.readBytes(out, 1, uncompressedBytes);
-//                return out;
-//            }
-//
-//            dest.put(0, (byte) 0x01);
-//            dest.putInt(1, uncompressedBytes);
-//            dest.rewind();
-//
-//            byte[] out = new byte[(int) compressedBytes + 5];
-//            dest.get(out);
-//            return out;
-//        } finally {
-//            nd.release();
-//            ndd.release();
-//        }
-//    }
-//
-//    // TODO: migrate
-//    public static @NonNull ByteBuf decompressData(@Nullable ByteBuf data) throws IOException {
-//        if(data == null || data.capacity() == 0) {
-//            return bufferPool.buffer(0, 0);
-//        }
-//
-//        int compressedBytes = data.writerIndex();
-//        data.readerIndex(0);
-//
-//        boolean compressed = data.readByte() != 0x00;
-//        if(!compressed) {
-//            ByteBuf retVal = bufferPool.buffer(compressedBytes - 1, compressedBytes - 1);
-//            data.readBytes(retVal);
-//
-////            System.out.println("Received (no) compression: " + compressedBytes + "/" + (compressedBytes - 1) + " (" + ratioFormat.format((double) (compressedBytes - 1) / (double) compressedBytes) + ")");
-//
-//            return retVal;
-//        }
-//
-//        int uncompressedBytes = data.readInt();
-//        ByteBuf nd = bufferPool.directBuffer(compressedBytes - 5, compressedBytes - 5);
-//        ByteBuf ndd = bufferPool.directBuffer(uncompressedBytes, uncompressedBytes);
-//
-//        try {
-//            data.readBytes(nd);
-//            ByteBuffer d = nd.nioBuffer(0, compressedBytes - 5);
-//
-//            ByteBuffer dest = ndd.nioBuffer(0, uncompressedBytes);
-//            long decompressedBytes = Zstd.decompressDirectByteBuffer(dest, 0, uncompressedBytes, d, 0, compressedBytes - 5);
-//            if(Zstd.isError(decompressedBytes)) {
-//                throw new IOException(new ZstdException(decompressedBytes));
-//            }
-//
-////            System.out.println("Received compression: " + compressedBytes + "/" + uncompressedBytes + " (" + ratioFormat.format((double) uncompressedBytes / (double) compressedBytes) + ")");
-//
-//            dest.rewind();
-//            ByteBuf retVal = bufferPool.buffer(uncompressedBytes, uncompressedBytes);
-//            retVal.writeBytes(dest);
-//
-//            return retVal;
-//        } finally {
-//            nd.release();
-//            ndd.release();
-//        }
-//    }
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.nio.ByteBuffer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Compresses messages using <a href="https://github.com/facebook/zstd">Zstandard</a>. Native calls
+ * are done against pooled direct {@link ByteBuf}s, or straight against the backing array of heap
+ * buffers (i.e. inbound messages wrapped by a broker).
+ *
+ * <strong>Compressed format</strong>
+ * <pre>
+ *      +------------------+-----------------------------+
+ *      | 0x00 (Raw)       | Data                        |
+ *      +------------------+-------------------+---------+
+ *      | 0x01 (Zstd)      | Uncompressed size | Data    |
+ *      +------------------+-------------------+---------+
+ * </pre>
+ * <p>
+ * Messages smaller than {@code threshold} bytes, or messages that don't shrink by at least
+ * {@link #TOLERANCE}, are sent raw. Raw messages are never copied.
+ */
+public class ZStdCompression implements MessagingCompression {
+
+  public static final int DEFAULT_LEVEL = 3;
+  public static final int DEFAULT_THRESHOLD = 256;
+  public static final int MAX_DECOMPRESSED_SIZE = 16 * 1024 * 1024; // 16MiB
+
+  static final byte RAW = 0x00;
+  static final byte ZSTD = 0x01;
+  static final int HEADER_SIZE = 5;
+  static final double TOLERANCE = 1.1;
+  static final ByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+  protected final int level;
+  protected final int threshold;
+
+  /**
+   * Creates a new ZStdCompression with the {@link #DEFAULT_LEVEL} and {@link #DEFAULT_THRESHOLD}
+   */
+  public ZStdCompression() {
+    this(DEFAULT_LEVEL, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Creates a new ZStdCompression
+   *
+   * @param level     The zstd compression level
+   * @param threshold The minimum size, in bytes, a message must have to be compressed
+   */
+  public ZStdCompression(int level, int threshold) {
+    Preconditions.checkArgument(threshold >= 0, "Negative threshold (%s)", threshold);
+    this.level = level;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public @NonNull ByteBuf encode(final @NonNull ByteBuf frame) {
+    final int uncompressedBytes = frame.readableBytes();
+    if (uncompressedBytes < threshold) {
+      return raw(frame);
+    }
+
+    final ByteBuf dest = compress(frame, HEADER_SIZE, null);
+    if (dest == null) {
+      return raw(frame);
+    }
+
+    dest.setByte(0, ZSTD);
+    dest.setInt(1, uncompressedBytes);
+    return dest;
+  }
+
+  @Override
+  public @NonNull ByteBuf decode(final @NonNull ByteBuf data) {
+    final int length = data.readableBytes();
+    if (length == 0) {
+      return ALLOCATOR.buffer(0, 0);
+    }
+
+    final int index = data.readerIndex();
+    final byte type = data.getByte(index);
+    if (type == RAW) {
+      return data.retainedSlice(index + 1, length - 1);
+    }
+
+    Preconditions.checkState(type == ZSTD, "Unknown compression type (%s)", type);
+    Preconditions.checkState(length >= HEADER_SIZE, "Truncated zstd message (%s bytes)", length);
+    return decompress(data, index + HEADER_SIZE, length - HEADER_SIZE,
+        checkSize(data.getInt(index + 1)), null);
+  }
+
+  /**
+   * Compresses the readable bytes of {@code frame} into a pooled direct buffer, leaving {@code
+   * headerSize} bytes at the start for the caller to fill
+   *
+   * @return the compressed buffer, or {@code null} if the compression ratio is below {@link
+   * #TOLERANCE}
+   */
+  protected @Nullable ByteBuf compress(final @NonNull ByteBuf frame, int headerSize,
+      final @Nullable ZstdDictCompress dictionary) {
+    final int uncompressedBytes = frame.readableBytes();
+    final int upperBound = (int) Zstd.compressBound(uncompressedBytes) + headerSize;
+
+    final ByteBuf source = direct(frame);
+    final ByteBuf dest = ALLOCATOR.directBuffer(upperBound, upperBound);
+    try {
+      final ByteBuffer src = source.nioBuffer(source.readerIndex(), uncompressedBytes);
+      final ByteBuffer dst = dest.nioBuffer(0, upperBound);
+
+      final long compressedBytes = dictionary == null
+          ? Zstd.compressDirectByteBuffer(dst, headerSize, upperBound - headerSize, src, 0,
+          uncompressedBytes, level)
+          : Zstd.compressDirectByteBufferFastDict(dst, headerSize, upperBound - headerSize, src, 0,
+              uncompressedBytes, dictionary);
+      checkError(compressedBytes);
+
+      if ((double) uncompressedBytes / (double) (compressedBytes + headerSize) < TOLERANCE) {
+        dest.release();
+        return null;
+      }
+
+      dest.writerIndex((int) compressedBytes + headerSize);
+      return dest;
+    } catch (RuntimeException ex) {
+      dest.release();
+      throw ex;
+    } finally {
+      if (source != frame) {
+        source.release();
+      }
+    }
+  }
+
+  /**
+   * Decompresses {@code length} bytes of {@code data}, starting at {@code index}, into a new
+   * buffer of {@code size} bytes. Heap buffers are decompressed straight from their backing array
+   */
+  protected @NonNull ByteBuf decompress(final @NonNull ByteBuf data, int index, int length,
+      int size, final @Nullable ZstdDictDecompress dictionary) {
+    if (data.hasArray()) {
+      final ByteBuf dest;
+      final long decompressedBytes;
+      if (dictionary == null) {
+        dest = ALLOCATOR.heapBuffer(size, size);
+        decompressedBytes = Zstd.decompressByteArray(dest.array(), dest.arrayOffset(), size,
+            data.array(), data.arrayOffset() + index, length);
+      } else {
+        // the dictionary API takes no destination size, so it needs an exactly-sized array
+        final byte[] out = new byte[size];
+        dest = Unpooled.wrappedBuffer(out);
+        decompressedBytes = Zstd.decompressFastDict(out, 0, data.array(),
+            data.arrayOffset() + index, length, dictionary);
+      }
+      return checkDecompressed(dest, decompressedBytes, size);
+    }
+
+    final ByteBuf slice = data.slice(index, length);
+    final ByteBuf source = direct(slice);
+    final ByteBuf dest = ALLOCATOR.directBuffer(size, size);
+    try {
+      final ByteBuffer src = source.nioBuffer(source.readerIndex(), length);
+      final ByteBuffer dst = dest.nioBuffer(0, size);
+      final long decompressedBytes = dictionary == null
+          ? Zstd.decompressDirectByteBuffer(dst, 0, size, src, 0, length)
+          : Zstd.decompressDirectByteBufferFastDict(dst, 0, size, src, 0, length, dictionary);
+      return checkDecompressed(dest, decompressedBytes, size);
+    } finally {
+      if (source != slice) {
+        source.release();
+      }
+    }
+  }
+
+  /**
+   * Returns a buffer with a one byte {@link #RAW} header followed by {@code frame}, without copying
+   * the {@code frame}
+   */
+  static @NonNull ByteBuf raw(final @NonNull ByteBuf frame) {
+    final ByteBuf header = ALLOCATOR.buffer(1, 1).writeByte(RAW);
+    return ALLOCATOR.compositeBuffer(2).addComponents(true, header, frame.retainedSlice());
+  }
+
+  /**
+   * Returns {@code buf} if its readable bytes can be accessed as a single direct {@link
+   * ByteBuffer}, otherwise a pooled direct copy of them that must be released by the caller
+   */
+  static @NonNull ByteBuf direct(final @NonNull ByteBuf buf) {
+    if (buf.isDirect() && buf.nioBufferCount() == 1) {
+      return buf;
+    }
+
+    final int length = buf.readableBytes();
+    final ByteBuf copy = ALLOCATOR.directBuffer(length, length);
+    copy.writeBytes(buf, buf.readerIndex(), length);
+    return copy;
+  }
+
+  static int checkSize(int size) {
+    Preconditions.checkState(size >= 0 && size <= MAX_DECOMPRESSED_SIZE,
+        "Bad uncompressed size (got %s, maximum is %s)", size, MAX_DECOMPRESSED_SIZE);
+    return size;
+  }
+
+  static void checkError(long code) {
+    if (Zstd.isError(code)) {
+      throw new IllegalStateException("zstd error: " + Zstd.getErrorName(code));
+    }
+  }
+
+  private static @NonNull ByteBuf checkDecompressed(final @NonNull ByteBuf dest,
+      long decompressedBytes, int size) {
+    try {
+      checkError(decompressedBytes);
+      Preconditions.checkState(decompressedBytes == size,
+          "Bad decompressed size (got %s, expected %s)", decompressedBytes, size);
+    } catch (RuntimeException ex) {
+      dest.release();
+      throw ex;
+    }
+
+    dest.writerIndex(size);
+    return dest;
+  }
 
 }
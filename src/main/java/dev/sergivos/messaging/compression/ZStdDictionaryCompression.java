@@ -0,0 +1,329 @@
+package dev.sergivos.messaging.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.google.common.base.Preconditions;
+import com.google.common.eventbus.Subscribe;
+import dev.sergivos.messaging.MessagingService;
+import dev.sergivos.messaging.packets.PacketManager;
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A {@link ZStdCompression} that trains a zstd dictionary per packet type, from a sample of the
+ * outgoing traffic. Dictionaries make small messages, where plain zstd barely helps, compress a lot
+ * better.
+ * <p>
+ * Every node trains dictionaries for the packets it sends and distributes them to the rest of nodes
+ * with a {@link ZStdDictionaryPacket}. A dictionary is only used after {@code activationDelay}, so
+ * the peers have time to receive it. Nodes that receive a message compressed with an unknown
+ * dictionary (i.e. they've just joined) ask for the dictionary with a {@link
+ * ZStdDictionaryRequestPacket}, and throw a {@link DictionaryPendingException}: brokers that
+ * acknowledge messages leave it unacknowledged to be redelivered, the rest drop it. Dictionaries
+ * are retrained every {@code samples} samples, nodes keep the current and the previous version of
+ * each one.
+ * <p>
+ * An instance keeps per-service state, so it can only be used by a single {@link
+ * MessagingService}.
+ *
+ * <strong>Compressed format</strong>
+ * <pre>
+ *      +------------------+-----------------------------------------------+
+ *      | 0x00 (Raw)       | Data                                          |
+ *      +------------------+-------------------+---------------------------+
+ *      | 0x01 (Zstd)      | Uncompressed size | Data                      |
+ *      +------------------+---------------+---+---------------+-----------+
+ *      | 0x02 (Zstd dict) | Dictionary ID | Uncompressed size | Data      |
+ *      +------------------+---------------+-------------------+-----------+
+ * </pre>
+ */
+public class ZStdDictionaryCompression extends ZStdCompression {
+
+  public static final int DEFAULT_SAMPLE_RATE = 16;
+  public static final int DEFAULT_SAMPLES = 1000;
+  public static final int DEFAULT_DICTIONARY_SIZE = 16 * 1024; // 16KiB
+  public static final long DEFAULT_ACTIVATION_DELAY = TimeUnit.SECONDS.toMillis(2);
+
+  static final byte ZSTD_DICTIONARY = 0x02;
+  static final int DICTIONARY_HEADER_SIZE = 9;
+  private static final long REQUEST_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final int sampleRate;
+  private final int samples;
+  private final int dictionarySize;
+  private final long activationDelay;
+  private final Map<@NonNull String, @NonNull Trainer> trainers = new ConcurrentHashMap<>();
+  private final Map<@NonNull Integer, @NonNull Dictionary> dictionaries = new ConcurrentHashMap<>();
+  private final Map<@NonNull Integer, @NonNull Long> requests = new ConcurrentHashMap<>();
+  private @MonotonicNonNull MessagingService messagingService;
+  private @MonotonicNonNull Set<String> internalTypes;
+
+  /**
+   * Creates a new ZStdDictionaryCompression with the default settings
+   */
+  public ZStdDictionaryCompression() {
+    this(DEFAULT_LEVEL, DEFAULT_SAMPLE_RATE, DEFAULT_SAMPLES, DEFAULT_DICTIONARY_SIZE,
+        DEFAULT_ACTIVATION_DELAY);
+  }
+
+  /**
+   * Creates a new ZStdDictionaryCompression. Packet types without a dictionary are compressed with
+   * plain zstd using the {@link #DEFAULT_THRESHOLD}
+   *
+   * @param level           The zstd compression level
+   * @param sampleRate      Only one of every {@code sampleRate} messages will be sampled
+   * @param samples         The amount of samples used to train a dictionary
+   * @param dictionarySize  The maximum size of the trained dictionaries, in bytes
+   * @param activationDelay The time, in milliseconds, to wait before using a new dictionary
+   */
+  public ZStdDictionaryCompression(int level, int sampleRate, int samples, int dictionarySize,
+      long activationDelay) {
+    super(level, DEFAULT_THRESHOLD);
+    Preconditions.checkArgument(sampleRate > 0, "Bad sample rate (%s)", sampleRate);
+    Preconditions.checkArgument(samples > 0, "Bad sample count (%s)", samples);
+    Preconditions.checkArgument(dictionarySize > 0, "Bad dictionary size (%s)", dictionarySize);
+    this.sampleRate = sampleRate;
+    this.samples = samples;
+    this.dictionarySize = dictionarySize;
+    this.activationDelay = activationDelay;
+  }
+
+  @Override
+  public void setMessagingService(final @NonNull MessagingService messagingService) {
+    Preconditions.checkState(this.messagingService == null,
+        "ZStdDictionaryCompression is already used by " + this.messagingService);
+    this.messagingService = messagingService;
+
+    final PacketManager packetManager = messagingService.packetManager();
+    if (!packetManager.isRegistered(ZStdDictionaryPacket.class)) {
+      packetManager.register(ZStdDictionaryPacket.class, ZStdDictionaryPacket::new);
+    }
+    if (!packetManager.isRegistered(ZStdDictionaryRequestPacket.class)) {
+      packetManager.register(ZStdDictionaryRequestPacket.class, ZStdDictionaryRequestPacket::new);
+    }
+    this.internalTypes = Set.of(packetManager.id(new ZStdDictionaryPacket()),
+        packetManager.id(new ZStdDictionaryRequestPacket()));
+
+    messagingService.registerListener(new DictionaryListener());
+  }
+
+  @Override
+  public @NonNull ByteBuf encode(final @NonNull ByteBuf frame, final @NonNull String packetType) {
+    // a dictionary trained on batches of different packets wouldn't fit any of them
+    if (messagingService == null || MIXED_TYPE.equals(packetType)
+        || internalTypes.contains(packetType)) {
+      return encode(frame);
+    }
+
+    final int uncompressedBytes = frame.readableBytes();
+    final Trainer trainer = trainers.computeIfAbsent(packetType, Trainer::new);
+    trainer.sample(frame, uncompressedBytes);
+
+    final Dictionary dictionary = trainer.active;
+    if (dictionary == null || uncompressedBytes == 0) {
+      return encode(frame);
+    }
+
+    final ByteBuf dest = compress(frame, DICTIONARY_HEADER_SIZE, dictionary.compress());
+    if (dest == null) {
+      return raw(frame);
+    }
+
+    dest.setByte(0, ZSTD_DICTIONARY);
+    dest.setInt(1, dictionary.id);
+    dest.setInt(5, uncompressedBytes);
+    return dest;
+  }
+
+  @Override
+  public @NonNull ByteBuf decode(final @NonNull ByteBuf data) {
+    final int length = data.readableBytes();
+    final int index = data.readerIndex();
+    if (length == 0 || data.getByte(index) != ZSTD_DICTIONARY) {
+      return super.decode(data);
+    }
+
+    Preconditions.checkState(length >= DICTIONARY_HEADER_SIZE,
+        "Truncated zstd message (%s bytes)", length);
+    final int dictionaryId = data.getInt(index + 1);
+    final Dictionary dictionary = dictionaries.get(dictionaryId);
+    if (dictionary == null) {
+      request(dictionaryId);
+      throw new DictionaryPendingException(dictionaryId);
+    }
+
+    return decompress(data, index + DICTIONARY_HEADER_SIZE, length - DICTIONARY_HEADER_SIZE,
+        checkSize(data.getInt(index + 5)), dictionary.decompress);
+  }
+
+  /**
+   * Stores a dictionary, forgetting the version that {@code dictionary} replaces' predecessor
+   */
+  private void install(final @NonNull Dictionary dictionary) {
+    dictionaries.put(dictionary.id, dictionary);
+
+    final Dictionary previous = dictionaries.get(dictionary.previousId);
+    if (previous != null && previous.previousId != 0) {
+      dictionaries.remove(previous.previousId);
+    }
+  }
+
+  private void request(int dictionaryId) {
+    final long now = System.nanoTime();
+    final Long last = requests.get(dictionaryId);
+    if (last != null && now - last < REQUEST_INTERVAL) {
+      return;
+    }
+
+    requests.put(dictionaryId, now);
+    messagingService.sendPacket(new ZStdDictionaryRequestPacket(dictionaryId));
+  }
+
+  private static final class Dictionary {
+
+    private final @NonNull String packetType;
+    private final int id;
+    private final int previousId;
+    private final int version;
+    private final byte @NonNull [] data;
+    private final boolean owned;
+    private final @NonNull ZstdDictDecompress decompress;
+    private final @Nullable ZstdDictCompress compress;
+
+    private Dictionary(final @NonNull String packetType, int id, int previousId, int version,
+        byte @NonNull [] data, boolean owned, int level) {
+      this.packetType = packetType;
+      this.id = id;
+      this.previousId = previousId;
+      this.version = version;
+      this.data = data;
+      this.owned = owned;
+      this.decompress = new ZstdDictDecompress(data);
+      this.compress = owned ? new ZstdDictCompress(data, level) : null;
+    }
+
+    private @NonNull ZstdDictCompress compress() {
+      return Preconditions.checkNotNull(compress, "Dictionary %s is not owned", id);
+    }
+
+    private @NonNull ZStdDictionaryPacket toPacket() {
+      return new ZStdDictionaryPacket(packetType, id, previousId, version, data);
+    }
+
+  }
+
+  /**
+   * Samples the outgoing messages of a packet type and trains its dictionaries
+   */
+  private final class Trainer {
+
+    private final @NonNull String packetType;
+    private final AtomicInteger counter = new AtomicInteger();
+    private final List<byte[]> pending = new ArrayList<>();
+    private volatile @Nullable Dictionary active;
+    private int pendingBytes;
+    private int version;
+    private boolean training;
+
+    private Trainer(final @NonNull String packetType) {
+      this.packetType = packetType;
+    }
+
+    private void sample(final @NonNull ByteBuf buf, int length) {
+      if (length == 0 || counter.incrementAndGet() % sampleRate != 0) {
+        return;
+      }
+
+      final byte[] sample = new byte[length];
+      buf.getBytes(buf.readerIndex(), sample);
+
+      final List<byte[]> batch;
+      final int batchBytes;
+      synchronized (this) {
+        if (training) {
+          return;
+        }
+
+        pending.add(sample);
+        pendingBytes += length;
+        if (pending.size() < samples) {
+          return;
+        }
+
+        batch = new ArrayList<>(pending);
+        batchBytes = pendingBytes;
+        pending.clear();
+        pendingBytes = 0;
+        training = true;
+      }
+
+      CompletableFuture.runAsync(() -> train(batch, batchBytes));
+    }
+
+    private void train(final @NonNull List<byte[]> batch, int batchBytes) {
+      try {
+        final ZstdDictTrainer trainer = new ZstdDictTrainer(batchBytes, dictionarySize);
+        for (final byte[] sample : batch) {
+          trainer.addSample(sample);
+        }
+
+        final byte[] data = trainer.trainSamples();
+        final int id = (int) Zstd.getDictIdFromDict(data);
+        final Dictionary previous = active;
+        final Dictionary dictionary = new Dictionary(packetType, id,
+            previous == null ? 0 : previous.id, ++version, data, true, level);
+
+        install(dictionary);
+        messagingService.sendPacket(dictionary.toPacket());
+        messagingService.logger().info("Trained zstd dictionary {} (v{}, {} bytes) for {}",
+            id, dictionary.version, data.length, packetType);
+
+        CompletableFuture.delayedExecutor(activationDelay, TimeUnit.MILLISECONDS)
+            .execute(() -> active = dictionary);
+      } catch (Exception ex) {
+        messagingService.logger().warn("error training zstd dictionary for " + packetType, ex);
+      } finally {
+        synchronized (this) {
+          training = false;
+        }
+      }
+    }
+
+  }
+
+  private final class DictionaryListener {
+
+    @Subscribe
+    public void onDictionary(final @NonNull ZStdDictionaryPacket packet) {
+      if (dictionaries.containsKey(packet.dictionaryId())) {
+        return;
+      }
+
+      install(new Dictionary(packet.packetType(), packet.dictionaryId(), packet.previousId(),
+          packet.version(), packet.dictionary(), false, level));
+      requests.remove(packet.dictionaryId());
+    }
+
+    @Subscribe
+    public void onRequest(final @NonNull ZStdDictionaryRequestPacket packet) {
+      final Dictionary dictionary = dictionaries.get(packet.dictionaryId());
+      if (dictionary != null && dictionary.owned) {
+        messagingService.sendPacket(dictionary.toPacket());
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,83 @@
+package dev.sergivos.messaging.compression;
+
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Distributes a trained zstd dictionary to the rest of the nodes. See {@link
+ * ZStdDictionaryCompression}
+ */
+public final class ZStdDictionaryPacket implements Packet {
+
+  private static final int MAX_DICTIONARY_SIZE = 1024 * 1024; // 1MiB
+
+  private @MonotonicNonNull String packetType;
+  private int dictionaryId;
+  private int previousId;
+  private int version;
+  private byte @MonotonicNonNull [] dictionary;
+
+  public ZStdDictionaryPacket() {
+  }
+
+  public ZStdDictionaryPacket(final @NonNull String packetType, int dictionaryId, int previousId,
+      int version, byte @NonNull [] dictionary) {
+    this.packetType = packetType;
+    this.dictionaryId = dictionaryId;
+    this.previousId = previousId;
+    this.version = version;
+    this.dictionary = dictionary;
+  }
+
+  public @MonotonicNonNull String packetType() {
+    return this.packetType;
+  }
+
+  public int dictionaryId() {
+    return this.dictionaryId;
+  }
+
+  public int previousId() {
+    return this.previousId;
+  }
+
+  public int version() {
+    return this.version;
+  }
+
+  public byte @MonotonicNonNull [] dictionary() {
+    return this.dictionary;
+  }
+
+  @Override
+  public void read(final @NonNull ByteBuf buf) {
+    this.packetType = PacketUtils.readString(buf);
+    this.dictionaryId = buf.readInt();
+    this.previousId = buf.readInt();
+    this.version = PacketUtils.readVarInt(buf);
+    this.dictionary = PacketUtils.readByteArray(buf, MAX_DICTIONARY_SIZE);
+  }
+
+  @Override
+  public void write(final @NonNull ByteBuf buf) {
+    PacketUtils.writeString(buf, this.packetType);
+    buf.writeInt(this.dictionaryId);
+    buf.writeInt(this.previousId);
+    PacketUtils.writeVarInt(buf, this.version);
+    PacketUtils.writeByteArray(buf, this.dictionary);
+  }
+
+  @Override
+  public String toString() {
+    return "ZStdDictionaryPacket{" +
+        "packetType='" + packetType + '\'' +
+        ", dictionaryId=" + dictionaryId +
+        ", previousId=" + previousId +
+        ", version=" + version +
+        '}';
+  }
+
+}
@@ -0,0 +1,43 @@
+package dev.sergivos.messaging.compression;
+
+import dev.sergivos.messaging.packets.Packet;
+import io.netty.buffer.ByteBuf;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Asks the owner of a zstd dictionary to distribute it again. Sent by nodes that received a message
+ * compressed with a dictionary they don't know. See {@link ZStdDictionaryCompression}
+ */
+public final class ZStdDictionaryRequestPacket implements Packet {
+
+  private int dictionaryId;
+
+  public ZStdDictionaryRequestPacket() {
+  }
+
+  public ZStdDictionaryRequestPacket(int dictionaryId) {
+    this.dictionaryId = dictionaryId;
+  }
+
+  public int dictionaryId() {
+    return this.dictionaryId;
+  }
+
+  @Override
+  public void read(final @NonNull ByteBuf buf) {
+    this.dictionaryId = buf.readInt();
+  }
+
+  @Override
+  public void write(final @NonNull ByteBuf buf) {
+    buf.writeInt(this.dictionaryId);
+  }
+
+  @Override
+  public String toString() {
+    return "ZStdDictionaryRequestPacket{" +
+        "dictionaryId=" + dictionaryId +
+        '}';
+  }
+
+}
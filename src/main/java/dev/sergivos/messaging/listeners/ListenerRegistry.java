@@ -0,0 +1,268 @@
+package dev.sergivos.messaging.listeners;
+
+import com.google.common.eventbus.Subscribe;
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketManager;
+import dev.sergivos.messaging.packets.PacketType;
+import dev.sergivos.messaging.packets.PooledPacket;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+
+/**
+ * Dispatches received {@link Packet}s to the handlers of the registered listeners. See {@link
+ * PacketHandler}
+ * <p>
+ * Handlers are bound when their listener is registered, and indexed by the numeric ID of the
+ * {@link PacketType}s they handle, so dispatching a packet is a single array lookup. The index is
+ * rebuilt whenever a listener or a packet is (un)registered.
+ */
+public final class ListenerRegistry {
+
+  private static final @NonNull Handler @NonNull [] NO_HANDLERS = new Handler[0];
+  private static final Comparator<Handler> ORDER = Comparator
+      .comparingInt((Handler handler) -> -handler.priority)
+      .thenComparingLong(handler -> handler.order);
+
+  private final @NonNull PacketManager packetManager;
+  private final @NonNull Logger logger;
+  private final List<Handler> handlers = new ArrayList<>();
+  private volatile @NonNull Index index = new Index(-1, new Handler[0][]);
+  private long registrations;
+
+  /**
+   * Creates an empty registry
+   *
+   * @param packetManager The manager of the packets dispatched to this registry
+   * @param logger        The logger to report handler errors to
+   */
+  public ListenerRegistry(final @NonNull PacketManager packetManager,
+      final @NonNull Logger logger) {
+    this.packetManager = packetManager;
+    this.logger = logger;
+  }
+
+  /**
+   * Registers every handler of a listener
+   *
+   * @param listener The listener to register
+   * @param executor The executor used to call the handlers, or {@code null} to call them in the
+   *                 receiving thread
+   * @throws IllegalArgumentException if a handler doesn't have a single parameter or can't be
+   *                                  accessed
+   */
+  public synchronized void register(final @NonNull Object listener,
+      final @Nullable Executor executor) throws IllegalArgumentException {
+    final List<Handler> bound = new ArrayList<>();
+    for (Class<?> clazz = listener.getClass(); clazz != Object.class;
+        clazz = clazz.getSuperclass()) {
+      for (final Method method : clazz.getDeclaredMethods()) {
+        final PacketHandler annotation = method.getAnnotation(PacketHandler.class);
+        if (method.isBridge() || Modifier.isStatic(method.getModifiers())
+            || (annotation == null && !method.isAnnotationPresent(Subscribe.class))) {
+          continue;
+        }
+
+        if (method.getParameterCount() != 1 || method.getParameterTypes()[0].isPrimitive()) {
+          throw new IllegalArgumentException(
+              "Handler " + method + " must have exactly one non-primitive parameter");
+        }
+        bound.add(new Handler(listener, method, annotation == null ? 0 : annotation.priority(),
+            registrations++, executor));
+      }
+    }
+
+    handlers.addAll(bound);
+    index = new Index(-1, index.handlers);
+  }
+
+  /**
+   * Unregisters every handler of a listener
+   *
+   * @param listener The listener to unregister
+   * @throws IllegalArgumentException if the listener is not registered
+   */
+  public synchronized void unregister(final @NonNull Object listener)
+      throws IllegalArgumentException {
+    if (!handlers.removeIf(handler -> handler.listener == listener)) {
+      throw new IllegalArgumentException("Listener " + listener + " is not registered.");
+    }
+    index = new Index(-1, index.handlers);
+  }
+
+  /**
+   * Calls every handler of a {@link Packet}
+   *
+   * @param packetType The type of the {@code packet}, from the {@link PacketManager} of this
+   *                   registry
+   * @param packet     The packet to dispatch
+   */
+  public void dispatch(final @NonNull PacketType<?> packetType, final @NonNull Packet packet) {
+    Index index = this.index;
+    if (index.version != packetManager.version()) {
+      index = rebuild();
+    }
+
+    final int numericId = packetType.numericId();
+    final Handler[] handlers = numericId < index.handlers.length ? index.handlers[numericId]
+        : NO_HANDLERS;
+    for (final Handler handler : handlers) {
+      handler.handle(packet);
+    }
+  }
+
+  /**
+   * @return the IDs of the packet types with at least one handler
+   */
+  public @NonNull Set<@NonNull String> packetTypes() {
+    Index index = this.index;
+    if (index.version != packetManager.version()) {
+      index = rebuild();
+    }
+
+    final Set<String> packetTypes = new HashSet<>();
+    for (int i = 0; i < index.handlers.length; i++) {
+      final PacketType<?> type = packetManager.type(i);
+      if (index.handlers[i].length > 0 && type != null) {
+        packetTypes.add(type.id());
+      }
+    }
+    return packetTypes;
+  }
+
+  private synchronized @NonNull Index rebuild() {
+    final int version = packetManager.version();
+    if (index.version == version) {
+      return index;
+    }
+
+    final int size = packetManager.table().length;
+    final Handler[][] table = new Handler[size][];
+    for (int i = 0; i < size; i++) {
+      final PacketType<?> type = packetManager.type(i);
+      if (type == null) {
+        table[i] = NO_HANDLERS;
+        continue;
+      }
+
+      table[i] = handlers.stream()
+          .filter(handler -> handler.packetClass.isAssignableFrom(type.packetClass()))
+          .sorted(ORDER)
+          .toArray(Handler[]::new);
+    }
+
+    return index = new Index(version, table);
+  }
+
+  private static final class Index {
+
+    private final int version;
+    private final @NonNull Handler @NonNull [] @NonNull [] handlers;
+
+    private Index(int version, final @NonNull Handler @NonNull [] @NonNull [] handlers) {
+      this.version = version;
+      this.handlers = handlers;
+    }
+
+  }
+
+  private final class Handler {
+
+    private final @NonNull Object listener;
+    private final @NonNull Class<?> packetClass;
+    private final int priority;
+    private final long order;
+    private final @Nullable Executor executor;
+    private final @Nullable Consumer<Object> consumer;
+    private final @NonNull MethodHandle handle;
+
+    @SuppressWarnings("unchecked")
+    private Handler(final @NonNull Object listener, final @NonNull Method method, int priority,
+        long order, final @Nullable Executor executor) {
+      this.listener = listener;
+      this.packetClass = method.getParameterTypes()[0];
+      this.priority = priority;
+      this.order = order;
+      this.executor = executor;
+
+      Consumer<Object> consumer = null;
+      MethodHandle handle;
+      try {
+        // bind a lambda in the listener's class, so the JIT can inline the handler
+        final MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+            method.getDeclaringClass(), MethodHandles.lookup());
+        handle = lookup.unreflect(method);
+        consumer = (Consumer<Object>) LambdaMetafactory.metafactory(lookup, "accept",
+            MethodType.methodType(Consumer.class, method.getDeclaringClass()),
+            MethodType.methodType(void.class, Object.class), handle,
+            MethodType.methodType(void.class, packetClass)).getTarget().invoke(listener);
+      } catch (Throwable ex) {
+        try {
+          method.setAccessible(true);
+          handle = MethodHandles.lookup().unreflect(method);
+        } catch (RuntimeException | IllegalAccessException ex2) {
+          throw new IllegalArgumentException("Handler " + method + " is not accessible", ex2);
+        }
+      }
+
+      this.consumer = consumer;
+      this.handle = handle.bindTo(listener)
+          .asType(MethodType.methodType(void.class, Packet.class));
+    }
+
+    private void handle(final @NonNull Packet packet) {
+      if (executor == null) {
+        invoke(packet);
+        return;
+      }
+
+      if (!(packet instanceof PooledPacket)) {
+        executor.execute(() -> invoke(packet));
+        return;
+      }
+
+      // keep the packet out of the pool until the handler is done with it
+      final PooledPacket pooled = (PooledPacket) packet;
+      pooled.retain();
+      try {
+        executor.execute(() -> {
+          try {
+            invoke(pooled);
+          } finally {
+            pooled.release();
+          }
+        });
+      } catch (RuntimeException ex) {
+        pooled.release();
+        throw ex;
+      }
+    }
+
+    private void invoke(final @NonNull Packet packet) {
+      try {
+        if (consumer != null) {
+          consumer.accept(packet);
+        } else {
+          handle.invokeExact(packet);
+        }
+      } catch (Throwable ex) {
+        logger.error("error handling packet " + packet + " in " + listener, ex);
+      }
+    }
+
+  }
+
+}
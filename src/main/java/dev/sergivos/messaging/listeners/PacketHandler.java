@@ -0,0 +1,24 @@
+package dev.sergivos.messaging.listeners;
+
+import dev.sergivos.messaging.packets.Packet;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a listener as a {@link Packet} handler. The method must have a single
+ * parameter, and will handle every packet assignable to it
+ * <p>
+ * Methods annotated with Guava's {@code @Subscribe} are also handlers, with the default priority
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PacketHandler {
+
+  /**
+   * @return the priority of the handler. Handlers with a higher priority are called first
+   */
+  int priority() default 0;
+
+}
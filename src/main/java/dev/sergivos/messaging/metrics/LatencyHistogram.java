@@ -0,0 +1,181 @@
+package dev.sergivos.messaging.metrics;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * A lock-free histogram of durations, in nanoseconds.
+ * <p>
+ * Samples are counted in a log-linear histogram: every power of two is split in 8 buckets, so
+ * percentiles are at most 12.5% bigger than the real ones, and never smaller. Recording a sample
+ * is a couple of atomic increments, it never allocates nor locks.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final long MAX_VALUE = 1L << 40; // ~18 minutes
+  private static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a sample
+   *
+   * @param nanos The duration to record. Negative durations are recorded as {@code 0}
+   */
+  public void record(long nanos) {
+    final long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+    counts.incrementAndGet(bucket(value));
+    sum.add(value);
+
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      // retry
+    }
+  }
+
+  /**
+   * @return a copy of the current state of the histogram. Samples recorded while copying may be
+   * partially included
+   */
+  public @NonNull Snapshot snapshot() {
+    final long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    return new Snapshot(snapshot, count, sum.sum(), max.get());
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final int subBucket = bucket % SUB_BUCKETS;
+    final long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + subBucket) * width) + width - 1;
+  }
+
+  /**
+   * An immutable copy of a {@link LatencyHistogram}. Values are in nanoseconds
+   */
+  public static final class Snapshot {
+
+    private final long @NonNull [] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(final long @NonNull [] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public long count() {
+      return this.count;
+    }
+
+    /**
+     * @return the sum of every sample
+     */
+    public long sum() {
+      return this.sum;
+    }
+
+    /**
+     * @return the biggest sample, or {@code 0} if there are none
+     */
+    public long max() {
+      return this.max;
+    }
+
+    /**
+     * @return the mean of the samples, or {@code 0} if there are none
+     */
+    public double mean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Estimates a quantile of the samples, using the nearest-rank method. The estimate is never
+     * smaller than the real value
+     *
+     * @param quantile The quantile, between 0 and 1
+     * @return the estimate, or {@code 0} if there are no samples
+     */
+    public long quantile(double quantile) {
+      Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "Bad quantile (%s)", quantile);
+      if (count == 0) {
+        return 0;
+      }
+
+      final long target = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= target) {
+          return Math.min(upperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * Returns the samples recorded since an older snapshot of the same histogram, e.g. to export
+     * per-interval percentiles
+     *
+     * @param previous The older snapshot
+     * @return the difference between both snapshots. Its max is the max of this snapshot
+     */
+    public @NonNull Snapshot since(final @NonNull Snapshot previous) {
+      final long[] diff = new long[counts.length];
+      for (int i = 0; i < diff.length; i++) {
+        diff[i] = Math.max(0, counts[i] - previous.counts[i]);
+      }
+      return new Snapshot(diff, Math.max(0, count - previous.count),
+          Math.max(0, sum - previous.sum), max);
+    }
+
+    @Override
+    public String toString() {
+      return "LatencyHistogram{" +
+          "count=" + count +
+          ", mean=" + toMicros((long) mean()) + "us" +
+          ", p50=" + toMicros(quantile(0.5)) + "us" +
+          ", p99=" + toMicros(quantile(0.99)) + "us" +
+          ", max=" + toMicros(max) + "us" +
+          '}';
+    }
+
+    private static long toMicros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+  }
+
+}
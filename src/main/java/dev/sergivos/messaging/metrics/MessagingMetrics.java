@@ -0,0 +1,344 @@
+package dev.sergivos.messaging.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+
+/**
+ * The metrics of a {@link dev.sergivos.messaging.MessagingService}: per packet type counters, sizes
+ * and latencies, plus the state of the send queue and the broker.
+ * <p>
+ * Metrics are always on. Counters are {@link LongAdder}s and histograms are lock-free, so recording
+ * never blocks the send and receive paths. They can be read with {@link #snapshot()} or pushed
+ * periodically to a {@link MetricsExporter}.
+ */
+public final class MessagingMetrics {
+
+  private final Map<String, PacketTypeMetrics> packetTypes = new ConcurrentHashMap<>();
+  private final Map<UUID, LatencyHistogram> senders = new ConcurrentHashMap<>();
+  private final LatencyHistogram compress = new LatencyHistogram();
+  private final LatencyHistogram decompress = new LatencyHistogram();
+  private final LatencyHistogram brokerPublish = new LatencyHistogram();
+  private final LongAdder unknownPackets = new LongAdder();
+  private final LongAdder invalidMessages = new LongAdder();
+  private final LongAdder duplicateMessages = new LongAdder();
+  private final @NonNull IntSupplier sendQueueSize;
+  private final @NonNull LongSupplier droppedPackets;
+  private final @NonNull LongSupplier rejectedPackets;
+  private final @NonNull Logger logger;
+  private @MonotonicNonNull ScheduledExecutorService scheduler;
+  private @Nullable MetricsExporter exporter;
+
+  /**
+   * @param sendQueueSize   The number of packets waiting in the send queue
+   * @param droppedPackets  The number of packets dropped because the send queue was full
+   * @param rejectedPackets The number of packets rejected because the send queue was full
+   * @param logger          The logger to report exporter errors to
+   */
+  public MessagingMetrics(final @NonNull IntSupplier sendQueueSize,
+      final @NonNull LongSupplier droppedPackets, final @NonNull LongSupplier rejectedPackets,
+      final @NonNull Logger logger) {
+    this.sendQueueSize = sendQueueSize;
+    this.droppedPackets = droppedPackets;
+    this.rejectedPackets = rejectedPackets;
+    this.logger = logger;
+  }
+
+  /**
+   * @param id The ID of the packet type
+   * @return the metrics of the packet type, created on first use
+   */
+  public @NonNull PacketTypeMetrics packetType(final @NonNull String id) {
+    final PacketTypeMetrics metrics = packetTypes.get(id);
+    return metrics != null ? metrics : packetTypes.computeIfAbsent(id, PacketTypeMetrics::new);
+  }
+
+  /**
+   * Records the one-way delay of a packet, from {@code sendPacket} on its sender to its listeners
+   * being called here
+   *
+   * @param packetType The ID of the packet type
+   * @param sender     The server ID of the sender, or {@code null} if it's unknown
+   * @param nanos      The delay
+   */
+  public void recordDelivery(final @NonNull String packetType, final @Nullable UUID sender,
+      long nanos) {
+    packetType(packetType).recordDelivery(nanos);
+    if (sender == null) {
+      return;
+    }
+
+    LatencyHistogram histogram = senders.get(sender);
+    if (histogram == null) {
+      histogram = senders.computeIfAbsent(sender, key -> new LatencyHistogram());
+    }
+    histogram.record(nanos);
+  }
+
+  /**
+   * Forgets the delivery delays of a sender, i.e. once it has left
+   *
+   * @param sender The server ID of the sender
+   */
+  public void removeSender(final @NonNull UUID sender) {
+    senders.remove(sender);
+  }
+
+  /**
+   * Records the time it took to compress a frame
+   *
+   * @param nanos The time it took
+   */
+  public void recordCompress(long nanos) {
+    compress.record(nanos);
+  }
+
+  /**
+   * Records the time it took to decompress a frame
+   *
+   * @param nanos The time it took
+   */
+  public void recordDecompress(long nanos) {
+    decompress.record(nanos);
+  }
+
+  /**
+   * Records the time it took the broker to publish a frame
+   *
+   * @param nanos The time it took
+   */
+  public void recordBrokerPublish(long nanos) {
+    brokerPublish.record(nanos);
+  }
+
+  /**
+   * Records a received packet whose type is not registered
+   */
+  public void recordUnknownPacket() {
+    unknownPackets.increment();
+  }
+
+  /**
+   * Records a received message that couldn't be decompressed or decoded
+   */
+  public void recordInvalidMessage() {
+    invalidMessages.increment();
+  }
+
+  /**
+   * Records a received message dropped because it had already been received
+   */
+  public void recordDuplicateMessage() {
+    duplicateMessages.increment();
+  }
+
+  /**
+   * @return a copy of the current metrics
+   */
+  public @NonNull Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * Starts exporting the metrics periodically, in their own thread
+   *
+   * @param exporter The exporter
+   * @param period   The time between exports
+   * @param unit     The unit of {@code period}
+   * @throws IllegalStateException if the metrics are already being exported
+   */
+  public synchronized void export(final @NonNull MetricsExporter exporter, long period,
+      final @NonNull TimeUnit unit) throws IllegalStateException {
+    Preconditions.checkState(this.exporter == null, "The metrics are already being exported");
+    Preconditions.checkArgument(period > 0, "Bad period (%s)", period);
+    this.exporter = exporter;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("MessagingService-metrics-%d").setDaemon(true).build());
+    this.scheduler.scheduleAtFixedRate(this::runExporter, period, period, unit);
+  }
+
+  /**
+   * Stops the exporter, if any, after exporting the last metrics
+   */
+  public synchronized void close() {
+    if (exporter == null) {
+      return;
+    }
+
+    scheduler.shutdownNow();
+    runExporter();
+    exporter = null;
+  }
+
+  private void runExporter() {
+    final MetricsExporter exporter = this.exporter;
+    if (exporter == null) {
+      return;
+    }
+
+    try {
+      exporter.export(snapshot());
+    } catch (Throwable ex) {
+      logger.error("error exporting metrics", ex);
+    }
+  }
+
+  /**
+   * An immutable copy of the metrics of a {@link dev.sergivos.messaging.MessagingService}
+   */
+  public static final class Snapshot {
+
+    private final long timestamp;
+    private final @NonNull Map<String, PacketTypeMetrics.Snapshot> packetTypes;
+    private final @NonNull Map<UUID, LatencyHistogram.Snapshot> senders;
+    private final LatencyHistogram.@NonNull Snapshot compress;
+    private final LatencyHistogram.@NonNull Snapshot decompress;
+    private final LatencyHistogram.@NonNull Snapshot brokerPublish;
+    private final int sendQueueSize;
+    private final long droppedPackets;
+    private final long rejectedPackets;
+    private final long unknownPackets;
+    private final long invalidMessages;
+    private final long duplicateMessages;
+
+    private Snapshot(final @NonNull MessagingMetrics metrics) {
+      this.timestamp = System.currentTimeMillis();
+      final Map<String, PacketTypeMetrics.Snapshot> packetTypes = new HashMap<>();
+      metrics.packetTypes.forEach((id, type) -> packetTypes.put(id, type.snapshot()));
+      this.packetTypes = Collections.unmodifiableMap(packetTypes);
+      final Map<UUID, LatencyHistogram.Snapshot> senders = new HashMap<>();
+      metrics.senders.forEach((id, histogram) -> senders.put(id, histogram.snapshot()));
+      this.senders = Collections.unmodifiableMap(senders);
+      this.compress = metrics.compress.snapshot();
+      this.decompress = metrics.decompress.snapshot();
+      this.brokerPublish = metrics.brokerPublish.snapshot();
+      this.sendQueueSize = metrics.sendQueueSize.getAsInt();
+      this.droppedPackets = metrics.droppedPackets.getAsLong();
+      this.rejectedPackets = metrics.rejectedPackets.getAsLong();
+      this.unknownPackets = metrics.unknownPackets.sum();
+      this.invalidMessages = metrics.invalidMessages.sum();
+      this.duplicateMessages = metrics.duplicateMessages.sum();
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the epoch
+     */
+    public long timestamp() {
+      return this.timestamp;
+    }
+
+    /**
+     * @return the metrics of every packet type sent or received, by ID. Batches containing
+     * different packet types are counted under {@code "*"}
+     */
+    public @NonNull Map<String, PacketTypeMetrics.Snapshot> packetTypes() {
+      return this.packetTypes;
+    }
+
+    /**
+     * @return the one-way delay of the received packets, by the server ID of their sender. Empty
+     * unless send timestamps are enabled
+     */
+    public @NonNull Map<UUID, LatencyHistogram.Snapshot> senders() {
+      return this.senders;
+    }
+
+    /**
+     * @return the time it took to compress the sent frames
+     */
+    public LatencyHistogram.@NonNull Snapshot compress() {
+      return this.compress;
+    }
+
+    /**
+     * @return the time it took to decompress the received frames
+     */
+    public LatencyHistogram.@NonNull Snapshot decompress() {
+      return this.decompress;
+    }
+
+    /**
+     * @return the time it took the broker to publish the sent frames
+     */
+    public LatencyHistogram.@NonNull Snapshot brokerPublish() {
+      return this.brokerPublish;
+    }
+
+    /**
+     * @return the number of packets waiting in the send queue
+     */
+    public int sendQueueSize() {
+      return this.sendQueueSize;
+    }
+
+    /**
+     * @return the number of packets dropped because the send queue was full
+     */
+    public long droppedPackets() {
+      return this.droppedPackets;
+    }
+
+    /**
+     * @return the number of packets rejected because the send queue was full
+     */
+    public long rejectedPackets() {
+      return this.rejectedPackets;
+    }
+
+    /**
+     * @return the number of received packets whose type is not registered
+     */
+    public long unknownPackets() {
+      return this.unknownPackets;
+    }
+
+    /**
+     * @return the number of received messages that couldn't be decompressed or decoded
+     */
+    public long invalidMessages() {
+      return this.invalidMessages;
+    }
+
+    /**
+     * @return the number of received messages dropped as duplicates, or because they were too old
+     * to tell. Always {@code 0} unless deduplication is enabled
+     */
+    public long duplicateMessages() {
+      return this.duplicateMessages;
+    }
+
+    @Override
+    public String toString() {
+      return "MessagingMetrics{" +
+          "timestamp=" + timestamp +
+          ", packetTypes=" + packetTypes.values() +
+          ", senders=" + senders +
+          ", compress=" + compress +
+          ", decompress=" + decompress +
+          ", brokerPublish=" + brokerPublish +
+          ", sendQueueSize=" + sendQueueSize +
+          ", droppedPackets=" + droppedPackets +
+          ", rejectedPackets=" + rejectedPackets +
+          ", unknownPackets=" + unknownPackets +
+          ", invalidMessages=" + invalidMessages +
+          ", duplicateMessages=" + duplicateMessages +
+          '}';
+    }
+
+  }
+
+}
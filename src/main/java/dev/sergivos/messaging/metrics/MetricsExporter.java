@@ -0,0 +1,22 @@
+package dev.sergivos.messaging.metrics;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Receives periodic snapshots of the metrics of a {@link dev.sergivos.messaging.MessagingService},
+ * e.g. to publish them to a monitoring system. See {@link
+ * dev.sergivos.messaging.MessagingService.Builder#metricsExporter(MetricsExporter, long,
+ * java.util.concurrent.TimeUnit)}
+ */
+@FunctionalInterface
+public interface MetricsExporter {
+
+  /**
+   * Called in the metrics thread with the current metrics. Counters and histograms are cumulative,
+   * see {@link LatencyHistogram.Snapshot#since(LatencyHistogram.Snapshot)}
+   *
+   * @param snapshot The metrics
+   */
+  void export(final MessagingMetrics.@NonNull Snapshot snapshot);
+
+}
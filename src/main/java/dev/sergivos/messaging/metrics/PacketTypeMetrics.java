@@ -0,0 +1,269 @@
+package dev.sergivos.messaging.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * The metrics of a single packet type.
+ * <p>
+ * Raw sizes are the serialized size of the packets, without the frame header. Compressed sizes are
+ * the size of the frames sent to or received from the broker; batches are attributed to their packet
+ * type when they contain a single one.
+ * <p>
+ * The delivery time is the one-way delay from {@code sendPacket} on the sender to the listeners
+ * being called here. It's only recorded when {@link
+ * dev.sergivos.messaging.MessagingService.Builder#sendTimestamps(boolean) send timestamps} are
+ * enabled and relies on the clocks of the nodes being synchronized. It's split in the send queue
+ * time, measured by the sender, the broker transit and the receive queue time, measured here.
+ */
+public final class PacketTypeMetrics {
+
+  private final @NonNull String id;
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+  private final LongAdder compressedBytesSent = new LongAdder();
+  private final LongAdder compressedBytesReceived = new LongAdder();
+  private final LatencyHistogram encode = new LatencyHistogram();
+  private final LatencyHistogram decode = new LatencyHistogram();
+  private final LatencyHistogram dispatch = new LatencyHistogram();
+  private final LatencyHistogram sendQueue = new LatencyHistogram();
+  private final LatencyHistogram receiveQueue = new LatencyHistogram();
+  private final LatencyHistogram delivery = new LatencyHistogram();
+
+  PacketTypeMetrics(final @NonNull String id) {
+    this.id = id;
+  }
+
+  /**
+   * Records a serialized packet
+   *
+   * @param bytes The serialized size of the packet
+   * @param nanos The time it took to serialize it
+   */
+  public void recordEncoded(int bytes, long nanos) {
+    sent.increment();
+    bytesSent.add(bytes);
+    encode.record(nanos);
+  }
+
+  /**
+   * Records a packet handed to the broker without serialization
+   */
+  public void recordSentLocally() {
+    sent.increment();
+  }
+
+  /**
+   * Records a frame sent to the broker
+   *
+   * @param bytes The compressed size of the frame
+   */
+  public void recordPublished(int bytes) {
+    compressedBytesSent.add(bytes);
+  }
+
+  /**
+   * Records a deserialized packet
+   *
+   * @param bytes The serialized size of the packet
+   * @param nanos The time it took to deserialize it
+   */
+  public void recordDecoded(int bytes, long nanos) {
+    received.increment();
+    bytesReceived.add(bytes);
+    decode.record(nanos);
+  }
+
+  /**
+   * Records a packet received from the broker without serialization
+   */
+  public void recordReceivedLocally() {
+    received.increment();
+  }
+
+  /**
+   * Records a frame received from the broker
+   *
+   * @param bytes The compressed size of the frame
+   */
+  public void recordConsumed(int bytes) {
+    compressedBytesReceived.add(bytes);
+  }
+
+  /**
+   * Records the time it took to call the listeners of a packet
+   *
+   * @param nanos The time it took
+   */
+  public void recordDispatch(long nanos) {
+    dispatch.record(nanos);
+  }
+
+  /**
+   * Records the time a packet waited between {@code sendPacket} and its serialization
+   *
+   * @param nanos The time it waited
+   */
+  public void recordSendQueue(long nanos) {
+    sendQueue.record(nanos);
+  }
+
+  /**
+   * Records the time a received packet waited between the broker handing its frame to us and its
+   * listeners being called
+   *
+   * @param nanos The time it waited
+   */
+  public void recordReceiveQueue(long nanos) {
+    receiveQueue.record(nanos);
+  }
+
+  /**
+   * Records the time between {@code sendPacket} on the sender and the listeners of a packet being
+   * called
+   *
+   * @param nanos The time it took
+   */
+  public void recordDelivery(long nanos) {
+    delivery.record(nanos);
+  }
+
+  public @NonNull Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * An immutable copy of the metrics of a packet type
+   */
+  public static final class Snapshot {
+
+    private final @NonNull String id;
+    private final long sent;
+    private final long received;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long compressedBytesSent;
+    private final long compressedBytesReceived;
+    private final LatencyHistogram.@NonNull Snapshot encode;
+    private final LatencyHistogram.@NonNull Snapshot decode;
+    private final LatencyHistogram.@NonNull Snapshot dispatch;
+    private final LatencyHistogram.@NonNull Snapshot sendQueue;
+    private final LatencyHistogram.@NonNull Snapshot receiveQueue;
+    private final LatencyHistogram.@NonNull Snapshot delivery;
+
+    private Snapshot(final @NonNull PacketTypeMetrics metrics) {
+      this.id = metrics.id;
+      this.sent = metrics.sent.sum();
+      this.received = metrics.received.sum();
+      this.bytesSent = metrics.bytesSent.sum();
+      this.bytesReceived = metrics.bytesReceived.sum();
+      this.compressedBytesSent = metrics.compressedBytesSent.sum();
+      this.compressedBytesReceived = metrics.compressedBytesReceived.sum();
+      this.encode = metrics.encode.snapshot();
+      this.decode = metrics.decode.snapshot();
+      this.dispatch = metrics.dispatch.snapshot();
+      this.sendQueue = metrics.sendQueue.snapshot();
+      this.receiveQueue = metrics.receiveQueue.snapshot();
+      this.delivery = metrics.delivery.snapshot();
+    }
+
+    /**
+     * @return the ID of the packet type
+     */
+    public @NonNull String id() {
+      return this.id;
+    }
+
+    public long sent() {
+      return this.sent;
+    }
+
+    public long received() {
+      return this.received;
+    }
+
+    public long bytesSent() {
+      return this.bytesSent;
+    }
+
+    public long bytesReceived() {
+      return this.bytesReceived;
+    }
+
+    public long compressedBytesSent() {
+      return this.compressedBytesSent;
+    }
+
+    public long compressedBytesReceived() {
+      return this.compressedBytesReceived;
+    }
+
+    /**
+     * @return the time it took to serialize the sent packets
+     */
+    public LatencyHistogram.@NonNull Snapshot encode() {
+      return this.encode;
+    }
+
+    /**
+     * @return the time it took to deserialize the received packets
+     */
+    public LatencyHistogram.@NonNull Snapshot decode() {
+      return this.decode;
+    }
+
+    /**
+     * @return the time it took to call the listeners of the received packets. Listeners with an
+     * executor are only handed the packet
+     */
+    public LatencyHistogram.@NonNull Snapshot dispatch() {
+      return this.dispatch;
+    }
+
+    /**
+     * @return the time the sent packets waited in the send queue and the batcher before being
+     * serialized
+     */
+    public LatencyHistogram.@NonNull Snapshot sendQueue() {
+      return this.sendQueue;
+    }
+
+    /**
+     * @return the time the received packets waited in the receive pipeline before being dispatched
+     */
+    public LatencyHistogram.@NonNull Snapshot receiveQueue() {
+      return this.receiveQueue;
+    }
+
+    /**
+     * @return the one-way delay of the received packets, from {@code sendPacket} on their sender to
+     * their listeners being called. Empty unless send timestamps are enabled
+     */
+    public LatencyHistogram.@NonNull Snapshot delivery() {
+      return this.delivery;
+    }
+
+    @Override
+    public String toString() {
+      return "PacketTypeMetrics{" +
+          "id='" + id + '\'' +
+          ", sent=" + sent +
+          ", received=" + received +
+          ", bytesSent=" + bytesSent +
+          ", bytesReceived=" + bytesReceived +
+          ", compressedBytesSent=" + compressedBytesSent +
+          ", compressedBytesReceived=" + compressedBytesReceived +
+          ", encode=" + encode +
+          ", decode=" + decode +
+          ", dispatch=" + dispatch +
+          ", sendQueue=" + sendQueue +
+          ", receiveQueue=" + receiveQueue +
+          ", delivery=" + delivery +
+          '}';
+    }
+
+  }
+
+}
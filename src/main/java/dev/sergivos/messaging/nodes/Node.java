@@ -0,0 +1,104 @@
+package dev.sergivos.messaging.nodes;
+
+import dev.sergivos.messaging.MessagingService;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A peer {@link MessagingService} instance, and the state kept about it
+ */
+public final class Node {
+
+  private final @NonNull UUID serverId;
+  volatile int alias;
+  private volatile int @Nullable [] translation;
+  private volatile boolean tableReceived;
+  private volatile @Nullable SequenceWindow sequences;
+  private volatile long lastSeen;
+
+  Node(final @NonNull UUID serverId) {
+    this.serverId = serverId;
+    this.lastSeen = System.nanoTime();
+  }
+
+  public @NonNull UUID serverId() {
+    return this.serverId;
+  }
+
+  /**
+   * @return the alias of the node, or {@code 0} if it hasn't announced one
+   */
+  public int alias() {
+    return this.alias;
+  }
+
+  /**
+   * @return the translation from the numeric packet IDs of the node to ours, or {@code null} if
+   * they're the same or we haven't received its table yet
+   */
+  public int @Nullable [] translation() {
+    return this.translation;
+  }
+
+  /**
+   * Sets the translation built from the packet table of the node
+   *
+   * @param translation The translation, or {@code null} if its numeric packet IDs are the same as
+   *                    ours
+   */
+  public void translation(final int @Nullable [] translation) {
+    this.translation = translation;
+    this.tableReceived = true;
+  }
+
+  /**
+   * @return whether we've received the packet table of the node, so its numeric packet IDs can be
+   * translated
+   */
+  public boolean tableReceived() {
+    return this.tableReceived;
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} at which we last received a frame from the node
+   */
+  public long lastSeen() {
+    return this.lastSeen;
+  }
+
+  /**
+   * Marks the node as active
+   *
+   * @param now The current {@link System#nanoTime()}
+   */
+  public void seen(long now) {
+    this.lastSeen = now;
+  }
+
+  /**
+   * Gets the window of the sequence numbers received from the node, creating it if needed
+   *
+   * @param size The size of the window, used only when creating it
+   * @return the window
+   */
+  public @NonNull SequenceWindow sequences(int size) {
+    SequenceWindow sequences = this.sequences;
+    if (sequences == null) {
+      synchronized (this) {
+        sequences = this.sequences;
+        if (sequences == null) {
+          sequences = new SequenceWindow(size);
+          this.sequences = sequences;
+        }
+      }
+    }
+    return sequences;
+  }
+
+  @Override
+  public String toString() {
+    return alias == 0 ? serverId.toString() : "#" + alias + " (" + serverId + ")";
+  }
+
+}
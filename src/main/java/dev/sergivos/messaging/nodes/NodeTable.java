@@ -0,0 +1,134 @@
+package dev.sergivos.messaging.nodes;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Keeps track of the peers of a service, by server ID and by alias.
+ * <p>
+ * Aliases are small numbers ({@code 1} to {@link #MAX_ALIAS}, at most a two byte VarInt) picked at
+ * random by every node and announced to the rest. When two nodes pick the same alias, the one with
+ * the greater server ID picks a new one.
+ * <p>
+ * Nodes are kept until they're {@link #removeInactive(long, long) inactive} for a while, so the
+ * state of the instances that left is eventually released.
+ */
+public final class NodeTable {
+
+  public static final int MAX_ALIAS = (1 << 14) - 1;
+
+  private final Map<@NonNull UUID, @NonNull Node> nodes = new ConcurrentHashMap<>();
+  private final AtomicReferenceArray<@Nullable Node> aliases =
+      new AtomicReferenceArray<>(MAX_ALIAS + 1);
+
+  /**
+   * @return a random alias, not used by any known node if possible
+   */
+  public int randomAlias() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    int alias = random.nextInt(1, MAX_ALIAS + 1);
+    for (int i = 0; i < 8 && node(alias) != null; i++) {
+      alias = random.nextInt(1, MAX_ALIAS + 1);
+    }
+    return alias;
+  }
+
+  /**
+   * Gets or creates the node with the given server ID
+   *
+   * @param serverId The server ID of the node
+   * @return the node
+   */
+  public @NonNull Node node(final @NonNull UUID serverId) {
+    return nodes.computeIfAbsent(serverId, Node::new);
+  }
+
+  /**
+   * Gets the node with the given alias
+   *
+   * @param alias The alias of the node
+   * @return the node or {@code null} if no node has announced the {@code alias}
+   */
+  public @Nullable Node node(int alias) {
+    return alias > 0 && alias <= MAX_ALIAS ? aliases.get(alias) : null;
+  }
+
+  /**
+   * Sets the alias of a node, replacing any other node that had it. The replaced node keeps no
+   * alias until it announces a new one
+   *
+   * @param node  The node
+   * @param alias The new alias of the node
+   */
+  public void alias(final @NonNull Node node, int alias) {
+    Preconditions.checkArgument(alias > 0 && alias <= MAX_ALIAS, "Bad alias (%s)", alias);
+    synchronized (node) {
+      final int previous = node.alias;
+      if (previous == alias) {
+        return;
+      }
+
+      if (previous != 0) {
+        aliases.compareAndSet(previous, node, null);
+      }
+      node.alias = alias;
+    }
+
+    final Node replaced = aliases.getAndSet(alias, node);
+    if (replaced != null && replaced != node) {
+      synchronized (replaced) {
+        if (replaced.alias == alias) {
+          replaced.alias = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * Forgets a node
+   *
+   * @param serverId The server ID of the node
+   */
+  public void remove(final @NonNull UUID serverId) {
+    final Node node = nodes.remove(serverId);
+    if (node != null) {
+      unalias(node);
+    }
+  }
+
+  /**
+   * Forgets the nodes we haven't received a frame from in {@code timeout}, along with their alias,
+   * packet table and sequence window
+   *
+   * @param timeout The inactivity timeout, in nanoseconds
+   * @param now     The current {@link System#nanoTime()}
+   * @return the nodes forgotten
+   */
+  public @NonNull List<@NonNull Node> removeInactive(long timeout, long now) {
+    final List<Node> removed = new ArrayList<>();
+    for (final Node node : nodes.values()) {
+      if (now - node.lastSeen() > timeout && nodes.remove(node.serverId(), node)) {
+        unalias(node);
+        removed.add(node);
+      }
+    }
+    return removed;
+  }
+
+  private void unalias(final @NonNull Node node) {
+    synchronized (node) {
+      if (node.alias != 0) {
+        aliases.compareAndSet(node.alias, node, null);
+      }
+    }
+  }
+
+}
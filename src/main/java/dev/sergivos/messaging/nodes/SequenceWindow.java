@@ -0,0 +1,82 @@
+package dev.sergivos.messaging.nodes;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A sliding window over the sequence numbers received from a node, to detect duplicated frames.
+ * <p>
+ * The window is a bitmap of the last {@code size} sequence numbers, ending at the highest one seen.
+ * A frame is accepted if its number is within the window and its bit isn't set yet, or if it's
+ * higher than every number seen, which slides the window forward. Numbers behind the window can't
+ * be told apart from duplicates, so they're rejected too. Checking a number doesn't allocate.
+ */
+public final class SequenceWindow {
+
+  private final long[] words;
+  private final int size;
+  private long highest = -1;
+
+  /**
+   * Creates an empty window
+   *
+   * @param size The number of sequence numbers tracked, rounded up to the next power of two
+   */
+  public SequenceWindow(int size) {
+    Preconditions.checkArgument(size > 0 && size <= 1 << 24, "Bad window size (%s)", size);
+    this.size = Math.max(Long.SIZE, size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1);
+    this.words = new long[this.size / Long.SIZE];
+  }
+
+  /**
+   * Marks a sequence number as received
+   *
+   * @param sequence The sequence number of a frame, not negative
+   * @return {@code false} if it was already received or it's behind the window, so the frame must
+   * be dropped
+   */
+  public synchronized boolean accept(long sequence) {
+    if (sequence < 0 || sequence <= highest - size) {
+      return false;
+    }
+
+    if (sequence > highest) {
+      clear(highest + 1, Math.min(sequence, highest + size));
+      highest = sequence;
+    }
+
+    final int word = (int) (sequence >>> 6) & (words.length - 1);
+    final long bit = 1L << sequence;
+    if ((words[word] & bit) != 0) {
+      return false;
+    }
+    words[word] |= bit;
+    return true;
+  }
+
+  /**
+   * @return the highest sequence number received, or {@code -1} if none
+   */
+  public synchronized long highest() {
+    return this.highest;
+  }
+
+  /**
+   * Clears the bits of the sequence numbers from {@code from} to {@code to}, both inclusive, which
+   * leave the window as it slides forward
+   */
+  private void clear(long from, long to) {
+    long sequence = from;
+    while (sequence <= to) {
+      final int word = (int) (sequence >>> 6) & (words.length - 1);
+      final int bit = (int) (sequence & 63);
+      if (bit == 0 && to - sequence >= 63) {
+        words[word] = 0;
+        sequence += 64;
+      } else {
+        words[word] &= ~(1L << bit);
+        sequence++;
+      }
+    }
+  }
+
+}
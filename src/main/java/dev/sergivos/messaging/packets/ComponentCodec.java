@@ -0,0 +1,359 @@
+package dev.sergivos.messaging.packets;
+
+import com.google.common.base.Preconditions;
+import dev.sergivos.messaging.utils.StripedLruCache;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.kyori.adventure.key.Key;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.KeybindComponent;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.TranslatableComponent;
+import net.kyori.adventure.text.event.ClickEvent;
+import net.kyori.adventure.text.event.HoverEvent;
+import net.kyori.adventure.text.format.NamedTextColor;
+import net.kyori.adventure.text.format.Style;
+import net.kyori.adventure.text.format.TextColor;
+import net.kyori.adventure.text.format.TextDecoration;
+import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Encodes {@link Component}s in a compact binary format, instead of their JSON.
+ * <p>
+ * A component is a VarInt length followed by its body, which starts with its format: {@code 0} for
+ * a JSON {@link String}, or {@code 1} for a binary node. A node starts with a byte containing its
+ * kind (text, translatable or keybind) and whether it has a style and children. The style starts
+ * with a byte of flags telling which of its properties follow: the color as a VarInt containing the
+ * RGB value and whether it's a {@link NamedTextColor}, the decorations as a VarInt of 2 bits per
+ * {@link TextDecoration}, the click event, the text of a show_text hover event as another node, the
+ * insertion and the font.
+ * <p>
+ * Strings are VarInt references to a table built as the component is read: {@code 0} is followed
+ * by a new string, added to the table, and any other value {@code n} repeats its {@code n}th
+ * string. Other components and hover events, which are rare, are sent as JSON.
+ * <p>
+ * The bodies of the last encoded and decoded components are cached, so templates such as join and
+ * quit messages are only encoded and decoded once. The caches are striped, so the threads reading
+ * and writing components rarely wait for each other.
+ */
+final class ComponentCodec {
+
+  private static final GsonComponentSerializer SERIALIZER = GsonComponentSerializer.builder()
+      .build();
+  private static final int FORMAT_JSON = 0;
+  private static final int FORMAT_BINARY = 1;
+  private static final int KIND_TEXT = 0;
+  private static final int KIND_TRANSLATABLE = 1;
+  private static final int KIND_KEYBIND = 2;
+  private static final int KIND_MASK = 0x03;
+  private static final int HAS_STYLE = 0x04;
+  private static final int HAS_CHILDREN = 0x08;
+  private static final int STYLE_COLOR = 0x01;
+  private static final int STYLE_DECORATIONS = 0x02;
+  private static final int STYLE_CLICK = 0x04;
+  private static final int STYLE_HOVER = 0x08;
+  private static final int STYLE_INSERTION = 0x10;
+  private static final int STYLE_FONT = 0x20;
+  private static final TextDecoration[] DECORATIONS = TextDecoration.values();
+  private static final TextDecoration.State[] STATES = TextDecoration.State.values();
+  private static final ClickEvent.Action[] CLICK_ACTIONS = ClickEvent.Action.values();
+  private static final int MAX_DEPTH = 128;
+  private static final int MAX_STRING_SIZE = 65536;
+  private static final int CACHE_SIZE = 1024;
+  private static final int CACHE_STRIPES = 32;
+  private static final int MAX_CACHED_SIZE = 1024;
+  private static final StripedLruCache<Component, byte[]> ENCODED = new StripedLruCache<>(
+      CACHE_SIZE, CACHE_STRIPES);
+  private static final StripedLruCache<ByteBuf, Component> DECODED = new StripedLruCache<>(
+      CACHE_SIZE, CACHE_STRIPES);
+
+  private ComponentCodec() {
+  }
+
+  /**
+   * Writes a {@link Component} to the {@code buf}
+   *
+   * @param buf       the buffer to write to
+   * @param component the component to write
+   */
+  static void write(final @NonNull ByteBuf buf, final @NonNull Component component) {
+    final byte[] cached = ENCODED.get(component);
+    if (cached != null) {
+      PacketUtils.writeVarInt(buf, cached.length);
+      buf.writeBytes(cached);
+      return;
+    }
+
+    // the length is set once the body is written, padded to 3 bytes
+    final int start = buf.writerIndex();
+    buf.writeMedium(0);
+    buf.writeByte(FORMAT_BINARY);
+    if (!writeNode(buf, component, new HashMap<>(), 0)) {
+      buf.writerIndex(start + 3);
+      buf.writeByte(FORMAT_JSON);
+      PacketUtils.writeString(buf, SERIALIZER.serialize(component));
+    }
+
+    final int size = buf.writerIndex() - start - 3;
+    PacketUtils.set21BitVarInt(buf, start, size);
+    if (size <= MAX_CACHED_SIZE) {
+      final byte[] body = ByteBufUtil.getBytes(buf, start + 3, size);
+      ENCODED.put(component, body);
+    }
+  }
+
+  /**
+   * Reads a {@link Component} from the {@code buf}
+   *
+   * @param buf the buffer to read from
+   * @return the component
+   */
+  static @NonNull Component read(final @NonNull ByteBuf buf) {
+    final int length = PacketUtils.readVarInt(buf);
+    Preconditions.checkState(length > 0 && buf.isReadable(length),
+        "Bad component size (got %s, only have %s)", length, buf.readableBytes());
+    final ByteBuf body = buf.readSlice(length);
+    final boolean cacheable = length <= MAX_CACHED_SIZE;
+    if (cacheable) {
+      final Component cached = DECODED.get(body);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    final int format = body.readUnsignedByte();
+    final Component component;
+    if (format == FORMAT_BINARY) {
+      component = readNode(body, new ArrayList<>(), 0);
+    } else if (format == FORMAT_JSON) {
+      component = SERIALIZER.deserialize(PacketUtils.readString(body));
+    } else {
+      throw new IllegalStateException("Bad component format (" + format + ")");
+    }
+    Preconditions.checkState(!body.isReadable(), "Bad component size (%s bytes left)",
+        body.readableBytes());
+
+    if (cacheable) {
+      DECODED.put(Unpooled.copiedBuffer(body.readerIndex(0)), component);
+    }
+    return component;
+  }
+
+  /**
+   * @return {@code false} if the component can't be encoded as a binary node
+   */
+  private static boolean writeNode(final @NonNull ByteBuf buf, final @NonNull Component component,
+      final @NonNull Map<String, Integer> strings, int depth) {
+    if (depth > MAX_DEPTH) {
+      return false;
+    }
+
+    final int kind;
+    if (component instanceof TextComponent) {
+      kind = KIND_TEXT;
+    } else if (component instanceof TranslatableComponent) {
+      kind = KIND_TRANSLATABLE;
+    } else if (component instanceof KeybindComponent) {
+      kind = KIND_KEYBIND;
+    } else {
+      return false;
+    }
+
+    final Style style = component.style();
+    final List<Component> children = component.children();
+    buf.writeByte(kind | (style.isEmpty() ? 0 : HAS_STYLE) | (children.isEmpty() ? 0
+        : HAS_CHILDREN));
+    switch (kind) {
+      case KIND_TEXT:
+        writeString(buf, ((TextComponent) component).content(), strings);
+        break;
+      case KIND_TRANSLATABLE: {
+        final TranslatableComponent translatable = (TranslatableComponent) component;
+        writeString(buf, translatable.key(), strings);
+        if (!writeNodes(buf, translatable.args(), strings, depth)) {
+          return false;
+        }
+        break;
+      }
+      default:
+        writeString(buf, ((KeybindComponent) component).keybind(), strings);
+    }
+
+    if (!style.isEmpty() && !writeStyle(buf, style, strings, depth)) {
+      return false;
+    }
+    return children.isEmpty() || writeNodes(buf, children, strings, depth);
+  }
+
+  private static boolean writeNodes(final @NonNull ByteBuf buf,
+      final @NonNull List<Component> components, final @NonNull Map<String, Integer> strings,
+      int depth) {
+    PacketUtils.writeVarInt(buf, components.size());
+    for (final Component component : components) {
+      if (!writeNode(buf, component, strings, depth + 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean writeStyle(final @NonNull ByteBuf buf, final @NonNull Style style,
+      final @NonNull Map<String, Integer> strings, int depth) {
+    final TextColor color = style.color();
+    final ClickEvent clickEvent = style.clickEvent();
+    final HoverEvent<?> hoverEvent = style.hoverEvent();
+    final String insertion = style.insertion();
+    final Key font = style.font();
+    if (hoverEvent != null && hoverEvent.action() != HoverEvent.Action.SHOW_TEXT) {
+      return false;
+    }
+
+    int decorations = 0;
+    for (int i = 0; i < DECORATIONS.length; i++) {
+      decorations |= style.decoration(DECORATIONS[i]).ordinal() << i * 2;
+    }
+
+    final int flagsIndex = buf.writerIndex();
+    buf.writeByte(0);
+    int flags = 0;
+    if (color != null) {
+      flags |= STYLE_COLOR;
+      PacketUtils.writeVarInt(buf, color.value() << 1 | (color instanceof NamedTextColor ? 1 : 0));
+    }
+    if (decorations != 0) {
+      flags |= STYLE_DECORATIONS;
+      PacketUtils.writeVarInt(buf, decorations);
+    }
+    if (clickEvent != null) {
+      flags |= STYLE_CLICK;
+      buf.writeByte(clickEvent.action().ordinal());
+      writeString(buf, clickEvent.value(), strings);
+    }
+    if (hoverEvent != null) {
+      flags |= STYLE_HOVER;
+      if (!writeNode(buf, (Component) hoverEvent.value(), strings, depth + 1)) {
+        return false;
+      }
+    }
+    if (insertion != null) {
+      flags |= STYLE_INSERTION;
+      writeString(buf, insertion, strings);
+    }
+    if (font != null) {
+      flags |= STYLE_FONT;
+      writeString(buf, font.asString(), strings);
+    }
+    buf.setByte(flagsIndex, flags);
+    return true;
+  }
+
+  private static void writeString(final @NonNull ByteBuf buf, final @NonNull String str,
+      final @NonNull Map<String, Integer> strings) {
+    final Integer index = strings.putIfAbsent(str, strings.size() + 1);
+    if (index != null) {
+      PacketUtils.writeVarInt(buf, index);
+      return;
+    }
+    buf.writeByte(0);
+    PacketUtils.writeString(buf, str);
+  }
+
+  private static @NonNull Component readNode(final @NonNull ByteBuf buf,
+      final @NonNull List<String> strings, int depth) {
+    Preconditions.checkState(depth <= MAX_DEPTH, "Bad component depth (%s)", depth);
+    final int header = buf.readUnsignedByte();
+    final int kind = header & KIND_MASK;
+
+    final String content = readString(buf, strings);
+    List<Component> args = null;
+    if (kind == KIND_TRANSLATABLE) {
+      args = readNodes(buf, strings, depth);
+    }
+    final Style style = (header & HAS_STYLE) != 0 ? readStyle(buf, strings, depth) : Style.empty();
+
+    final Component component;
+    switch (kind) {
+      case KIND_TEXT:
+        component = Component.text(content, style);
+        break;
+      case KIND_TRANSLATABLE:
+        component = Component.translatable(content, style, args);
+        break;
+      case KIND_KEYBIND:
+        component = Component.keybind(content, style);
+        break;
+      default:
+        throw new IllegalStateException("Bad component kind (" + kind + ")");
+    }
+    return (header & HAS_CHILDREN) != 0 ? component.children(readNodes(buf, strings, depth))
+        : component;
+  }
+
+  private static @NonNull List<Component> readNodes(final @NonNull ByteBuf buf,
+      final @NonNull List<String> strings, int depth) {
+    final int size = PacketUtils.readVarInt(buf);
+    // every node takes at least 2 bytes
+    Preconditions.checkState(size >= 0 && size <= buf.readableBytes() / 2,
+        "Bad component count (%s)", size);
+    final List<Component> components = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      components.add(readNode(buf, strings, depth + 1));
+    }
+    return components;
+  }
+
+  private static @NonNull Style readStyle(final @NonNull ByteBuf buf,
+      final @NonNull List<String> strings, int depth) {
+    final int flags = buf.readUnsignedByte();
+    final Style.Builder style = Style.style();
+    if ((flags & STYLE_COLOR) != 0) {
+      final int color = PacketUtils.readVarInt(buf);
+      final NamedTextColor named = (color & 1) != 0 ? NamedTextColor.namedColor(color >>> 1) : null;
+      style.color(named != null ? named : TextColor.color(color >>> 1));
+    }
+    if ((flags & STYLE_DECORATIONS) != 0) {
+      final int decorations = PacketUtils.readVarInt(buf);
+      for (int i = 0; i < DECORATIONS.length; i++) {
+        final int state = decorations >>> i * 2 & 3;
+        Preconditions.checkState(state < STATES.length, "Bad decoration state (%s)", state);
+        style.decoration(DECORATIONS[i], STATES[state]);
+      }
+    }
+    if ((flags & STYLE_CLICK) != 0) {
+      final int action = buf.readUnsignedByte();
+      Preconditions.checkState(action < CLICK_ACTIONS.length, "Bad click action (%s)", action);
+      style.clickEvent(ClickEvent.clickEvent(CLICK_ACTIONS[action], readString(buf, strings)));
+    }
+    if ((flags & STYLE_HOVER) != 0) {
+      style.hoverEvent(HoverEvent.showText(readNode(buf, strings, depth + 1)));
+    }
+    if ((flags & STYLE_INSERTION) != 0) {
+      style.insertion(readString(buf, strings));
+    }
+    if ((flags & STYLE_FONT) != 0) {
+      style.font(Key.key(readString(buf, strings)));
+    }
+    return style.build();
+  }
+
+  private static @NonNull String readString(final @NonNull ByteBuf buf,
+      final @NonNull List<String> strings) {
+    final int index = PacketUtils.readVarInt(buf);
+    if (index == 0) {
+      final String str = PacketUtils.readString(buf, MAX_STRING_SIZE);
+      strings.add(str);
+      return str;
+    }
+
+    Preconditions.checkState(index > 0 && index <= strings.size(), "Bad string reference (%s)",
+        index);
+    return strings.get(index - 1);
+  }
+
+}
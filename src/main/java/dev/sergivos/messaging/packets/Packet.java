@@ -1,9 +1,16 @@
 package dev.sergivos.messaging.packets;
 
+import dev.sergivos.messaging.packets.codec.AutoCodec;
+import dev.sergivos.messaging.packets.codec.PacketCodec;
 import io.netty.buffer.ByteBuf;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 
+/**
+ * A message sent between services. Packets registered with a {@link PacketCodec}, i.e. one
+ * generated for an {@link AutoCodec} class, are encoded and decoded by it, and usually implement
+ * {@link #read(ByteBuf)} and {@link #write(ByteBuf)} by delegating to it
+ */
 public interface Packet {
 
   /**
@@ -20,4 +27,15 @@ public interface Packet {
    */
   void write(final @NonNull ByteBuf buf);
 
+  /**
+   * The key used to order the handling of received packets when the receive pipeline uses {@link
+   * dev.sergivos.messaging.pipeline.ReceiveOrdering#PACKET_KEY}. Packets from the same sender with
+   * the same key are handled in order
+   *
+   * @return the ordering key, {@code 0} by default
+   */
+  default int orderingKey() {
+    return 0;
+  }
+
 }
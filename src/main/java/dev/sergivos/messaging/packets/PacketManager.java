@@ -1,9 +1,9 @@
 package dev.sergivos.messaging.packets;
 
 import com.google.common.collect.Maps;
+import dev.sergivos.messaging.packets.codec.PacketCodec;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.checkerframework.checker.nullness.qual.NonNull;
@@ -11,15 +11,24 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * PacketManager provides a translation feature for custom packets. It allows to translate a {@link
- * Packet} into the appropriate {@link String}
+ * Packet} into the appropriate {@link String} or numeric ID
  * <p>
- * The {@link String} type could change in a future for a more performant type
+ * Numeric IDs are assigned in registration order and never reused by the same manager. They're only
+ * sent when using the {@link IdFormat#NUMERIC} format, which all the instances of a service must
+ * share. Nodes exchange their ID tables so peers with different registrations can still translate
+ * each other's IDs, the {@link IdFormat#STRING} format is kept for clusters with older nodes.
  */
 public final class PacketManager {
 
+  private static final Object UNREGISTERED = new Object();
+
   private final @NonNull Function<Class<? extends Packet>, String> mapperFunc;
-  private final @NonNull Set<Class<? extends Packet>> registeredClasses;
-  private final @NonNull Map<@NonNull String, @NonNull Supplier<? extends Packet>> idToSupplier;
+  private final @NonNull IdFormat idFormat;
+  private final @NonNull Map<@NonNull Class<? extends Packet>, @NonNull PacketType<?>> classToType;
+  private final @NonNull Map<@NonNull String, @NonNull PacketType<?>> idToType;
+  private final @NonNull ClassValue<@NonNull Object> classCache;
+  private volatile @Nullable PacketType<?> @NonNull [] numericIdToType = new PacketType<?>[0];
+  private volatile int version;
 
   /**
    * Creates an empty PacketManager
@@ -28,15 +37,43 @@ public final class PacketManager {
     this(Class::getSimpleName);
   }
 
+  /**
+   * Creates an empty PacketManager
+   *
+   * @param idFormat The format used to send the packet IDs
+   */
+  public PacketManager(final @NonNull IdFormat idFormat) {
+    this(Class::getSimpleName, idFormat);
+  }
+
   /**
    * Creates an empty PacketManager
    *
    * @param mapperFunc A function that will map a Packet to the ID
    */
   public PacketManager(final @NonNull Function<Class<? extends Packet>, String> mapperFunc) {
-    this.registeredClasses = ConcurrentHashMap.newKeySet();
-    this.idToSupplier = Maps.newConcurrentMap();
+    this(mapperFunc, IdFormat.STRING);
+  }
+
+  /**
+   * Creates an empty PacketManager
+   *
+   * @param mapperFunc A function that will map a Packet to the ID
+   * @param idFormat   The format used to send the packet IDs
+   */
+  public PacketManager(final @NonNull Function<Class<? extends Packet>, String> mapperFunc,
+      final @NonNull IdFormat idFormat) {
+    this.classToType = Maps.newConcurrentMap();
+    this.idToType = Maps.newConcurrentMap();
     this.mapperFunc = mapperFunc;
+    this.idFormat = idFormat;
+    this.classCache = new ClassValue<>() {
+      @Override
+      protected Object computeValue(Class<?> type) {
+        final PacketType<?> packetType = classToType.get(type);
+        return packetType == null ? UNREGISTERED : packetType;
+      }
+    };
   }
 
   /**
@@ -50,20 +87,49 @@ public final class PacketManager {
    */
   public <T extends Packet> void register(final @NonNull Class<T> clazz,
       final @NonNull Supplier<T> supplier) throws IllegalArgumentException {
-    if (registeredClasses.contains(clazz)) {
+    register(clazz, supplier, null);
+  }
+
+  /**
+   * Registers a new Packet into the manager, encoded and decoded by a {@link PacketCodec} instead of
+   * its own methods. Generated codecs have a {@code register(PacketManager)} method that calls this
+   *
+   * @param <T>   class that extends {@link Packet}
+   * @param clazz the {@link Packet} class to register
+   * @param codec the codec of the {@code clazz}
+   * @throws IllegalArgumentException if the {@link Packet} or {@link Class} has already been
+   *                                  registered in this {@link PacketManager}
+   */
+  public <T extends Packet> void register(final @NonNull Class<T> clazz,
+      final @NonNull PacketCodec<T> codec) throws IllegalArgumentException {
+    register(clazz, codec::newInstance, codec);
+  }
+
+  private synchronized <T extends Packet> void register(final @NonNull Class<T> clazz,
+      final @NonNull Supplier<T> supplier, final @Nullable PacketCodec<T> codec)
+      throws IllegalArgumentException {
+    if (classToType.containsKey(clazz)) {
       throw new IllegalArgumentException(
           "Class " + clazz.getName() + " has already been registered.");
     }
 
     final String id = mapperFunc.apply(clazz);
-    if (idToSupplier.containsKey(id)) {
+    final PacketType<?> existing = idToType.get(id);
+    if (existing != null) {
       throw new IllegalArgumentException(
-          "A class with ID " + id + " has already been registered. (" + idToSupplier.get(id)
-              .getClass().getName() + ")");
+          "A class with ID " + id + " has already been registered. (" + existing.packetClass()
+              .getName() + ")");
     }
 
-    registeredClasses.add(clazz);
-    idToSupplier.put(id, supplier);
+    final PacketType<?>[] types = Arrays.copyOf(numericIdToType, numericIdToType.length + 1);
+    final PacketType<T> type = new PacketType<>(clazz, id, types.length - 1, supplier, codec);
+    types[type.numericId()] = type;
+
+    classToType.put(clazz, type);
+    idToType.put(id, type);
+    numericIdToType = types;
+    classCache.remove(clazz);
+    version++;
   }
 
   /**
@@ -74,15 +140,86 @@ public final class PacketManager {
    * @throws IllegalArgumentException if the {@link Packet} or {@link Class} is not registered in
    *                                  this {@link PacketManager}
    */
-  public <T extends Packet> void unregister(final @NonNull Class<T> clazz)
+  public synchronized <T extends Packet> void unregister(final @NonNull Class<T> clazz)
       throws IllegalArgumentException {
-    if (!registeredClasses.contains(clazz)) {
+    final PacketType<?> type = classToType.remove(clazz);
+    if (type == null) {
       throw new IllegalArgumentException("Class " + clazz.getName() + " is not registered.");
     }
 
-    final String id = mapperFunc.apply(clazz);
-    registeredClasses.remove(clazz);
-    idToSupplier.remove(id);
+    final PacketType<?>[] types = numericIdToType.clone();
+    types[type.numericId()] = null;
+
+    idToType.remove(type.id());
+    numericIdToType = types;
+    classCache.remove(clazz);
+    version++;
+  }
+
+  /**
+   * @return the format used to send the packet IDs
+   */
+  public @NonNull IdFormat idFormat() {
+    return this.idFormat;
+  }
+
+  /**
+   * @return a number that changes every time a packet is (un)registered
+   */
+  public int version() {
+    return this.version;
+  }
+
+  /**
+   * Checks whether a {@link Packet} class is registered in this manager
+   *
+   * @param clazz the {@link Packet} class to check
+   * @return {@code true} if the {@code clazz} is registered
+   */
+  public boolean isRegistered(final @NonNull Class<? extends Packet> clazz) {
+    return type(clazz) != null;
+  }
+
+  /**
+   * Get the type of a given {@link Packet} class
+   *
+   * @param clazz The {@link Packet} class
+   * @return the type of the {@code clazz} or {@code null} if it's not registered.
+   */
+  public @Nullable PacketType<?> type(final @NonNull Class<? extends Packet> clazz) {
+    final Object type = classCache.get(clazz);
+    return type == UNREGISTERED ? null : (PacketType<?>) type;
+  }
+
+  /**
+   * Get the type of a given {@link Packet}
+   *
+   * @param packet The packet to get the type from
+   * @return the type of the {@code packet} or {@code null} if it's not registered.
+   */
+  public @Nullable PacketType<?> type(final @NonNull Packet packet) {
+    return type(packet.getClass());
+  }
+
+  /**
+   * Get the type with the given {@link String} ID
+   *
+   * @param id The ID of the {@link Packet}
+   * @return the type or {@code null} if the {@code id} is not registered
+   */
+  public @Nullable PacketType<?> type(final @NonNull String id) {
+    return idToType.get(id);
+  }
+
+  /**
+   * Get the type with the given numeric ID
+   *
+   * @param numericId The numeric ID of the {@link Packet}
+   * @return the type or {@code null} if the {@code numericId} is not registered
+   */
+  public @Nullable PacketType<?> type(int numericId) {
+    final PacketType<?>[] types = numericIdToType;
+    return numericId >= 0 && numericId < types.length ? types[numericId] : null;
   }
 
   /**
@@ -93,13 +230,8 @@ public final class PacketManager {
    * registered.
    */
   public @Nullable String id(final @NonNull Packet packet) {
-    final Class<? extends @NonNull Packet> clazz = packet.getClass();
-    final String id = mapperFunc.apply(clazz);
-    if (!registeredClasses.contains(clazz) || !idToSupplier.containsKey(id)) {
-      return null;
-    }
-
-    return id;
+    final PacketType<?> type = type(packet);
+    return type == null ? null : type.id();
   }
 
   /**
@@ -109,12 +241,70 @@ public final class PacketManager {
    * @return a new instance of {@link Packet} or {@code null} if the {@code id} is not registered
    */
   public @Nullable Packet newInstance(final @NonNull String id) {
-    final Supplier<? extends Packet> supplier = idToSupplier.get(id);
-    if (supplier == null) {
-      return null;
+    final PacketType<?> type = idToType.get(id);
+    return type == null ? null : type.newInstance();
+  }
+
+  /**
+   * Creates a new empty instance of a {@link Packet}.
+   *
+   * @param numericId The numeric id of the {@link Packet}
+   * @return a new instance of {@link Packet} or {@code null} if the {@code numericId} is not
+   * registered
+   */
+  public @Nullable Packet newInstance(int numericId) {
+    final PacketType<?> type = type(numericId);
+    return type == null ? null : type.newInstance();
+  }
+
+  /**
+   * Returns the ID table of this manager: the {@link String} ID of every numeric ID, or an empty
+   * {@link String} for unregistered numeric IDs
+   *
+   * @return the ID table, indexed by numeric ID
+   */
+  public @NonNull String @NonNull [] table() {
+    final PacketType<?>[] types = numericIdToType;
+    final String[] table = new String[types.length];
+    for (int i = 0; i < types.length; i++) {
+      table[i] = types[i] == null ? "" : types[i].id();
     }
+    return table;
+  }
+
+  /**
+   * Builds a translation from the numeric IDs of a peer to the local numeric IDs
+   *
+   * @param table The ID table of the peer. See {@link #table()}
+   * @return the local numeric ID of every peer numeric ID, or {@code -1} if it isn't registered
+   * locally. {@code null} if both tables are equal
+   */
+  public int @Nullable [] translation(final @NonNull String @NonNull [] table) {
+    final PacketType<?>[] types = numericIdToType;
+    boolean equal = table.length == types.length;
 
-    return supplier.get();
+    final int[] translation = new int[table.length];
+    for (int i = 0; i < table.length; i++) {
+      final PacketType<?> type = table[i].isEmpty() ? null : idToType.get(table[i]);
+      translation[i] = type == null ? -1 : type.numericId();
+      equal &= i < types.length
+          && (translation[i] == i || (translation[i] == -1 && types[i] == null));
+    }
+    return equal ? null : translation;
+  }
+
+  /**
+   * The format used to send the packet IDs
+   */
+  public enum IdFormat {
+    /**
+     * IDs are sent as a VarInt prefixed UTF-8 {@link String}
+     */
+    STRING,
+    /**
+     * IDs are sent as a VarInt
+     */
+    NUMERIC
   }
 
 }
@@ -0,0 +1,154 @@
+package dev.sergivos.messaging.packets;
+
+import dev.sergivos.messaging.packets.codec.PacketCodec;
+import dev.sergivos.messaging.utils.MpmcArrayQueue;
+import dev.sergivos.messaging.utils.SizeEstimator;
+import io.netty.buffer.ByteBuf;
+import java.util.function.Supplier;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A {@link Packet} class registered in a {@link PacketManager}, along with its IDs. Types of {@link
+ * PooledPacket}s keep a pool of the decoded instances
+ *
+ * @param <T> class that extends {@link Packet}
+ */
+public final class PacketType<T extends Packet> {
+
+  /**
+   * The maximum number of idle instances kept by the pool of a {@link PooledPacket} type
+   */
+  public static final int POOL_SIZE = 1024;
+
+  private final @NonNull Class<T> packetClass;
+  private final @NonNull String id;
+  private final int numericId;
+  private final @NonNull Supplier<T> supplier;
+  private final @Nullable PacketCodec<T> codec;
+  private final @Nullable MpmcArrayQueue<PooledPacket> pool;
+  private final @NonNull SizeEstimator sizeEstimator = new SizeEstimator(0.9, 256);
+
+  PacketType(final @NonNull Class<T> packetClass, final @NonNull String id, int numericId,
+      final @NonNull Supplier<T> supplier, final @Nullable PacketCodec<T> codec) {
+    this.packetClass = packetClass;
+    this.id = id;
+    this.numericId = numericId;
+    this.supplier = supplier;
+    this.codec = codec;
+    this.pool = PooledPacket.class.isAssignableFrom(packetClass)
+        ? new MpmcArrayQueue<>(POOL_SIZE) : null;
+  }
+
+  public @NonNull Class<T> packetClass() {
+    return this.packetClass;
+  }
+
+  /**
+   * @return the {@link String} ID of the packet
+   */
+  public @NonNull String id() {
+    return this.id;
+  }
+
+  /**
+   * @return the numeric ID of the packet, assigned in registration order by the {@link
+   * PacketManager}
+   */
+  public int numericId() {
+    return this.numericId;
+  }
+
+  /**
+   * @return a new empty instance of the packet
+   */
+  public @NonNull T newInstance() {
+    return this.supplier.get();
+  }
+
+  /**
+   * @return the codec of the packet, or {@code null} if it reads and writes itself
+   */
+  public @Nullable PacketCodec<T> codec() {
+    return this.codec;
+  }
+
+  /**
+   * Decodes a packet of this type, with its codec if it has one. {@link PooledPacket}s are taken
+   * from the pool, and must be {@link PooledPacket#release()}d to return them
+   *
+   * @param buf The buffer to read from
+   * @return the packet
+   */
+  public @NonNull T read(final @NonNull ByteBuf buf) {
+    final T packet = pooledInstance();
+    if (codec != null) {
+      codec.read(packet, buf);
+    } else {
+      packet.read(buf);
+    }
+    return packet;
+  }
+
+  /**
+   * Encodes a packet of this type, with its codec if it has one
+   *
+   * @param packet The packet, which must be of this type
+   * @param buf    The buffer to write to
+   */
+  public void write(final @NonNull Packet packet, final @NonNull ByteBuf buf) {
+    if (codec != null) {
+      codec.write(packetClass.cast(packet), buf);
+    } else {
+      packet.write(buf);
+    }
+  }
+
+  /**
+   * @param packet The packet, which must be of this type
+   * @return the size of the encoded packet, or {@code -1} if it has no codec to compute it. See
+   * {@link PacketCodec#size(Packet)}
+   */
+  public int size(final @NonNull Packet packet) {
+    return codec == null ? -1 : codec.size(packetClass.cast(packet));
+  }
+
+  /**
+   * @return whether the received instances of this type are pooled
+   */
+  public boolean pooled() {
+    return this.pool != null;
+  }
+
+  /**
+   * @return the estimator of the size of the frames of this packet, used to allocate their buffers
+   */
+  public @NonNull SizeEstimator sizeEstimator() {
+    return this.sizeEstimator;
+  }
+
+  private @NonNull T pooledInstance() {
+    if (pool == null) {
+      return supplier.get();
+    }
+
+    final PooledPacket pooled = pool.poll();
+    if (pooled != null) {
+      pooled.acquire();
+      return packetClass.cast(pooled);
+    }
+
+    final T packet = supplier.get();
+    ((PooledPacket) packet).pool = pool;
+    return packet;
+  }
+
+  @Override
+  public String toString() {
+    return "PacketType{" +
+        "id='" + id + '\'' +
+        ", numericId=" + numericId +
+        '}';
+  }
+
+}
@@ -8,7 +8,6 @@ import io.netty.buffer.ByteBufUtil;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 import net.kyori.adventure.text.Component;
-import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
 
 /**
  * Credits Velocity Powered (2021) https://github.com/VelocityPowered/Velocity/blob/5ea6728d1a780186a98841d59b88867debf864fa/proxy/src/main/java/com/velocitypowered/proxy/protocol/ProtocolUtils.java
@@ -16,9 +15,12 @@ import net.kyori.adventure.text.serializer.gson.GsonComponentSerializer;
  */
 public enum PacketUtils {
   ;
-  private static final GsonComponentSerializer SERIALIZER = GsonComponentSerializer.builder()
-      .build();
   private static final int DEFAULT_MAX_STRING_SIZE = 65536; // 64KiB
+  /**
+   * The size assumed for a {@link Component} when computing the size of a packet, since it isn't
+   * known until it's encoded
+   */
+  public static final int COMPONENT_SIZE_ESTIMATE = 64;
 
   /**
    * Reads a Minecraft-style VarInt from the specified {@code buf}.
@@ -73,12 +75,117 @@ public enum PacketUtils {
     }
   }
 
+  /**
+   * Returns the number of bytes {@link #writeVarInt(ByteBuf, int)} writes for {@code value}.
+   *
+   * @param value the integer to write
+   * @return the size of the VarInt, from 1 to 5 bytes
+   */
+  public static int varIntSize(int value) {
+    // every 7 significant bits take a byte, and zero still takes one
+    return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+  }
+
+  /**
+   * Returns the number of bytes {@link #writeString(ByteBuf, CharSequence)} writes for {@code str}.
+   *
+   * @param str the string to write
+   * @return the size of the string and its VarInt prefix
+   */
+  public static int stringSize(CharSequence str) {
+    int size = ByteBufUtil.utf8Bytes(str);
+    return varIntSize(size) + size;
+  }
+
+  /**
+   * Returns the number of bytes {@link #writeByteArray(ByteBuf, byte[])} writes for {@code array}.
+   *
+   * @param array the array to write
+   * @return the size of the array and its VarInt prefix
+   */
+  public static int byteArraySize(byte[] array) {
+    return varIntSize(array.length) + array.length;
+  }
+
+  /**
+   * Returns the number of bytes {@link #writeStringArray(ByteBuf, String[])} writes for {@code
+   * stringArray}.
+   *
+   * @param stringArray the array to write
+   * @return the size of the strings and their VarInt prefixes
+   */
+  public static int stringArraySize(String[] stringArray) {
+    int size = varIntSize(stringArray.length);
+    for (String s : stringArray) {
+      size += stringSize(s);
+    }
+    return size;
+  }
+
+  /**
+   * Reads a VarLong, encoded like a VarInt in up to 10 bytes, from the specified {@code buf}.
+   *
+   * @param buf the buffer to read from
+   * @return the decoded VarLong
+   */
+  public static long readVarLong(ByteBuf buf) {
+    long i = 0;
+    int maxRead = Math.min(10, buf.readableBytes());
+    for (int j = 0; j < maxRead; j++) {
+      int k = buf.readByte();
+      i |= (long) (k & 0x7F) << j * 7;
+      if ((k & 0x80) != 128) {
+        return i;
+      }
+    }
+    throw new RuntimeException("Bad varlong decoded");
+  }
+
+  /**
+   * Writes a VarLong, encoded like a VarInt in up to 10 bytes, to the specified {@code buf}.
+   *
+   * @param buf   the buffer to write to
+   * @param value the long to write
+   */
+  public static void writeVarLong(ByteBuf buf, long value) {
+    while (true) {
+      if ((value & 0xFFFFFFFFFFFFFF80L) == 0) {
+        buf.writeByte((int) value);
+        return;
+      }
+
+      buf.writeByte((int) (value & 0x7F | 0x80));
+      value >>>= 7;
+    }
+  }
+
+  /**
+   * Sets a Minecraft-style VarInt padded to 3 bytes at the specified {@code index}, so it can be
+   * written after the data it prefixes. The {@code value} must fit in 21 bits.
+   *
+   * @param buf   the buffer to write to
+   * @param index the index to set the VarInt at
+   * @param value the integer to write
+   */
+  public static void set21BitVarInt(ByteBuf buf, int index, int value) {
+    checkArgument((value & 0xFFE00000) == 0, "Value %s doesn't fit in 21 bits", value);
+    buf.setMedium(index, (value & 0x7F | 0x80) << 16 | ((value >>> 7) & 0x7F | 0x80) << 8
+        | (value >>> 14));
+  }
+
   public static String readString(ByteBuf buf) {
     return readString(buf, DEFAULT_MAX_STRING_SIZE);
   }
 
+  /**
+   * Reads a {@link Component} written by {@link #writeComponent(ByteBuf, Component)} from the
+   * {@code buf}. Recently decoded components are cached.
+   *
+   * @param buf the buffer to read from
+   * @return the component
+   */
   public static Component readComponent(ByteBuf buf) {
-    return SERIALIZER.deserialize(readString(buf, DEFAULT_MAX_STRING_SIZE));
+    return ComponentCodec.read(buf);
   }
 
   /**
@@ -123,8 +230,15 @@ public enum PacketUtils {
     buf.writeCharSequence(str, StandardCharsets.UTF_8);
   }
 
+  /**
+   * Writes a {@link Component} to the {@code buf} in a compact binary format, falling back to its
+   * JSON for the rare components it can't represent. Recently encoded components are cached.
+   *
+   * @param buf       the buffer to write to
+   * @param component the component to write
+   */
   public static void writeComponent(ByteBuf buf, Component component) {
-    writeString(buf, SERIALIZER.serialize(component));
+    ComponentCodec.write(buf, component);
   }
 
   public static byte[] readByteArray(ByteBuf buf) {
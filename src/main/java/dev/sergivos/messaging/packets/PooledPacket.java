@@ -0,0 +1,87 @@
+package dev.sergivos.messaging.packets;
+
+import dev.sergivos.messaging.utils.MpmcArrayQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A {@link Packet} whose received instances are reused. Their {@link PacketType} keeps a pool of
+ * them, so decoding a packet doesn't allocate a new instance.
+ * <p>
+ * A received packet is returned to the pool after every listener handled it, so listeners must not
+ * keep a reference to it. A listener that needs the packet later must {@link #retain()} it, and
+ * {@link #release()} it once it's done. Listeners called by an executor are handled automatically.
+ * Packets created by the application aren't pooled, and releasing them has no effect.
+ */
+public abstract class PooledPacket implements Packet {
+
+  private static final AtomicIntegerFieldUpdater<PooledPacket> REFERENCES =
+      AtomicIntegerFieldUpdater.newUpdater(PooledPacket.class, "references");
+
+  private volatile int references = 1;
+  @Nullable MpmcArrayQueue<PooledPacket> pool;
+
+  /**
+   * Clears the fields of this packet before it's returned to the pool, so it doesn't keep the
+   * objects of the last decoded packet alive
+   */
+  protected abstract void reset();
+
+  /**
+   * Prevents this packet from being reused until it's {@link #release()}d
+   *
+   * @throws IllegalStateException if the packet has already been returned to the pool
+   */
+  public final void retain() {
+    int references;
+    do {
+      references = this.references;
+      if (references <= 0) {
+        throw new IllegalStateException("Bad reference count (" + references + ")");
+      }
+    } while (!REFERENCES.compareAndSet(this, references, references + 1));
+  }
+
+  /**
+   * Releases a reference to this packet, returning it to its pool if it was the last one
+   *
+   * @return {@code true} if it was the last reference
+   * @throws IllegalStateException if the packet has already been returned to the pool
+   */
+  public final boolean release() {
+    final int references = REFERENCES.decrementAndGet(this);
+    if (references < 0) {
+      REFERENCES.incrementAndGet(this);
+      throw new IllegalStateException("Bad reference count (" + references + ")");
+    }
+    if (references > 0) {
+      return false;
+    }
+
+    final MpmcArrayQueue<PooledPacket> pool = this.pool;
+    if (pool == null) {
+      // not pooled, just let it be collected
+      this.references = 1;
+      return true;
+    }
+
+    reset();
+    pool.offer(this);
+    return true;
+  }
+
+  /**
+   * @return the number of references to this packet, {@code 0} if it's in the pool
+   */
+  public final int references() {
+    return this.references;
+  }
+
+  /**
+   * Takes a packet from the pool, with a single reference
+   */
+  void acquire() {
+    this.references = 1;
+  }
+
+}
@@ -0,0 +1,24 @@
+package dev.sergivos.messaging.packets.codec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a {@link PacketCodec} for a {@link dev.sergivos.messaging.packets.Packet} class, named
+ * after the class with a {@code Codec} suffix, in the same package. Only the fields annotated with
+ * {@link CodecField} are encoded, in declaration order.
+ * <p>
+ * The class must have a no-args constructor, and its encoded fields must not be {@code private},
+ * {@code final} nor {@code static}, since they're read and written directly by the codec. Register
+ * it with the generated {@code register(PacketManager)} method, or every codec of a package at once
+ * with the generated {@code PacketCodecs.registerAll(PacketManager)}.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface AutoCodec {
+
+}
@@ -0,0 +1,36 @@
+package dev.sergivos.messaging.packets.codec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of an {@link AutoCodec} packet to be encoded by its codec. Fields must not be
+ * {@code null}.
+ * <p>
+ * Supported types and their encoding:
+ * <ul>
+ *   <li>{@code boolean}, {@code byte}, {@code short}, {@code char}, {@code long}, {@code float}
+ *   and {@code double}: fixed size, big endian</li>
+ *   <li>{@code int}: a VarInt, or 4 bytes with {@link #fixed()}</li>
+ *   <li>enums: the VarInt ordinal</li>
+ *   <li>{@link String}, {@code byte[]} and {@code String[]}: VarInt length prefixed</li>
+ *   <li>{@link java.util.UUID}: 16 bytes</li>
+ *   <li>{@link net.kyori.adventure.text.Component}: see
+ *   {@link dev.sergivos.messaging.packets.PacketUtils#writeComponent}</li>
+ * </ul>
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface CodecField {
+
+  /**
+   * @return whether an {@code int} field is written as 4 bytes instead of a VarInt, which is
+   * smaller for values below 2^21 but bigger for large or negative ones
+   */
+  boolean fixed() default false;
+
+}
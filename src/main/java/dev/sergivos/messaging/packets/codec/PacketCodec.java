@@ -0,0 +1,46 @@
+package dev.sergivos.messaging.packets.codec;
+
+import dev.sergivos.messaging.packets.Packet;
+import io.netty.buffer.ByteBuf;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Encodes and decodes the packets of a class, instead of their {@link Packet#read(ByteBuf)} and
+ * {@link Packet#write(ByteBuf)} methods. Usually generated for {@link AutoCodec} packets.
+ *
+ * @param <T> class that extends {@link Packet}
+ */
+public interface PacketCodec<T extends Packet> {
+
+  /**
+   * @return a new empty instance of the packet
+   */
+  @NonNull T newInstance();
+
+  /**
+   * Deserializes the fields of a packet from a {@link ByteBuf}
+   *
+   * @param packet The packet to fill
+   * @param buf    The buffer to read from
+   */
+  void read(final @NonNull T packet, final @NonNull ByteBuf buf);
+
+  /**
+   * Serializes the fields of a packet into a {@link ByteBuf}
+   *
+   * @param packet The packet to serialize
+   * @param buf    The buffer to write to
+   */
+  void write(final @NonNull T packet, final @NonNull ByteBuf buf);
+
+  /**
+   * Computes the size of a packet before writing it, so its buffer can be allocated with the right
+   * capacity
+   *
+   * @param packet The packet
+   * @return the number of bytes {@link #write(Packet, ByteBuf)} writes, or an estimate if the
+   * packet has fields whose size isn't known until they're serialized
+   */
+  int size(final @NonNull T packet);
+
+}
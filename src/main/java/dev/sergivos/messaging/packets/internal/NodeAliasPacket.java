@@ -0,0 +1,66 @@
+package dev.sergivos.messaging.packets.internal;
+
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Announces the alias a node uses instead of its server ID in the frame header
+ */
+public final class NodeAliasPacket implements Packet {
+
+  private @MonotonicNonNull UUID serverId;
+  private int alias;
+  private boolean reply;
+
+  public NodeAliasPacket() {
+  }
+
+  public NodeAliasPacket(final @NonNull UUID serverId, int alias, boolean reply) {
+    this.serverId = serverId;
+    this.alias = alias;
+    this.reply = reply;
+  }
+
+  public @MonotonicNonNull UUID serverId() {
+    return this.serverId;
+  }
+
+  public int alias() {
+    return this.alias;
+  }
+
+  /**
+   * @return whether the receivers should announce their own alias back
+   */
+  public boolean reply() {
+    return this.reply;
+  }
+
+  @Override
+  public void read(final @NonNull ByteBuf buf) {
+    this.serverId = PacketUtils.readUuid(buf);
+    this.alias = PacketUtils.readVarInt(buf);
+    this.reply = buf.readBoolean();
+  }
+
+  @Override
+  public void write(final @NonNull ByteBuf buf) {
+    PacketUtils.writeUuid(buf, this.serverId);
+    PacketUtils.writeVarInt(buf, this.alias);
+    buf.writeBoolean(this.reply);
+  }
+
+  @Override
+  public String toString() {
+    return "NodeAliasPacket{" +
+        "serverId=" + serverId +
+        ", alias=" + alias +
+        ", reply=" + reply +
+        '}';
+  }
+
+}
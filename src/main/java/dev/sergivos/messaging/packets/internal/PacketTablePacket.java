@@ -0,0 +1,69 @@
+package dev.sergivos.messaging.packets.internal;
+
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.packets.PacketManager;
+import dev.sergivos.messaging.packets.PacketUtils;
+import io.netty.buffer.ByteBuf;
+import java.util.UUID;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Announces the ID table of a node's {@link PacketManager}, so peers can translate its numeric
+ * packet IDs. It's always sent with its {@link String} ID.
+ */
+public final class PacketTablePacket implements Packet {
+
+  private @MonotonicNonNull UUID serverId;
+  private boolean reply;
+  private @NonNull String @MonotonicNonNull [] table;
+
+  public PacketTablePacket() {
+  }
+
+  public PacketTablePacket(final @NonNull UUID serverId, boolean reply,
+      final @NonNull String @NonNull [] table) {
+    this.serverId = serverId;
+    this.reply = reply;
+    this.table = table;
+  }
+
+  public @MonotonicNonNull UUID serverId() {
+    return this.serverId;
+  }
+
+  /**
+   * @return whether the receivers should announce their own table back
+   */
+  public boolean reply() {
+    return this.reply;
+  }
+
+  public @NonNull String @MonotonicNonNull [] table() {
+    return this.table;
+  }
+
+  @Override
+  public void read(final @NonNull ByteBuf buf) {
+    this.serverId = PacketUtils.readUuid(buf);
+    this.reply = buf.readBoolean();
+    this.table = PacketUtils.readStringArray(buf);
+  }
+
+  @Override
+  public void write(final @NonNull ByteBuf buf) {
+    PacketUtils.writeUuid(buf, this.serverId);
+    buf.writeBoolean(this.reply);
+    PacketUtils.writeStringArray(buf, this.table);
+  }
+
+  @Override
+  public String toString() {
+    return "PacketTablePacket{" +
+        "serverId=" + serverId +
+        ", reply=" + reply +
+        ", table=" + table.length +
+        '}';
+  }
+
+}
@@ -0,0 +1,510 @@
+package dev.sergivos.messaging.pipeline;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+
+/**
+ * A persistent queue of the messages that couldn't be handed to the broker, replayed in order once
+ * it's available again.
+ * <p>
+ * Messages are appended to a log of memory-mapped segment files, copied straight from their {@link
+ * ByteBuf}, so the heap doesn't grow while the broker is down. The log is bounded: when every
+ * segment is full, new messages are dropped. A drain thread replays the messages as fast as the
+ * broker takes them, and deletes every segment once it's been replayed. While there are messages
+ * in the outbox, new ones are appended after them instead of being sent, so they keep their order.
+ * <p>
+ * The messages left in the outbox when closing are replayed by the next outbox using the same
+ * directory.
+ * <p>
+ * <strong>Segment format</strong>
+ * <pre>
+ *      +-------------------+-----------+-----------+-----+
+ *      | Read offset (int) | Message 1 | Message 2 | ... |
+ *      +-------------------+-----------+-----------+-----+
+ * </pre>
+ * Every message is its length (an int, written last so a partially written message reads as the
+ * end of the segment), whether it has a target, the target's UUID, the packet type as a short
+ * length and UTF-8 bytes, and the data.
+ */
+public final class Outbox {
+
+  private static final int MAX_SEGMENT_SIZE = 8 << 20;
+  private static final int HEADER_SIZE = Integer.BYTES;
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final int SPINS = 128;
+  private static final long UNAVAILABLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final @NonNull Path directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final @NonNull Sender sender;
+  private final @NonNull BooleanSupplier available;
+  private final @NonNull Logger logger;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private final LongAdder spooled = new LongAdder();
+  private final LongAdder replayed = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final @NonNull Thread thread;
+  private long nextSegment;
+  private volatile boolean spooling;
+  private volatile boolean parked;
+  private volatile boolean running = true;
+  private volatile long lastWarning;
+
+  /**
+   * Opens the outbox, recovering the messages left in {@code directory}, and starts the drain
+   * thread
+   *
+   * @param directory The directory of the segment files, created if it doesn't exist
+   * @param maxBytes  The maximum size of the segment files
+   * @param sender    Sends a replayed message through the broker
+   * @param available Whether the broker can take messages right now
+   * @param logger    The logger to report errors and dropped messages to
+   * @throws UncheckedIOException if the directory or its segments can't be opened
+   */
+  public Outbox(final @NonNull Path directory, long maxBytes, final @NonNull Sender sender,
+      final @NonNull BooleanSupplier available, final @NonNull Logger logger)
+      throws UncheckedIOException {
+    Preconditions.checkArgument(maxBytes > HEADER_SIZE, "Bad max size (%s)", maxBytes);
+    this.directory = directory;
+    this.segmentSize = (int) Math.min(maxBytes, MAX_SEGMENT_SIZE);
+    this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentSize);
+    this.sender = sender;
+    this.available = available;
+    this.logger = logger;
+
+    try {
+      Files.createDirectories(directory);
+      recover();
+    } catch (IOException ex) {
+      throw new UncheckedIOException("error opening the outbox " + directory, ex);
+    }
+
+    this.thread = new ThreadFactoryBuilder().setNameFormat("MessagingService-outbox-%d")
+        .setDaemon(true).build().newThread(this::drain);
+    this.thread.start();
+  }
+
+  /**
+   * Whether new messages must be appended to the outbox, instead of sent, to keep their order
+   *
+   * @return {@code true} while there are messages waiting to be replayed
+   */
+  public boolean spooling() {
+    return this.spooling;
+  }
+
+  /**
+   * Appends a message, which is replayed when the broker is available. The readable bytes of
+   * {@code data} are copied into the segment, the caller keeps its ownership
+   *
+   * @param data       The message
+   * @param packetType The ID of the packet type, or {@link dev.sergivos.messaging.PacketBatcher}'s
+   *                   mixed type
+   * @param target     The server ID of the node receiving the message, or {@code null} to send it
+   *                   to every node
+   * @return {@code false} if the outbox is full or closed, and the message was dropped
+   */
+  public boolean append(final @NonNull ByteBuf data, final @NonNull String packetType,
+      final @Nullable UUID target) {
+    final byte[] type = packetType.getBytes(StandardCharsets.UTF_8);
+    final int length = 1 + (target == null ? 0 : 16) + Short.BYTES + type.length
+        + data.readableBytes();
+    if (Integer.BYTES + length > segmentSize - HEADER_SIZE) {
+      warnDropped("larger than a segment");
+      return false;
+    }
+
+    synchronized (segments) {
+      if (!running) {
+        warnDropped("outbox is closed");
+        return false;
+      }
+
+      Segment segment = segments.peekLast();
+      if (segment == null
+          || segment.writeOffset + Integer.BYTES + length > segment.buffer.capacity()) {
+        if (segments.size() >= maxSegments && !deleteReplayed()) {
+          warnDropped("outbox is full");
+          return false;
+        }
+        try {
+          segment = openSegment(directory.resolve(segmentName(nextSegment++)), true);
+        } catch (IOException ex) {
+          logger.error("error creating an outbox segment", ex);
+          dropped.increment();
+          return false;
+        }
+        segments.addLast(segment);
+      }
+
+      final ByteBuffer buffer = segment.buffer;
+      final int offset = segment.writeOffset;
+      int position = offset + Integer.BYTES;
+      buffer.put(position++, (byte) (target == null ? 0 : 1));
+      if (target != null) {
+        buffer.putLong(position, target.getMostSignificantBits());
+        buffer.putLong(position + Long.BYTES, target.getLeastSignificantBits());
+        position += 16;
+      }
+      buffer.putShort(position, (short) type.length);
+      position += Short.BYTES;
+      buffer.duplicate().position(position).put(type);
+      position += type.length;
+      // copied straight into the mapped file, without going through the heap
+      data.getBytes(data.readerIndex(), buffer.duplicate().position(position)
+          .limit(position + data.readableBytes()));
+      buffer.putInt(offset, length);
+
+      segment.writeOffset = offset + Integer.BYTES + length;
+      pendingBytes.addAndGet(Integer.BYTES + length);
+      spooling = true;
+    }
+
+    spooled.increment();
+    if (parked) {
+      LockSupport.unpark(thread);
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of messages appended to the outbox
+   */
+  public long spooled() {
+    return spooled.sum();
+  }
+
+  /**
+   * @return the number of messages replayed from the outbox
+   */
+  public long replayed() {
+    return replayed.sum();
+  }
+
+  /**
+   * @return the number of messages that didn't fit in the outbox
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the size of the messages waiting to be replayed, in bytes
+   */
+  public long pendingBytes() {
+    return pendingBytes.get();
+  }
+
+  /**
+   * Stops accepting messages and waits for the pending ones to be replayed. The ones that aren't
+   * are kept in the segment files
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The unit of {@code timeout}
+   * @return {@code true} if every message was replayed before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean close(long timeout, final @NonNull TimeUnit unit) throws InterruptedException {
+    synchronized (segments) {
+      running = false;
+    }
+    LockSupport.unpark(thread);
+    thread.join(Math.max(1, unit.toMillis(timeout)));
+    if (thread.isAlive()) {
+      thread.interrupt();
+      thread.join();
+    }
+
+    synchronized (segments) {
+      for (final Segment segment : segments) {
+        if (segment.readOffset < segment.writeOffset) {
+          segment.buffer.force();
+        } else {
+          delete(segment);
+        }
+      }
+    }
+    return pendingBytes.get() == 0;
+  }
+
+  private void drain() {
+    int idle = 0;
+    while (true) {
+      final Segment segment;
+      synchronized (segments) {
+        segment = nextSegment();
+        if (segment == null) {
+          spooling = false;
+          if (!running) {
+            return;
+          }
+        }
+      }
+
+      if (segment == null) {
+        if (idle++ < SPINS) {
+          Thread.onSpinWait();
+          continue;
+        }
+        // append and close unpark the thread, so it sleeps until there's something to do
+        parked = true;
+        if (!spooling && running) {
+          LockSupport.park(this);
+        }
+        parked = false;
+        continue;
+      }
+
+      idle = 0;
+      replay(segment);
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the first segment with messages to replay or that can be deleted, or {@code null} if
+   * there's none
+   */
+  private @Nullable Segment nextSegment() {
+    final Segment first = segments.peekFirst();
+    if (first == null || first.readOffset < first.writeOffset) {
+      return first;
+    }
+    // the last segment is kept while it has room for new messages
+    return segments.size() > 1 ? first : null;
+  }
+
+  /**
+   * Replays the written messages of a segment, deleting it once it's full and every message has
+   * been replayed. Stops when the broker isn't available
+   */
+  private void replay(final @NonNull Segment segment) {
+    final ByteBuffer buffer = segment.buffer;
+    int offset = segment.readOffset;
+    while (offset < segment.writeOffset && !Thread.currentThread().isInterrupted()) {
+      if (!available.getAsBoolean()) {
+        LockSupport.parkNanos(this, UNAVAILABLE_PARK_NANOS);
+        return;
+      }
+
+      final int length = buffer.getInt(offset);
+      int position = offset + Integer.BYTES;
+      final boolean hasTarget = buffer.get(position++) != 0;
+      UUID target = null;
+      if (hasTarget) {
+        target = new UUID(buffer.getLong(position), buffer.getLong(position + Long.BYTES));
+        position += 16;
+      }
+      final int typeLength = buffer.getShort(position) & 0xFFFF;
+      position += Short.BYTES;
+      final byte[] type = new byte[typeLength];
+      buffer.duplicate().position(position).get(type);
+      position += typeLength;
+
+      final int end = offset + Integer.BYTES + length;
+      // a view of the mapped file, the message isn't copied into the heap
+      final ByteBuf data = Unpooled.wrappedBuffer(
+          buffer.duplicate().position(position).limit(end).slice());
+      try {
+        sender.send(data, new String(type, StandardCharsets.UTF_8), target);
+      } catch (Exception ex) {
+        warn("error replaying a message from the outbox, retrying", ex);
+        LockSupport.parkNanos(this, RETRY_NANOS);
+        return;
+      }
+
+      replayed.increment();
+      pendingBytes.addAndGet(-(Integer.BYTES + length));
+      offset = end;
+      segment.readOffset = offset;
+      buffer.putInt(0, offset);
+    }
+
+    synchronized (segments) {
+      if (segment.readOffset < segment.writeOffset || nextSegment() != segment) {
+        return;
+      }
+      segments.removeFirst();
+    }
+    delete(segment);
+  }
+
+  /**
+   * Deletes the first segment if every message has been replayed, which the drain thread keeps
+   * while it's the last one
+   *
+   * @return whether a segment was deleted
+   */
+  private boolean deleteReplayed() {
+    final Segment first = segments.peekFirst();
+    if (first == null || first.readOffset < first.writeOffset) {
+      return false;
+    }
+    segments.removeFirst();
+    delete(first);
+    return true;
+  }
+
+  private void delete(final @NonNull Segment segment) {
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException ex) {
+      logger.warn("error deleting the outbox segment " + segment.path, ex);
+    }
+  }
+
+  private void recover() throws IOException {
+    final List<Path> paths = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(paths::add);
+    }
+    // the names are zero padded, so they sort by number
+    Collections.sort(paths);
+
+    long pending = 0;
+    for (final Path path : paths) {
+      final Segment segment = openSegment(path, false);
+      if (segment.readOffset >= segment.writeOffset) {
+        Files.delete(path);
+        continue;
+      }
+      segments.addLast(segment);
+      pending += segment.writeOffset - segment.readOffset;
+    }
+
+    if (!paths.isEmpty()) {
+      final String last = paths.get(paths.size() - 1).getFileName().toString();
+      nextSegment = Long.parseLong(last.substring(0, last.length() - SEGMENT_SUFFIX.length())) + 1;
+    }
+    if (!segments.isEmpty()) {
+      logger.info("Replaying {} bytes of messages from the outbox", pending);
+    }
+    this.pendingBytes.set(pending);
+    this.spooling = !segments.isEmpty();
+  }
+
+  private @NonNull Segment openSegment(final @NonNull Path path, boolean create)
+      throws IOException {
+    final MappedByteBuffer buffer;
+    try (final FileChannel channel = create
+        ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after closing the channel
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          create ? segmentSize : channel.size());
+    }
+
+    final Segment segment = new Segment(path, buffer);
+    if (create) {
+      buffer.putInt(0, HEADER_SIZE);
+      segment.readOffset = HEADER_SIZE;
+      segment.writeOffset = HEADER_SIZE;
+      return segment;
+    }
+
+    // find the end of the segment: the first message without a length
+    segment.readOffset = Math.max(HEADER_SIZE, buffer.getInt(0));
+    int offset = HEADER_SIZE;
+    while (offset + Integer.BYTES <= buffer.capacity()) {
+      final int length = buffer.getInt(offset);
+      if (length <= 0 || offset + Integer.BYTES + length > buffer.capacity()) {
+        break;
+      }
+      offset += Integer.BYTES + length;
+    }
+    segment.writeOffset = offset;
+    return segment;
+  }
+
+  private void warnDropped(final @NonNull String reason) {
+    dropped.increment();
+    final long now = System.nanoTime();
+    if (now - lastWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastWarning = now;
+    logger.warn("Dropped a message from the outbox (" + reason + "), " + dropped.sum()
+        + " messages dropped so far");
+  }
+
+  private void warn(final @NonNull String message, final @NonNull Exception ex) {
+    final long now = System.nanoTime();
+    if (now - lastWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastWarning = now;
+    logger.warn(message, ex);
+  }
+
+  private static @NonNull String segmentName(long number) {
+    return String.format("%020d%s", number, SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Sends a replayed message through the broker
+   */
+  @FunctionalInterface
+  public interface Sender {
+
+    /**
+     * @param data       The message, only valid until this method returns
+     * @param packetType The ID of the packet type
+     * @param target     The server ID of the node receiving the message, or {@code null} to send
+     *                   it to every node
+     * @throws Exception if the message couldn't be sent, so it's retried later
+     */
+    void send(final @NonNull ByteBuf data, final @NonNull String packetType,
+        final @Nullable UUID target) throws Exception;
+
+  }
+
+  private static final class Segment {
+
+    private final @NonNull Path path;
+    private final @NonNull MappedByteBuffer buffer;
+    private volatile int readOffset;
+    private volatile int writeOffset;
+
+    private Segment(final @NonNull Path path, final @NonNull MappedByteBuffer buffer) {
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+  }
+
+}
@@ -0,0 +1,24 @@
+package dev.sergivos.messaging.pipeline;
+
+/**
+ * What a {@link SendQueue} does with a new packet when it's full
+ */
+public enum OverflowPolicy {
+  /**
+   * Waits until there's room for the packet. <strong>Never use it if packets are sent from a
+   * thread that must not block</strong>, such as the main thread of a Minecraft server
+   */
+  BLOCK,
+  /**
+   * Drops the oldest queued packet to make room for the new one
+   */
+  DROP_OLDEST,
+  /**
+   * Drops the new packet
+   */
+  DROP_NEWEST,
+  /**
+   * Throws a {@link java.util.concurrent.RejectedExecutionException}
+   */
+  FAIL
+}
@@ -0,0 +1,19 @@
+package dev.sergivos.messaging.pipeline;
+
+import dev.sergivos.messaging.packets.Packet;
+
+/**
+ * How a {@link ReceivePipeline} shards the received messages
+ */
+public enum ReceiveOrdering {
+  /**
+   * Messages are sharded by sender, and decoded in the pipeline threads. The packets of a sender
+   * are handled in order
+   */
+  SENDER,
+  /**
+   * Packets are decoded in the broker thread and sharded by sender and {@link
+   * Packet#orderingKey()}. Only the packets of a sender with the same key are handled in order
+   */
+  PACKET_KEY
+}
@@ -0,0 +1,228 @@
+package dev.sergivos.messaging.pipeline;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.utils.MpmcArrayQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+
+/**
+ * Hands the received messages to a fixed number of shards, each one with its own queue and thread.
+ * Tasks with the same key always go to the same shard, so they're run in order.
+ * <p>
+ * A full shard blocks the broker thread until there's room, which pushes back on the broker
+ * instead of dropping messages.
+ */
+public final class ReceivePipeline {
+
+  private static final int SPINS = 128;
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long DRAIN_CHECK_MILLIS = 100;
+
+  private final @NonNull Shard @NonNull [] shards;
+  private final @NonNull ReceiveOrdering ordering;
+  private final @NonNull Logger logger;
+  private volatile boolean running = true;
+
+  /**
+   * Creates a new pipeline and starts its threads
+   *
+   * @param shards   The number of shards
+   * @param capacity The capacity of each shard, rounded up to the next power of two
+   * @param ordering How the messages are sharded
+   * @param logger   The logger to report task errors to
+   */
+  public ReceivePipeline(int shards, int capacity, final @NonNull ReceiveOrdering ordering,
+      final @NonNull Logger logger) {
+    Preconditions.checkArgument(shards > 0, "Bad shard count (%s)", shards);
+    this.ordering = ordering;
+    this.logger = logger;
+
+    final ThreadFactory factory = new ThreadFactoryBuilder()
+        .setNameFormat("MessagingService-receiver-%d").setDaemon(true).build();
+    this.shards = new Shard[shards];
+    for (int i = 0; i < shards; i++) {
+      this.shards[i] = new Shard(capacity);
+      this.shards[i].thread = factory.newThread(this.shards[i]);
+      this.shards[i].thread.start();
+    }
+  }
+
+  /**
+   * Queues a task in the shard of {@code key}, waiting for room if it's full
+   *
+   * @param key  The ordering key of the task
+   * @param task The task to run
+   * @throws RejectedExecutionException if the pipeline is closed or the thread is interrupted
+   */
+  public void submit(int key, final @NonNull Runnable task) throws RejectedExecutionException {
+    submit(shards[shard(key)], task);
+  }
+
+  /**
+   * Waits for every task queued so far to be run. Tasks queued meanwhile by other threads may be
+   * run too
+   *
+   * @return {@code false} if the pipeline was closed before running them
+   * @throws RejectedExecutionException if the pipeline is closed or the thread is interrupted
+   * @throws InterruptedException       if interrupted while waiting
+   */
+  public boolean drain() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(shards.length);
+    for (final Shard shard : shards) {
+      // the shards run their tasks in order, so the marker runs after the ones queued before it
+      submit(shard, latch::countDown);
+    }
+
+    while (!latch.await(DRAIN_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+      if (!running) {
+        for (final Shard shard : shards) {
+          if (!shard.thread.isAlive()) {
+            return latch.getCount() == 0;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private void submit(final @NonNull Shard shard, final @NonNull Runnable task)
+      throws RejectedExecutionException {
+    final Task queued = new Task(task, System.nanoTime());
+    while (!shard.queue.offer(queued)) {
+      if (!running || Thread.currentThread().isInterrupted()) {
+        throw new RejectedExecutionException("The receive pipeline is closed");
+      }
+      LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+    }
+
+    if (shard.parked) {
+      LockSupport.unpark(shard.thread);
+    }
+  }
+
+  public @NonNull ReceiveOrdering ordering() {
+    return this.ordering;
+  }
+
+  public int shards() {
+    return shards.length;
+  }
+
+  /**
+   * @param shard The index of the shard
+   * @return the approximate number of tasks queued in the shard
+   */
+  public int size(int shard) {
+    return shards[shard].queue.size();
+  }
+
+  /**
+   * @param shard The index of the shard
+   * @return the time, in nanoseconds, the last task of the shard waited in its queue, or {@code 0}
+   * if the shard is idle
+   */
+  public long lag(int shard) {
+    return shards[shard].lag;
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to be run
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The unit of {@code timeout}
+   * @return {@code true} if every thread finished before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean close(long timeout, final @NonNull TimeUnit unit) throws InterruptedException {
+    running = false;
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (final Shard shard : shards) {
+      LockSupport.unpark(shard.thread);
+    }
+
+    boolean terminated = true;
+    for (final Shard shard : shards) {
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining > 0) {
+        shard.thread.join(remaining);
+      }
+      if (shard.thread.isAlive()) {
+        shard.thread.interrupt();
+        terminated = false;
+      }
+    }
+    return terminated;
+  }
+
+  private int shard(int key) {
+    final int hash = key * 0x9E3779B9;
+    return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length;
+  }
+
+  private static final class Task {
+
+    private final @NonNull Runnable runnable;
+    private final long queued;
+
+    private Task(final @NonNull Runnable runnable, long queued) {
+      this.runnable = runnable;
+      this.queued = queued;
+    }
+
+  }
+
+  private final class Shard implements Runnable {
+
+    private final @NonNull MpmcArrayQueue<Task> queue;
+    private volatile boolean parked;
+    private volatile long lag;
+    private Thread thread;
+
+    private Shard(int capacity) {
+      this.queue = new MpmcArrayQueue<>(capacity);
+    }
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (true) {
+        final Task task = queue.poll();
+        if (task != null) {
+          idle = 0;
+          lag = System.nanoTime() - task.queued;
+          try {
+            task.runnable.run();
+          } catch (Throwable ex) {
+            logger.error("error running receive task", ex);
+          }
+          continue;
+        }
+
+        lag = 0;
+        if (!running) {
+          return;
+        }
+
+        if (idle++ < SPINS) {
+          Thread.onSpinWait();
+          continue;
+        }
+
+        // submit and close unpark the thread, so it sleeps until there's something to do
+        parked = true;
+        if (queue.isEmpty() && running) {
+          LockSupport.park(this);
+        }
+        parked = false;
+      }
+    }
+
+  }
+
+}
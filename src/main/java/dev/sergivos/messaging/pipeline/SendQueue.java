@@ -0,0 +1,220 @@
+package dev.sergivos.messaging.pipeline;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.utils.MpmcArrayQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+
+/**
+ * A bounded queue of send tasks, run by a fixed number of threads. When the queue is full, the
+ * {@link OverflowPolicy} decides what to do with new tasks.
+ * <p>
+ * Tasks are run in order when using a single thread. Idle threads spin for a while and then park
+ * until a new task is submitted.
+ */
+public final class SendQueue {
+
+  private static final int SPINS = 128;
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long WARN_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final @NonNull MpmcArrayQueue<Runnable> queue;
+  private final @NonNull OverflowPolicy policy;
+  private final @NonNull Logger logger;
+  private final @NonNull Worker @NonNull [] workers;
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private volatile boolean running = true;
+  private volatile long lastWarning;
+
+  /**
+   * Creates a new queue and starts its threads
+   *
+   * @param capacity The capacity of the queue, rounded up to the next power of two
+   * @param threads  The number of threads running the tasks
+   * @param policy   What to do with new tasks when the queue is full
+   * @param logger   The logger to report errors and dropped tasks to
+   */
+  public SendQueue(int capacity, int threads, final @NonNull OverflowPolicy policy,
+      final @NonNull Logger logger) {
+    Preconditions.checkArgument(threads > 0, "Bad thread count (%s)", threads);
+    this.queue = new MpmcArrayQueue<>(capacity);
+    this.policy = policy;
+    this.logger = logger;
+
+    final ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("MessagingService-%d")
+        .setDaemon(true).build();
+    this.workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker();
+      workers[i].thread = factory.newThread(workers[i]);
+      workers[i].thread.start();
+    }
+  }
+
+  /**
+   * Queues a task
+   *
+   * @param task The task to run
+   * @throws RejectedExecutionException if the queue is closed, or it's full and the policy is
+   *                                    {@link OverflowPolicy#FAIL}
+   */
+  public void submit(final @NonNull Runnable task) throws RejectedExecutionException {
+    if (!running) {
+      throw new RejectedExecutionException("The send queue is closed");
+    }
+
+    if (!queue.offer(task)) {
+      switch (policy) {
+        case BLOCK:
+          while (!queue.offer(task)) {
+            if (!running || Thread.currentThread().isInterrupted()) {
+              throw new RejectedExecutionException("Interrupted while waiting for the send queue");
+            }
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+          }
+          break;
+        case DROP_OLDEST:
+          do {
+            if (queue.poll() != null) {
+              dropped.increment();
+            }
+          } while (!queue.offer(task));
+          warnFull();
+          break;
+        case DROP_NEWEST:
+          dropped.increment();
+          warnFull();
+          return;
+        case FAIL:
+          rejected.increment();
+          throw new RejectedExecutionException(
+              "The send queue is full (" + queue.capacity() + " packets)");
+      }
+    }
+
+    for (final Worker worker : workers) {
+      if (worker.parked) {
+        LockSupport.unpark(worker.thread);
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return the approximate number of queued tasks
+   */
+  public int size() {
+    return queue.size();
+  }
+
+  public int capacity() {
+    return queue.capacity();
+  }
+
+  /**
+   * @return the number of tasks dropped by the {@link OverflowPolicy#DROP_OLDEST} and {@link
+   * OverflowPolicy#DROP_NEWEST} policies
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the number of tasks rejected by the {@link OverflowPolicy#FAIL} policy
+   */
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  public @NonNull OverflowPolicy policy() {
+    return this.policy;
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to be run
+   *
+   * @param timeout The maximum time to wait
+   * @param unit    The unit of {@code timeout}
+   * @return {@code true} if every thread finished before the timeout
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean close(long timeout, final @NonNull TimeUnit unit) throws InterruptedException {
+    running = false;
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (final Worker worker : workers) {
+      LockSupport.unpark(worker.thread);
+    }
+
+    boolean terminated = true;
+    for (final Worker worker : workers) {
+      final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining > 0) {
+        worker.thread.join(remaining);
+      }
+      if (worker.thread.isAlive()) {
+        worker.thread.interrupt();
+        terminated = false;
+      }
+    }
+    return terminated;
+  }
+
+  private void warnFull() {
+    final long now = System.nanoTime();
+    if (now - lastWarning < WARN_INTERVAL) {
+      return;
+    }
+
+    lastWarning = now;
+    logger.warn("The send queue is full ({} packets), {} packets dropped so far", queue.capacity(),
+        dropped.sum());
+  }
+
+  private final class Worker implements Runnable {
+
+    private volatile boolean parked;
+    private Thread thread;
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (true) {
+        final Runnable task = queue.poll();
+        if (task != null) {
+          idle = 0;
+          try {
+            task.run();
+          } catch (Throwable ex) {
+            logger.error("error running send task", ex);
+          }
+          continue;
+        }
+
+        if (!running) {
+          return;
+        }
+
+        if (idle++ < SPINS) {
+          Thread.onSpinWait();
+          continue;
+        }
+
+        parked = true;
+        if (queue.isEmpty() && running) {
+          LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        parked = false;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,171 @@
+package dev.sergivos.messaging.rpc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dev.sergivos.messaging.packets.Packet;
+import dev.sergivos.messaging.utils.TimerWheel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The requests waiting for a response, indexed by correlation ID.
+ * <p>
+ * Correlation IDs are assigned sequentially and fit in 21 bits, so they take at most 3 bytes as a
+ * VarInt. A request is stored in the slot of its ID, and expires through a {@link TimerWheel}.
+ */
+public final class PendingRequests {
+
+  /**
+   * The biggest correlation ID
+   */
+  public static final int MAX_ID = (1 << 21) - 1;
+
+  private final int mask;
+  private final AtomicReferenceArray<@Nullable Request<?>> slots;
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final @NonNull TimerWheel timer;
+
+  /**
+   * Creates an empty table
+   *
+   * @param capacity The maximum number of pending requests, rounded up to the next power of two
+   */
+  public PendingRequests(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= MAX_ID + 1, "Bad capacity (%s)",
+        capacity);
+    final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = size - 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.timer = new TimerWheel(10, TimeUnit.MILLISECONDS, 512, new ThreadFactoryBuilder()
+        .setNameFormat("MessagingService-timer-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Adds a new request, which fails with a {@link TimeoutException} if it isn't completed in time
+   *
+   * @param <R>          class that extends {@link Packet}
+   * @param responseType The class of the expected response
+   * @param timeout      The time to wait for the response
+   * @param unit         The unit of {@code timeout}
+   * @return the request
+   * @throws RejectedExecutionException if there are too many pending requests
+   */
+  public <R extends Packet> @NonNull Request<R> add(final @NonNull Class<R> responseType,
+      long timeout, final @NonNull TimeUnit unit) throws RejectedExecutionException {
+    for (int attempt = 0; attempt <= mask; attempt++) {
+      final int id = nextId.getAndIncrement() & MAX_ID;
+      final Request<R> request = new Request<>(id, responseType);
+      if (slots.compareAndSet(id & mask, null, request)) {
+        request.timeout = timer.schedule(() -> {
+          if (remove(request)) {
+            request.completeExceptionally(new TimeoutException(
+                "No response of type " + responseType.getSimpleName() + " after " + timeout + " "
+                    + unit.name().toLowerCase()));
+          }
+        }, timeout, unit);
+        return request;
+      }
+    }
+
+    throw new RejectedExecutionException("Too many pending requests (" + (mask + 1) + ")");
+  }
+
+  /**
+   * Completes a request with a response
+   *
+   * @param id       The correlation ID of the request
+   * @param response The response
+   * @return {@code false} if there's no pending request with the {@code id}
+   */
+  public boolean complete(int id, final @NonNull Packet response) {
+    final Request<?> request = slots.get(id & mask);
+    if (request == null || request.id != id || !remove(request)) {
+      return false;
+    }
+
+    request.cancelTimeout();
+    request.accept(response);
+    return true;
+  }
+
+  /**
+   * Fails a request, if it's still pending
+   *
+   * @param request The request
+   * @param cause   The cause of the failure
+   */
+  public void fail(final @NonNull Request<?> request, final @NonNull Throwable cause) {
+    if (remove(request)) {
+      request.cancelTimeout();
+      request.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * Fails every pending request and stops the timer
+   *
+   * @param cause The cause of the failure
+   */
+  public void close(final @NonNull Throwable cause) {
+    timer.close();
+    for (int i = 0; i <= mask; i++) {
+      final Request<?> request = slots.getAndSet(i, null);
+      if (request != null) {
+        request.completeExceptionally(cause);
+      }
+    }
+  }
+
+  private boolean remove(final @NonNull Request<?> request) {
+    return slots.compareAndSet(request.id & mask, request, null);
+  }
+
+  /**
+   * A request waiting for its response
+   *
+   * @param <R> class that extends {@link Packet}
+   */
+  public static final class Request<R extends Packet> extends CompletableFuture<R> {
+
+    private final int id;
+    private final @NonNull Class<R> responseType;
+    private volatile TimerWheel.@Nullable Timeout timeout;
+
+    private Request(int id, final @NonNull Class<R> responseType) {
+      this.id = id;
+      this.responseType = responseType;
+    }
+
+    /**
+     * @return the correlation ID of the request
+     */
+    public int id() {
+      return this.id;
+    }
+
+    private void cancelTimeout() {
+      final TimerWheel.Timeout timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+
+    private void accept(final @NonNull Packet response) {
+      if (responseType.isInstance(response)) {
+        complete(responseType.cast(response));
+      } else {
+        completeExceptionally(new IllegalStateException(
+            "Expected a response of type " + responseType.getSimpleName() + ", but got "
+                + response.getClass().getSimpleName()));
+      }
+    }
+
+  }
+
+}
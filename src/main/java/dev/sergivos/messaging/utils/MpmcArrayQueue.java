@@ -0,0 +1,111 @@
+package dev.sergivos.messaging.utils;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a ring buffer.
+ *
+ * <p>Credits to Dmitry Vyukov's <a href="https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue">bounded
+ * MPMC queue</a></p>
+ *
+ * @param <E> the type of the elements
+ */
+public final class MpmcArrayQueue<E> {
+
+  private final int mask;
+  private final AtomicReferenceArray<@Nullable E> buffer;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Creates a new queue
+   *
+   * @param capacity The capacity of the queue, rounded up to the next power of two
+   */
+  public MpmcArrayQueue(int capacity) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 30, "Bad capacity (%s)",
+        capacity);
+    final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = size - 1;
+    this.buffer = new AtomicReferenceArray<>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Inserts an element if there's room for it
+   *
+   * @param element The element to insert
+   * @return {@code true} if the element was inserted, {@code false} if the queue is full
+   */
+  public boolean offer(final @NonNull E element) {
+    long position = tail.get();
+    while (true) {
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          buffer.lazySet(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the head of the queue
+   *
+   * @return the removed element, or {@code null} if the queue is empty
+   */
+  public @Nullable E poll() {
+    long position = head.get();
+    while (true) {
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          final E element = buffer.get(index);
+          buffer.lazySet(index, null);
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+        position = head.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+  /**
+   * @return the approximate number of elements in the queue
+   */
+  public int size() {
+    final long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, mask + 1));
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+}
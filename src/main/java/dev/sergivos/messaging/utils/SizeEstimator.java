@@ -0,0 +1,122 @@
+package dev.sergivos.messaging.utils;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free estimator of a quantile of a stream of sizes, used to pick the initial capacity of
+ * buffers.
+ * <p>
+ * Samples are counted in a log-linear histogram: every power of two is split in 4 buckets, so the
+ * estimate is at most 25% bigger than the real quantile, and never smaller. The estimate is
+ * recomputed every {@link #RECOMPUTE_INTERVAL} samples, halving the counts afterwards so the
+ * estimator adapts to changes in the stream. Until then, it's the biggest sample seen.
+ */
+public final class SizeEstimator {
+
+  /**
+   * The number of samples between estimate updates
+   */
+  public static final int RECOMPUTE_INTERVAL = 128;
+
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_SIZE = 1 << 24;
+  private static final int BUCKETS = bucket(MAX_SIZE) + 1;
+
+  private final double quantile;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong samples = new AtomicLong();
+  private volatile int estimate;
+
+  /**
+   * Creates a new estimator
+   *
+   * @param quantile The quantile to estimate, between 0 and 1
+   * @param initial  The estimate until the first sample is recorded
+   */
+  public SizeEstimator(double quantile, int initial) {
+    Preconditions.checkArgument(quantile > 0 && quantile <= 1, "Bad quantile (%s)", quantile);
+    this.quantile = quantile;
+    this.estimate = initial;
+  }
+
+  /**
+   * @return the current estimate of the quantile
+   */
+  public int estimate() {
+    return this.estimate;
+  }
+
+  /**
+   * Records a sample
+   *
+   * @param size The size to record
+   */
+  public void record(int size) {
+    final int bucket = bucket(Math.max(0, Math.min(size, MAX_SIZE)));
+    counts.incrementAndGet(bucket);
+
+    final long count = samples.incrementAndGet();
+    if (count == 1) {
+      estimate = upperBound(bucket);
+    } else if (count < RECOMPUTE_INTERVAL) {
+      final int bound = upperBound(bucket);
+      if (bound > estimate) {
+        estimate = bound;
+      }
+    } else if (count % RECOMPUTE_INTERVAL == 0) {
+      recompute();
+    }
+  }
+
+  private void recompute() {
+    long total = 0;
+    final long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    final long target = (long) Math.ceil(quantile * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        estimate = upperBound(i);
+        break;
+      }
+    }
+
+    // halve the counts, so old samples weigh less than new ones
+    for (int i = 0; i < BUCKETS; i++) {
+      long current;
+      do {
+        current = counts.get(i);
+      } while (current > 0 && !counts.compareAndSet(i, current, current >>> 1));
+    }
+  }
+
+  private static int bucket(int size) {
+    if (size < SUB_BUCKETS) {
+      return size;
+    }
+
+    final int exponent = 31 - Integer.numberOfLeadingZeros(size);
+    final int subBucket = (size >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+  }
+
+  private static int upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    final int subBucket = bucket % SUB_BUCKETS;
+    final int width = 1 << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+
+}
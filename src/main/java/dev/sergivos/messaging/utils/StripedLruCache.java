@@ -0,0 +1,86 @@
+package dev.sergivos.messaging.utils;
+
+import com.google.common.base.Preconditions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A bounded cache evicting the least recently used entries, split in stripes by the hash of the
+ * keys. Every stripe is an independent LRU with its own lock, so threads only contend when they use
+ * keys of the same stripe, and the entries evicted are the least recently used of their stripe.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class StripedLruCache<K, V> {
+
+  private final @NonNull Stripe<K, V> @NonNull [] stripes;
+  private final int mask;
+
+  /**
+   * Creates an empty cache
+   *
+   * @param capacity The maximum number of entries, split evenly between the stripes
+   * @param stripes  The number of stripes, rounded up to the next power of two
+   */
+  @SuppressWarnings("unchecked")
+  public StripedLruCache(int capacity, int stripes) {
+    Preconditions.checkArgument(stripes > 0 && stripes <= 1 << 16, "Bad stripes (%s)", stripes);
+    final int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    Preconditions.checkArgument(capacity >= size, "Bad capacity (%s)", capacity);
+    this.mask = size - 1;
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; i++) {
+      this.stripes[i] = new Stripe<>(capacity / size);
+    }
+  }
+
+  /**
+   * @param key The key
+   * @return the value of the {@code key}, or {@code null} if it's not cached
+   */
+  public @Nullable V get(final @NonNull K key) {
+    final Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      return stripe.get(key);
+    }
+  }
+
+  /**
+   * Caches a value, evicting the least recently used entry of its stripe if it's full
+   *
+   * @param key   The key
+   * @param value The value
+   */
+  public void put(final @NonNull K key, final @NonNull V value) {
+    final Stripe<K, V> stripe = stripe(key);
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  private @NonNull Stripe<K, V> stripe(final @NonNull K key) {
+    final int hash = key.hashCode();
+    // the low bits also pick the bucket in the stripe, spread the high ones
+    return stripes[(hash ^ hash >>> 16) * 0x9E3779B9 >>> 16 & mask];
+  }
+
+  private static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+
+    private final int capacity;
+
+    private Stripe(int capacity) {
+      super(capacity * 4 / 3 + 1, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.@Nullable Entry<K, V> eldest) {
+      return size() > capacity;
+    }
+
+  }
+
+}
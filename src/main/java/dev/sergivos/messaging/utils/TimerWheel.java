@@ -0,0 +1,188 @@
+package dev.sergivos.messaging.utils;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A hashed timer wheel, for large amounts of timeouts that are usually cancelled before expiring.
+ * Scheduling and cancelling a timeout is O(1), and only locks the bucket of the timeout.
+ * <p>
+ * Timeouts expire in the timer thread, up to one tick late. Their tasks must be short.
+ */
+public final class TimerWheel {
+
+  private final long tickNanos;
+  private final @NonNull Timeout @NonNull [] buckets;
+  private final int mask;
+  private final long start;
+  private final @NonNull Thread thread;
+  private volatile long processed = -1;
+  private volatile boolean running = true;
+
+  /**
+   * Creates a new wheel and starts its thread
+   *
+   * @param tick    The duration of a tick
+   * @param unit    The unit of {@code tick}
+   * @param buckets The number of buckets, rounded up to the next power of two
+   * @param factory The factory of the timer thread
+   */
+  public TimerWheel(long tick, final @NonNull TimeUnit unit, int buckets,
+      final @NonNull ThreadFactory factory) {
+    Preconditions.checkArgument(tick > 0, "Bad tick (%s)", tick);
+    Preconditions.checkArgument(buckets > 0 && buckets <= 1 << 30, "Bad bucket count (%s)",
+        buckets);
+    final int size = buckets == 1 ? 1 : Integer.highestOneBit(buckets - 1) << 1;
+    this.tickNanos = unit.toNanos(tick);
+    this.mask = size - 1;
+    this.buckets = new Timeout[size];
+    for (int i = 0; i < size; i++) {
+      // every bucket is a circular list, headed by a sentinel
+      this.buckets[i] = new Timeout(null, -1);
+    }
+    this.start = System.nanoTime();
+    this.thread = factory.newThread(this::run);
+    this.thread.start();
+  }
+
+  /**
+   * Schedules a task
+   *
+   * @param task  The task to run when the timeout expires
+   * @param delay The delay of the timeout
+   * @param unit  The unit of {@code delay}
+   * @return the timeout, which can be cancelled
+   */
+  public @NonNull Timeout schedule(final @NonNull Runnable task, long delay,
+      final @NonNull TimeUnit unit) {
+    final long elapsed = System.nanoTime() - start + unit.toNanos(Math.max(delay, 0));
+    final long deadline = (elapsed + tickNanos - 1) / tickNanos;
+    final Timeout timeout = new Timeout(task, deadline);
+    while (true) {
+      final long tick = Math.max(deadline, processed + 1);
+      final Timeout bucket = buckets[(int) tick & mask];
+      synchronized (bucket) {
+        // the bucket may have been processed since we read the tick, in which case we'd have to
+        // wait a whole turn of the wheel
+        if (processed < tick) {
+          timeout.link(bucket);
+          return timeout;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the timer thread. Pending timeouts never expire
+   */
+  public void close() {
+    running = false;
+    LockSupport.unpark(thread);
+  }
+
+  private void run() {
+    while (running) {
+      final long now = (System.nanoTime() - start) / tickNanos;
+      for (long tick = processed + 1; tick <= now; tick++) {
+        expire(tick);
+      }
+
+      final long next = start + (processed + 1) * tickNanos;
+      LockSupport.parkNanos(this, next - System.nanoTime());
+    }
+  }
+
+  private void expire(long tick) {
+    final Timeout bucket = buckets[(int) tick & mask];
+    Timeout expired = null;
+    synchronized (bucket) {
+      Timeout timeout = bucket.next;
+      while (timeout != bucket) {
+        final Timeout next = timeout.next;
+        if (timeout.deadline <= tick) {
+          timeout.unlink();
+          timeout.next = expired;
+          expired = timeout;
+        }
+        timeout = next;
+      }
+      processed = tick;
+    }
+
+    // run the tasks without holding the lock of the bucket
+    while (expired != null) {
+      final Timeout next = expired.next;
+      expired.next = null;
+      try {
+        expired.task.run();
+      } catch (Throwable ex) {
+        Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(thread, ex);
+      }
+      expired = next;
+    }
+  }
+
+  /**
+   * A scheduled task
+   */
+  public static final class Timeout {
+
+    private final Runnable task;
+    private final long deadline;
+    private volatile @Nullable Timeout bucket;
+    private @Nullable Timeout prev;
+    private @Nullable Timeout next;
+
+    private Timeout(final @Nullable Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+      if (task == null) {
+        this.prev = this;
+        this.next = this;
+      }
+    }
+
+    /**
+     * Cancels the timeout, so its task is never run
+     *
+     * @return {@code true} if the timeout was cancelled, {@code false} if it had already expired or
+     * been cancelled
+     */
+    public boolean cancel() {
+      final Timeout bucket = this.bucket;
+      if (bucket == null) {
+        return false;
+      }
+
+      synchronized (bucket) {
+        if (this.bucket == null) {
+          return false;
+        }
+        unlink();
+        return true;
+      }
+    }
+
+    private void link(final @NonNull Timeout bucket) {
+      this.bucket = bucket;
+      this.prev = bucket.prev;
+      this.next = bucket;
+      bucket.prev.next = this;
+      bucket.prev = this;
+    }
+
+    private void unlink() {
+      prev.next = next;
+      next.prev = prev;
+      prev = null;
+      next = null;
+      bucket = null;
+    }
+
+  }
+
+}
@@ -0,0 +1,471 @@
+package dev.sergivos.messaging.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code PacketCodec} for every class annotated with {@code @AutoCodec}, and a {@code
+ * PacketCodecs} class per package registering all of them.
+ * <p>
+ * The generated methods are straight-line code, one statement per field, so the JIT can inline
+ * them into the encode and decode loops. Annotations are referenced by name, so this processor
+ * doesn't depend on the library.
+ */
+@SupportedAnnotationTypes(CodecProcessor.AUTO_CODEC)
+public final class CodecProcessor extends AbstractProcessor {
+
+  static final String AUTO_CODEC = "dev.sergivos.messaging.packets.codec.AutoCodec";
+  private static final String CODEC_FIELD = "dev.sergivos.messaging.packets.codec.CodecField";
+  private static final String PACKET = "dev.sergivos.messaging.packets.Packet";
+  private static final String PACKET_CODEC = "dev.sergivos.messaging.packets.codec.PacketCodec";
+  private static final String PACKET_MANAGER = "dev.sergivos.messaging.packets.PacketManager";
+  private static final String PACKET_UTILS = "dev.sergivos.messaging.packets.PacketUtils";
+  private static final String BYTE_BUF = "io.netty.buffer.ByteBuf";
+  private static final String GENERATED = "javax.annotation.processing.Generated";
+
+  private final Map<String, List<String>> packages = new LinkedHashMap<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+    final TypeElement autoCodec = processingEnv.getElementUtils().getTypeElement(AUTO_CODEC);
+    if (autoCodec == null) {
+      return false;
+    }
+
+    final Map<String, List<String>> generated = new LinkedHashMap<>();
+    for (final Element element : round.getElementsAnnotatedWith(autoCodec)) {
+      final TypeElement type = (TypeElement) element;
+      if (!validate(type)) {
+        continue;
+      }
+
+      final List<VariableElement> fields = fields(type);
+      if (fields == null) {
+        continue;
+      }
+
+      final String packageName = processingEnv.getElementUtils().getPackageOf(type)
+          .getQualifiedName().toString();
+      final String codecName = codecName(type);
+      try {
+        writeCodec(type, packageName, codecName, fields);
+      } catch (IOException ex) {
+        error(type, "Couldn't write " + codecName + ": " + ex.getMessage());
+        continue;
+      }
+      generated.computeIfAbsent(packageName, key -> new ArrayList<>()).add(codecName);
+    }
+
+    for (final Map.Entry<String, List<String>> entry : generated.entrySet()) {
+      if (packages.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+            "Codecs of " + entry.getKey() + " generated in a later round aren't in its "
+                + "PacketCodecs, register them with their own register(PacketManager)");
+        continue;
+      }
+
+      try {
+        writeRegistry(entry.getKey(), entry.getValue());
+      } catch (IOException ex) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+            "Couldn't write the PacketCodecs of " + entry.getKey() + ": " + ex.getMessage());
+      }
+    }
+    return true;
+  }
+
+  private boolean validate(final TypeElement type) {
+    if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+      error(type, "@AutoCodec can only be used on concrete classes");
+      return false;
+    }
+    if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+      error(type, "@AutoCodec classes can't be inner classes");
+      return false;
+    }
+
+    final TypeElement packet = processingEnv.getElementUtils().getTypeElement(PACKET);
+    if (packet != null && !processingEnv.getTypeUtils()
+        .isAssignable(type.asType(), packet.asType())) {
+      error(type, "@AutoCodec classes must implement Packet");
+      return false;
+    }
+
+    for (final ExecutableElement constructor : ElementFilter.constructorsIn(
+        type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty()
+          && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+        return true;
+      }
+    }
+    error(type, "@AutoCodec classes need a non-private no-args constructor");
+    return false;
+  }
+
+  /**
+   * @return the encoded fields in declaration order, or {@code null} if any of them is invalid
+   */
+  private List<VariableElement> fields(final TypeElement type) {
+    final List<VariableElement> fields = new ArrayList<>();
+    boolean valid = true;
+    for (final VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+      if (annotation(field, CODEC_FIELD) == null) {
+        continue;
+      }
+
+      final Set<Modifier> modifiers = field.getModifiers();
+      if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)
+          || modifiers.contains(Modifier.STATIC)) {
+        error(field, "@CodecField fields can't be private, final nor static");
+        valid = false;
+      } else if (kind(field.asType()) == null) {
+        error(field, "Unsupported @CodecField type " + field.asType());
+        valid = false;
+      } else {
+        fields.add(field);
+      }
+    }
+    return valid ? fields : null;
+  }
+
+  private void writeCodec(final TypeElement type, final String packageName,
+      final String codecName, final List<VariableElement> fields) throws IOException {
+    final String packetName = type.getQualifiedName().toString();
+    final String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+    final Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type)
+        .openWriter();
+    try (final PrintWriter out = new PrintWriter(writer)) {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * The generated codec of {@link " + packetName + "}");
+      out.println(" */");
+      out.println("@" + GENERATED + "(\"" + CodecProcessor.class.getName() + "\")");
+      out.println("public final class " + codecName + " implements " + PACKET_CODEC + "<"
+          + packetName + "> {");
+      out.println();
+      out.println("  public static final " + codecName + " INSTANCE = new " + codecName + "();");
+      for (final VariableElement field : fields) {
+        if (kind(field.asType()) == Kind.ENUM) {
+          // values() clones the array on every call
+          final String enumName = typeName(field.asType());
+          out.println("  private static final " + enumName + "[] " + valuesName(field) + " = "
+              + enumName + ".values();");
+        }
+      }
+      out.println();
+      out.println("  private " + codecName + "() {");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Registers {@link " + packetName + "} with this codec");
+      out.println("   *");
+      out.println("   * @param manager The manager to register the packet in");
+      out.println("   */");
+      out.println("  public static void register(final " + PACKET_MANAGER + " manager) {");
+      out.println("    manager.register(" + packetName + ".class, INSTANCE);");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public " + packetName + " newInstance() {");
+      out.println("    return new " + packetName + "();");
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public void read(final " + packetName + " packet, final " + BYTE_BUF
+          + " buf) {");
+      for (final VariableElement field : fields) {
+        out.println("    " + read(field) + ";");
+      }
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public void write(final " + packetName + " packet, final " + BYTE_BUF
+          + " buf) {");
+      for (final VariableElement field : fields) {
+        out.println("    " + write(field) + ";");
+      }
+      out.println("  }");
+      out.println();
+      out.println("  @Override");
+      out.println("  public int size(final " + packetName + " packet) {");
+      int fixed = 0;
+      final List<String> variable = new ArrayList<>();
+      for (final VariableElement field : fields) {
+        final String size = size(field);
+        try {
+          fixed += Integer.parseInt(size);
+        } catch (NumberFormatException ex) {
+          variable.add(size);
+        }
+      }
+      final StringBuilder sum = new StringBuilder().append(fixed);
+      for (final String size : variable) {
+        sum.append("\n        + ").append(size);
+      }
+      out.println("    return " + sum + ";");
+      out.println("  }");
+      out.println();
+      out.println("}");
+    }
+  }
+
+  private void writeRegistry(final String packageName, final List<String> codecs)
+      throws IOException {
+    final String qualifiedName = packageName.isEmpty() ? "PacketCodecs"
+        : packageName + ".PacketCodecs";
+    final Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName).openWriter();
+    try (final PrintWriter out = new PrintWriter(writer)) {
+      if (!packageName.isEmpty()) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * The generated codecs of the {@code @AutoCodec} packets of this package");
+      out.println(" */");
+      out.println("@" + GENERATED + "(\"" + CodecProcessor.class.getName() + "\")");
+      out.println("public final class PacketCodecs {");
+      out.println();
+      out.println("  private PacketCodecs() {");
+      out.println("  }");
+      out.println();
+      out.println("  /**");
+      out.println("   * Registers every {@code @AutoCodec} packet of this package with its codec");
+      out.println("   *");
+      out.println("   * @param manager The manager to register the packets in");
+      out.println("   */");
+      out.println("  public static void registerAll(final " + PACKET_MANAGER + " manager) {");
+      for (final String codec : codecs) {
+        out.println("    " + codec + ".register(manager);");
+      }
+      out.println("  }");
+      out.println();
+      out.println("}");
+    }
+  }
+
+  private String read(final VariableElement field) {
+    final String target = "packet." + field.getSimpleName() + " = ";
+    final Kind kind = kind(field.asType());
+    switch (kind) {
+      case INT:
+        return target + (fixedInt(field) ? "buf.readInt()" : PACKET_UTILS + ".readVarInt(buf)");
+      case ENUM:
+        return target + valuesName(field) + "[" + PACKET_UTILS + ".readVarInt(buf)]";
+      case BOOLEAN:
+      case BYTE:
+      case SHORT:
+      case CHAR:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return target + "buf." + kind.method("read") + "()";
+      default:
+        return target + PACKET_UTILS + "." + kind.method("read") + "(buf)";
+    }
+  }
+
+  private String write(final VariableElement field) {
+    final String value = "packet." + field.getSimpleName();
+    final Kind kind = kind(field.asType());
+    switch (kind) {
+      case INT:
+        return fixedInt(field) ? "buf.writeInt(" + value + ")"
+            : PACKET_UTILS + ".writeVarInt(buf, " + value + ")";
+      case ENUM:
+        return PACKET_UTILS + ".writeVarInt(buf, " + value + ".ordinal())";
+      case BOOLEAN:
+      case BYTE:
+      case SHORT:
+      case CHAR:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return "buf." + kind.method("write") + "(" + value + ")";
+      default:
+        return PACKET_UTILS + "." + kind.method("write") + "(buf, " + value + ")";
+    }
+  }
+
+  /**
+   * @return the size of the field, either a number or an expression
+   */
+  private String size(final VariableElement field) {
+    final String value = "packet." + field.getSimpleName();
+    final Kind kind = kind(field.asType());
+    switch (kind) {
+      case INT:
+        return fixedInt(field) ? "4" : PACKET_UTILS + ".varIntSize(" + value + ")";
+      case ENUM:
+        return PACKET_UTILS + ".varIntSize(" + value + ".ordinal())";
+      case STRING:
+        return PACKET_UTILS + ".stringSize(" + value + ")";
+      case BYTE_ARRAY:
+        return PACKET_UTILS + ".byteArraySize(" + value + ")";
+      case STRING_ARRAY:
+        return PACKET_UTILS + ".stringArraySize(" + value + ")";
+      case COMPONENT:
+        return PACKET_UTILS + ".COMPONENT_SIZE_ESTIMATE";
+      default:
+        return String.valueOf(kind.size);
+    }
+  }
+
+  private boolean fixedInt(final VariableElement field) {
+    final AnnotationMirror annotation = annotation(field, CODEC_FIELD);
+    for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+        annotation.getElementValues().entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals("fixed")) {
+        return (Boolean) entry.getValue().getValue();
+      }
+    }
+    return false;
+  }
+
+  private Kind kind(final TypeMirror type) {
+    switch (type.getKind()) {
+      case BOOLEAN:
+        return Kind.BOOLEAN;
+      case BYTE:
+        return Kind.BYTE;
+      case SHORT:
+        return Kind.SHORT;
+      case CHAR:
+        return Kind.CHAR;
+      case INT:
+        return Kind.INT;
+      case LONG:
+        return Kind.LONG;
+      case FLOAT:
+        return Kind.FLOAT;
+      case DOUBLE:
+        return Kind.DOUBLE;
+      case ARRAY:
+        final TypeMirror component = ((ArrayType) type).getComponentType();
+        if (component.getKind() == TypeKind.BYTE) {
+          return Kind.BYTE_ARRAY;
+        }
+        return isClass(component, "java.lang.String") ? Kind.STRING_ARRAY : null;
+      case DECLARED:
+        final Element element = ((DeclaredType) type).asElement();
+        if (element.getKind() == ElementKind.ENUM) {
+          return Kind.ENUM;
+        }
+        if (isClass(type, "java.lang.String")) {
+          return Kind.STRING;
+        }
+        if (isClass(type, "java.util.UUID")) {
+          return Kind.UUID;
+        }
+        return isClass(type, "net.kyori.adventure.text.Component") ? Kind.COMPONENT : null;
+      default:
+        return null;
+    }
+  }
+
+  private static String valuesName(final VariableElement field) {
+    return field.getSimpleName().toString().toUpperCase(Locale.ROOT) + "_VALUES";
+  }
+
+  /**
+   * @return the qualified name of a declared type, without its type annotations
+   */
+  private static String typeName(final TypeMirror type) {
+    return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+  }
+
+  private boolean isClass(final TypeMirror type, final String name) {
+    return type.getKind() == TypeKind.DECLARED
+        && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(name);
+  }
+
+  private static AnnotationMirror annotation(final Element element, final String name) {
+    for (final AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+          .contentEquals(name)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the name of the codec, i.e. {@code Outer_InnerCodec} for a nested class
+   */
+  private static String codecName(final TypeElement type) {
+    final StringBuilder name = new StringBuilder(type.getSimpleName());
+    Element enclosing = type.getEnclosingElement();
+    while (enclosing.getKind().isClass() || enclosing.getKind().isInterface()) {
+      name.insert(0, enclosing.getSimpleName() + "_");
+      enclosing = enclosing.getEnclosingElement();
+    }
+    return name.append("Codec").toString();
+  }
+
+  private void error(final Element element, final String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  private enum Kind {
+    BOOLEAN("Boolean", 1),
+    BYTE("Byte", 1),
+    SHORT("Short", 2),
+    CHAR("Char", 2),
+    INT("Int", 4),
+    LONG("Long", 8),
+    FLOAT("Float", 4),
+    DOUBLE("Double", 8),
+    ENUM("VarInt", -1),
+    STRING("String", -1),
+    BYTE_ARRAY("ByteArray", -1),
+    STRING_ARRAY("StringArray", -1),
+    UUID("Uuid", 16),
+    COMPONENT("Component", -1);
+
+    private final String suffix;
+    private final int size;
+
+    Kind(final String suffix, int size) {
+      this.suffix = suffix;
+      this.size = size;
+    }
+
+    private String method(final String prefix) {
+      return prefix + suffix;
+    }
+
+  }
+
+}